@@ -24,10 +24,13 @@ import com.sshtools.bootlace.api.PluginContext;
 public class Api implements Plugin {
 
 	private final XPoints extensions;
-	private final ScheduledExecutorService queue;
+	private final InstrumentedExecutorService queue;
+	private final Metrics metrics;
 
 	public Api() {
-		queue = Executors.newScheduledThreadPool(1);
+		metrics = new Metrics();
+		queue = new InstrumentedExecutorService("timer", Executors.newScheduledThreadPool(1));
+		metrics.register(queue);
 		extensions = new XPoints();
 	}
 
@@ -45,6 +48,15 @@ public class Api implements Plugin {
 		return extensions;
 	}
 
+	/**
+	 * Get the registry of metrics sources, such as instrumented executors.
+	 * 
+	 * @return metrics
+	 */
+	public Metrics metrics() {
+		return metrics;
+	}
+
 	@Override
 	public void open(PluginContext context) {
 	}
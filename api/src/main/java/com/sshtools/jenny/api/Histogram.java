@@ -0,0 +1,110 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.api;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.sshtools.jenny.api.Metrics.Metric;
+import com.sshtools.jenny.api.Metrics.Type;
+
+/**
+ * Counts observed values into fixed buckets, for export as a Prometheus
+ * histogram. Observing a value never locks, so a histogram may be updated
+ * from hot paths.
+ */
+public final class Histogram {
+
+	/**
+	 * Bucket bounds suitable for latencies in seconds, from a millisecond up to
+	 * ten seconds.
+	 */
+	public final static double[] LATENCY_SECONDS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	private final double[] bounds;
+	private final LongAdder[] counts;
+	private final DoubleAdder sum = new DoubleAdder();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param bounds upper bound of each bucket. A final bucket for everything
+	 *        larger is always added.
+	 */
+	public Histogram(double... bounds) {
+		this.bounds = bounds.clone();
+		Arrays.sort(this.bounds);
+		counts = new LongAdder[this.bounds.length + 1];
+		for(int i = 0; i < counts.length; i++)
+			counts[i] = new LongAdder();
+	}
+
+	/**
+	 * Record a value.
+	 *
+	 * @param value value
+	 */
+	public void observe(double value) {
+		var idx = Arrays.binarySearch(bounds, value);
+		counts[idx < 0 ? -idx - 1 : idx].increment();
+		sum.add(value);
+	}
+
+	/**
+	 * Get the number of values observed.
+	 *
+	 * @return count
+	 */
+	public long count() {
+		long c = 0;
+		for(var count : counts)
+			c += count.sum();
+		return c;
+	}
+
+	/**
+	 * Get the total of all values observed.
+	 *
+	 * @return sum
+	 */
+	public double sum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Provide the buckets, sum and count as metrics.
+	 *
+	 * @param family metric name
+	 * @param help help
+	 * @param labels labels, to which the bucket bound is added
+	 * @param metrics sink for metrics
+	 */
+	public void collect(String family, String help, Map<String, String> labels, Consumer<Metric> metrics) {
+		long cumulative = 0;
+		for(int i = 0; i < counts.length; i++) {
+			cumulative += counts[i].sum();
+			var bucket = new HashMap<>(labels);
+			bucket.put("le", i < bounds.length ? Double.toString(bounds[i]) : "+Inf");
+			metrics.accept(Metric.of(family, "_bucket", Type.HISTOGRAM, help, bucket, cumulative));
+		}
+		metrics.accept(Metric.of(family, "_sum", Type.HISTOGRAM, help, labels, sum.sum()));
+		metrics.accept(Metric.of(family, "_count", Type.HISTOGRAM, help, labels, cumulative));
+	}
+}
@@ -0,0 +1,489 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.api;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.sshtools.jenny.api.Metrics.Metric;
+import com.sshtools.jenny.api.Metrics.Type;
+
+/**
+ * A {@link ScheduledExecutorService} that records how long tasks wait before
+ * they start, how long they run for, and how many are active, queued, failed
+ * or rejected. The stack of any task that runs for longer than a threshold is
+ * captured while it is still running, and the slowest of these are kept as
+ * samples.
+ * <p>
+ * Statistics are available from {@link #stats()}, and the executor is also a
+ * {@link Metrics.Source}, so may be registered with {@link Api#metrics()}.
+ */
+public class InstrumentedExecutorService implements ScheduledExecutorService, Metrics.Source {
+
+	/**
+	 * A task that ran for longer than the slow task threshold. The stack is
+	 * captured once the threshold is passed, so shows where it was spending its
+	 * time.
+	 */
+	public record SlowTask(String task, Instant started, Duration runTime, List<StackTraceElement> stack) {}
+
+	/**
+	 * Statistics about the tasks run by an {@link InstrumentedExecutorService}.
+	 * Latency is the time between a task being due to run and it actually
+	 * starting. Queued and scheduled counts are <code>-1</code> if the
+	 * underlying executor cannot report them.
+	 */
+	public record Stats(String name, long queued, long scheduled, long active, long completed, long failed,
+			long rejected, Duration averageLatency, Duration maximumLatency, Duration averageRunTime,
+			Duration maximumRunTime, List<SlowTask> slowest) {}
+
+	private final static class Running {
+		private final Thread thread = Thread.currentThread();
+		private final long start = System.nanoTime();
+		private final Instant started = Instant.now();
+		private final Object task;
+		private volatile StackTraceElement[] stack;
+
+		private Running(Object task) {
+			this.task = task;
+		}
+	}
+
+	private final static ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "SlowTaskSampler");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String name;
+	private final ScheduledExecutorService delegate;
+	private final Duration slowThreshold;
+	private final int slowSamples;
+	private final Map<Running, Boolean> running = new ConcurrentHashMap<>();
+	private final PriorityQueue<SlowTask> slowest = new PriorityQueue<>(Comparator.comparing(SlowTask::runTime));
+	private final ScheduledFuture<?> sampler;
+
+	private final AtomicLong active = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong measured = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maximumLatency = new AtomicLong();
+	private final AtomicLong totalRunTime = new AtomicLong();
+	private final AtomicLong maximumRunTime = new AtomicLong();
+
+	/**
+	 * Constructor, capturing tasks that run for more than a second.
+	 *
+	 * @param name name used to identify this executor in metrics
+	 * @param delegate executor that actually runs tasks
+	 */
+	public InstrumentedExecutorService(String name, ScheduledExecutorService delegate) {
+		this(name, delegate, Duration.ofSeconds(1), 10);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name name used to identify this executor in metrics
+	 * @param delegate executor that actually runs tasks
+	 * @param slowThreshold how long a task may run before its stack is captured
+	 * @param slowSamples the number of the slowest tasks to keep
+	 */
+	public InstrumentedExecutorService(String name, ScheduledExecutorService delegate, Duration slowThreshold, int slowSamples) {
+		this.name = name;
+		this.delegate = delegate;
+		this.slowThreshold = slowThreshold;
+		this.slowSamples = slowSamples;
+
+		var interval = Math.max(10, slowThreshold.toMillis() / 2);
+		sampler = SAMPLER.scheduleWithFixedDelay(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Get the name used to identify this executor.
+	 *
+	 * @return name
+	 */
+	public final String name() {
+		return name;
+	}
+
+	/**
+	 * Get statistics about tasks run by this executor.
+	 *
+	 * @return stats
+	 */
+	public final Stats stats() {
+		var count = measured.get();
+		var done = completed.get() + failed.get();
+		List<SlowTask> slow;
+		synchronized(slowest) {
+			slow = new ArrayList<>(slowest);
+		}
+		slow.sort(Comparator.comparing(SlowTask::runTime).reversed());
+		return new Stats(
+			name,
+			queued(),
+			scheduled(),
+			active.get(),
+			completed.get(),
+			failed.get(),
+			rejected.get(),
+			Duration.ofNanos(count == 0 ? 0 : totalLatency.get() / count),
+			Duration.ofNanos(maximumLatency.get()),
+			Duration.ofNanos(done == 0 ? 0 : totalRunTime.get() / done),
+			Duration.ofNanos(maximumRunTime.get()),
+			slow);
+	}
+
+	@Override
+	public void collect(Consumer<Metric> metrics) {
+		var stats = stats();
+		var labels = Map.of("executor", name);
+		if(stats.queued() >= 0)
+			metrics.accept(Metric.gauge("jenny_executor_queued", "Tasks waiting to run.", labels, stats.queued()));
+		if(stats.scheduled() >= 0)
+			metrics.accept(Metric.gauge("jenny_executor_scheduled", "Delayed or periodic tasks not yet due.", labels, stats.scheduled()));
+		metrics.accept(Metric.gauge("jenny_executor_active", "Tasks currently running.", labels, stats.active()));
+		metrics.accept(Metric.counter("jenny_executor_completed_total", "Tasks that completed normally.", labels, stats.completed()));
+		metrics.accept(Metric.counter("jenny_executor_failed_total", "Tasks that threw an exception.", labels, stats.failed()));
+		metrics.accept(Metric.counter("jenny_executor_rejected_total", "Tasks that were rejected.", labels, stats.rejected()));
+		metrics.accept(Metric.of("jenny_executor_latency_seconds", "_sum", Type.SUMMARY, "Time between tasks being due and starting.", labels, seconds(totalLatency.get())));
+		metrics.accept(Metric.of("jenny_executor_latency_seconds", "_count", Type.SUMMARY, "Time between tasks being due and starting.", labels, measured.get()));
+		metrics.accept(Metric.gauge("jenny_executor_latency_max_seconds", "Longest time between a task being due and starting.", labels, seconds(maximumLatency.get())));
+		metrics.accept(Metric.of("jenny_executor_run_seconds", "_sum", Type.SUMMARY, "Time spent running tasks.", labels, seconds(totalRunTime.get())));
+		metrics.accept(Metric.of("jenny_executor_run_seconds", "_count", Type.SUMMARY, "Time spent running tasks.", labels, stats.completed() + stats.failed()));
+		metrics.accept(Metric.gauge("jenny_executor_run_max_seconds", "Longest time spent running a task.", labels, seconds(maximumRunTime.get())));
+	}
+
+	@Override
+	public void shutdown() {
+		sampler.cancel(false);
+		delegate.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		sampler.cancel(false);
+		return delegate.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return delegate.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return delegate.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return delegate.awaitTermination(timeout, unit);
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task) {
+		return guarded(() -> delegate.submit(wrap(task, 0)));
+	}
+
+	@Override
+	public <T> Future<T> submit(Runnable task, T result) {
+		return guarded(() -> delegate.submit(wrap(task, 0), result));
+	}
+
+	@Override
+	public Future<?> submit(Runnable task) {
+		return guarded(() -> delegate.submit(wrap(task, 0)));
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+		try {
+			return delegate.invokeAll(tasks.stream().map(t -> wrap(t, 0)).toList());
+		}
+		catch(RejectedExecutionException ree) {
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		try {
+			return delegate.invokeAll(tasks.stream().map(t -> wrap(t, 0)).toList(), timeout, unit);
+		}
+		catch(RejectedExecutionException ree) {
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+		try {
+			return delegate.invokeAny(tasks.stream().map(t -> wrap(t, 0)).toList());
+		}
+		catch(RejectedExecutionException ree) {
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		try {
+			return delegate.invokeAny(tasks.stream().map(t -> wrap(t, 0)).toList(), timeout, unit);
+		}
+		catch(RejectedExecutionException ree) {
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		guarded(() -> {
+			delegate.execute(wrap(command, 0));
+			return null;
+		});
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return guarded(() -> delegate.schedule(wrap(command, unit.toNanos(delay)), delay, unit));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return guarded(() -> delegate.schedule(wrap(callable, unit.toNanos(delay)), delay, unit));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		return guarded(() -> delegate.scheduleAtFixedRate(wrap(command, -1), initialDelay, period, unit));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		return guarded(() -> delegate.scheduleWithFixedDelay(wrap(command, -1), initialDelay, delay, unit));
+	}
+
+	/**
+	 * Get the executor that actually runs tasks.
+	 *
+	 * @return delegate
+	 */
+	protected final ScheduledExecutorService delegate() {
+		return delegate;
+	}
+
+	/**
+	 * Get the number of tasks waiting to run, or <code>-1</code> if not known.
+	 * By default, this is only known if the delegate is a
+	 * {@link ThreadPoolExecutor}.
+	 *
+	 * @return queued tasks
+	 */
+	protected long queued() {
+		return delegate instanceof ThreadPoolExecutor tpe ? tpe.getQueue().size() : -1;
+	}
+
+	/**
+	 * Get the number of delayed tasks not yet due, or <code>-1</code> if not
+	 * known.
+	 *
+	 * @return scheduled tasks
+	 */
+	protected long scheduled() {
+		return -1;
+	}
+
+	/**
+	 * Add any further behaviour around a task, such as logging. This wraps the
+	 * instrumented task, so anything it does is not included in its timings.
+	 *
+	 * @param task task
+	 * @return decorated task
+	 */
+	protected Runnable decorate(Runnable task) {
+		return task;
+	}
+
+	/**
+	 * Add any further behaviour around a task, such as logging. This wraps the
+	 * instrumented task, so anything it does is not included in its timings.
+	 *
+	 * @param <T> type of result
+	 * @param task task
+	 * @return decorated task
+	 */
+	protected <T> Callable<T> decorate(Callable<T> task) {
+		return task;
+	}
+
+	/**
+	 * Instrument and decorate a task.
+	 *
+	 * @param task task
+	 * @param delay nanoseconds until the task is due, or <code>-1</code> if not known
+	 * @return wrapped task
+	 */
+	protected final Runnable wrap(Runnable task, long delay) {
+		var due = System.nanoTime() + delay;
+		return decorate(new Runnable() {
+			@Override
+			public void run() {
+				var run = started(task, delay >= 0, due);
+				var ok = false;
+				try {
+					task.run();
+					ok = true;
+				}
+				finally {
+					finished(run, ok);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return task.toString();
+			}
+		});
+	}
+
+	/**
+	 * Instrument and decorate a task.
+	 *
+	 * @param <T> type of result
+	 * @param task task
+	 * @param delay nanoseconds until the task is due, or <code>-1</code> if not known
+	 * @return wrapped task
+	 */
+	protected final <T> Callable<T> wrap(Callable<T> task, long delay) {
+		var due = System.nanoTime() + delay;
+		return decorate(new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				var run = started(task, delay >= 0, due);
+				var ok = false;
+				try {
+					var result = task.call();
+					ok = true;
+					return result;
+				}
+				finally {
+					finished(run, ok);
+				}
+			}
+
+			@Override
+			public String toString() {
+				return task.toString();
+			}
+		});
+	}
+
+	/**
+	 * Run something that submits to the delegate, counting any rejection.
+	 *
+	 * @param <R> type of result
+	 * @param submission submission
+	 * @return result
+	 */
+	protected final <R> R guarded(Supplier<R> submission) {
+		try {
+			return submission.get();
+		}
+		catch(RejectedExecutionException ree) {
+			rejected.incrementAndGet();
+			throw ree;
+		}
+	}
+
+	private Running started(Object task, boolean timed, long due) {
+		var run = new Running(task);
+		active.incrementAndGet();
+		if(timed) {
+			var latency = Math.max(0, run.start - due);
+			measured.incrementAndGet();
+			totalLatency.addAndGet(latency);
+			maximumLatency.accumulateAndGet(latency, Math::max);
+		}
+		running.put(run, Boolean.TRUE);
+		return run;
+	}
+
+	private void finished(Running run, boolean ok) {
+		running.remove(run);
+		var runTime = System.nanoTime() - run.start;
+		active.decrementAndGet();
+		(ok ? completed : failed).incrementAndGet();
+		totalRunTime.addAndGet(runTime);
+		maximumRunTime.accumulateAndGet(runTime, Math::max);
+
+		var stack = run.stack;
+		if(stack != null) {
+			var slow = new SlowTask(String.valueOf(run.task), run.started, Duration.ofNanos(runTime), Arrays.asList(stack));
+			synchronized(slowest) {
+				slowest.add(slow);
+				while(slowest.size() > slowSamples) {
+					slowest.poll();
+				}
+			}
+		}
+	}
+
+	private void sample() {
+		var threshold = slowThreshold.toNanos();
+		var now = System.nanoTime();
+		for(var run : running.keySet()) {
+			if(run.stack == null && now - run.start > threshold) {
+				run.stack = run.thread.getStackTrace();
+			}
+		}
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1_000_000_000d;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.api;
+
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * A {@link ExtendedUserPrincipal.LinuxUser} that holds a copy of the user's
+ * details, so it may be serialized and a logged in session survives a
+ * restart.
+ */
+public final class LinuxUserPrincipal implements ExtendedUserPrincipal.LinuxUser, Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String name;
+	private final int uid;
+	private final int gid;
+	private final LinkedHashSet<String> groups;
+	private final String shell;
+	private final String gecos;
+	private final String dir;
+
+	public LinuxUserPrincipal(String name, int uid, int gid, Set<String> groups, String shell, String gecos, String dir) {
+		this.name = Objects.requireNonNull(name);
+		this.uid = uid;
+		this.gid = gid;
+		this.groups = new LinkedHashSet<>(groups);
+		this.shell = shell;
+		this.gecos = gecos;
+		this.dir = dir;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int uid() {
+		return uid;
+	}
+
+	@Override
+	public int gid() {
+		return gid;
+	}
+
+	@Override
+	public Set<String> groups() {
+		return groups;
+	}
+
+	@Override
+	public Optional<String> shell() {
+		return Optional.ofNullable(shell);
+	}
+
+	@Override
+	public Optional<String> gecos() {
+		return Optional.ofNullable(gecos);
+	}
+
+	@Override
+	public Optional<Path> dir() {
+		return Optional.ofNullable(dir).map(Paths::get);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(name, uid);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if(this == obj)
+			return true;
+		if(obj == null || getClass() != obj.getClass())
+			return false;
+		var other = (LinuxUserPrincipal) obj;
+		return name.equals(other.name) && uid == other.uid;
+	}
+
+	@Override
+	public String toString() {
+		return "LinuxUserPrincipal [name=" + name + ", uid=" + uid + "]";
+	}
+}
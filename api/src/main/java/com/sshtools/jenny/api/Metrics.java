@@ -0,0 +1,108 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.api;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+
+/**
+ * A registry of {@link Source}s of metrics. Nothing is recorded here, each
+ * source is asked for its current values whenever metrics are collected, so
+ * registering a source costs nothing until something reads it.
+ * <p>
+ * Names and types follow Prometheus conventions, so metrics may be exported
+ * without any translation.
+ */
+public final class Metrics {
+
+	private final static Log LOG = Logs.of(ApiLog.API);
+
+	public enum Type {
+		COUNTER, GAUGE, SUMMARY, HISTOGRAM
+	}
+
+	/**
+	 * A single value. The family is the name of the metric that the help and
+	 * type describe, and is usually the same as the name. For summaries and
+	 * histograms, the name may have a suffix such as <code>_sum</code>,
+	 * <code>_count</code> or <code>_bucket</code>.
+	 */
+	public record Metric(String family, String name, Type type, String help, Map<String, String> labels, double value) {
+
+		public static Metric counter(String name, String help, Map<String, String> labels, double value) {
+			return new Metric(name, name, Type.COUNTER, help, labels, value);
+		}
+
+		public static Metric gauge(String name, String help, Map<String, String> labels, double value) {
+			return new Metric(name, name, Type.GAUGE, help, labels, value);
+		}
+
+		public static Metric of(String family, String suffix, Type type, String help, Map<String, String> labels, double value) {
+			return new Metric(family, family + suffix, type, help, labels, value);
+		}
+	}
+
+	/**
+	 * Something that provides metrics.
+	 */
+	@FunctionalInterface
+	public interface Source {
+		/**
+		 * Provide the current value of all metrics.
+		 *
+		 * @param metrics sink for metrics
+		 */
+		void collect(Consumer<Metric> metrics);
+	}
+
+	private final List<Source> sources = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Register a source of metrics.
+	 *
+	 * @param source source
+	 * @return handle to close to remove the source
+	 */
+	public Closeable register(Source source) {
+		sources.add(source);
+		return () -> sources.remove(source);
+	}
+
+	/**
+	 * Collect the current value of all metrics from every source.
+	 *
+	 * @return metrics
+	 */
+	public List<Metric> collect() {
+		var l = new ArrayList<Metric>();
+		for(var source : sources) {
+			try {
+				source.collect(l::add);
+			}
+			catch(RuntimeException re) {
+				LOG.warning("Failed to collect metrics from {0}.", source, re);
+			}
+		}
+		return l;
+	}
+}
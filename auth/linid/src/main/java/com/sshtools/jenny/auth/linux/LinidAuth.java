@@ -15,17 +15,13 @@
  */
 package com.sshtools.jenny.auth.linux;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
-import java.util.Optional;
-import java.util.Set;
 
 import com.sshtools.bootlace.api.Plugin;
 import com.sshtools.bootlace.api.PluginContext;
 import com.sshtools.jenny.api.Api;
-import com.sshtools.jenny.api.ExtendedUserPrincipal;
+import com.sshtools.jenny.api.LinuxUserPrincipal;
 import com.sshtools.jenny.auth.api.Auth.AuthResult;
 import com.sshtools.jenny.auth.api.Auth.AuthState;
 import com.sshtools.jenny.auth.api.Auth.PasswordAuthProvider;
@@ -40,62 +36,14 @@ public class LinidAuth implements Plugin {
 		public AuthResult logon(String username, char[] password) {
 			return Linid.get().authenticate(username, password).map(id -> {
 				var linId = (LinuxUserId)id;
-				return new AuthResult(AuthState.COMPLETE, new ExtendedUserPrincipal.LinuxUser() {
-
-					private String name;
-					private Optional<String> shell;
-					private int uid;
-					private Set<String> groups;
-					private int gid;
-					private Optional<String> gecos;
-					private Optional<Path> dir;
-
-					{
-						name = id.getName();
-						shell = Optional.of(linId.shell());
-						uid = linId.uid();
-						groups = new LinkedHashSet<>(Arrays.asList(linId.collectionNames()));
-						gid = linId.gid();
-						gecos = Optional.of(String.join(",", linId.gecos()));
-						dir = Optional.of(linId.home()).map(Paths::get);
-					}
-					
-					
-					@Override
-					public String getName() {
-						return name;
-					}
-
-					@Override
-					public int uid() {
-						return uid;
-					}
-
-					@Override
-					public Optional<String> shell() {
-						return shell;
-					}
-
-					@Override
-					public Set<String> groups() {
-						return groups;
-					}
-
-					@Override
-					public int gid() {
-						return gid;
-					}
-
-					@Override
-					public Optional<String> gecos() {
-						return gecos;
-					}
-
-					@Override
-					public Optional<Path> dir() {
-						return dir;
-					}
-				});
+				return new AuthResult(AuthState.COMPLETE, new LinuxUserPrincipal(
+						id.getName(), 
+						linId.uid(), 
+						linId.gid(), 
+						new LinkedHashSet<>(Arrays.asList(linId.collectionNames())), 
+						linId.shell(), 
+						String.join(",", linId.gecos()), 
+						linId.home()));
 			}).orElseGet(() -> new AuthResult(AuthState.DENY));
 		}
 
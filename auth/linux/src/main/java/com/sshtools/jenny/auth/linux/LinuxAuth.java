@@ -15,18 +15,13 @@
  */
 package com.sshtools.jenny.auth.linux;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Optional;
-import java.util.Set;
-
 import org.jvnet.libpam.PAM;
 import org.jvnet.libpam.PAMException;
 
 import com.sshtools.bootlace.api.Plugin;
 import com.sshtools.bootlace.api.PluginContext;
 import com.sshtools.jenny.api.Api;
-import com.sshtools.jenny.api.ExtendedUserPrincipal;
+import com.sshtools.jenny.api.LinuxUserPrincipal;
 import com.sshtools.jenny.auth.api.Auth.AuthResult;
 import com.sshtools.jenny.auth.api.Auth.AuthState;
 import com.sshtools.jenny.auth.api.Auth.PasswordAuthProvider;
@@ -40,43 +35,14 @@ public class LinuxAuth implements Plugin {
 				var pam = new PAM("Jenny");
 				try {
 					var user = pam.authenticate(username, new String(password));
-					return new AuthResult(AuthState.COMPLETE, new ExtendedUserPrincipal.LinuxUser() {
-	
-						@Override
-						public String getName() {
-							return user.getUserName();
-						}
-	
-						@Override
-						public int uid() {
-							return user.getUID();
-						}
-	
-						@Override
-						public Optional<String> shell() {
-							return Optional.of(user.getShell());
-						}
-	
-						@Override
-						public Set<String> groups() {
-							return user.getGroups();
-						}
-	
-						@Override
-						public int gid() {
-							return user.getGID();
-						}
-	
-						@Override
-						public Optional<String> gecos() {
-							return Optional.of(user.getGecos());
-						}
-	
-						@Override
-						public Optional<Path> dir() {
-							return Optional.of(user.getDir()).map(Paths::get);
-						}
-					});
+					return new AuthResult(AuthState.COMPLETE, new LinuxUserPrincipal(
+							user.getUserName(), 
+							user.getUID(), 
+							user.getGID(), 
+							user.getGroups(), 
+							user.getShell(), 
+							user.getGecos(), 
+							user.getDir()));
 				} catch (PAMException pe) {
 					return new AuthResult(AuthState.DENY);
 				} finally {
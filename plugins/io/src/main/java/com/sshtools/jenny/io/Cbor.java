@@ -0,0 +1,251 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Minimal CBOR (RFC 8949) encoding and decoding of {@link JsonValue}. Only the
+ * subset needed to carry JSON is supported. Indefinite lengths are rejected,
+ * byte strings decode as base64 text and tags are ignored.
+ */
+final class Cbor {
+
+	private final static int UNSIGNED = 0;
+	private final static int NEGATIVE = 1;
+	private final static int BYTES = 2;
+	private final static int TEXT = 3;
+	final static int ARRAY = 4;
+	private final static int MAP = 5;
+	private final static int TAG = 6;
+	private final static int SIMPLE = 7;
+
+	private final static int MAX_DEPTH = 64;
+
+	private Cbor() {
+	}
+
+	static byte[] encode(JsonValue value) {
+		var out = new ByteArrayOutputStream();
+		encode(value, out);
+		return out.toByteArray();
+	}
+
+	static void encode(JsonValue value, ByteArrayOutputStream out) {
+		switch(value.getValueType()) {
+		case NULL:
+			out.write(0xf6);
+			break;
+		case TRUE:
+			out.write(0xf5);
+			break;
+		case FALSE:
+			out.write(0xf4);
+			break;
+		case STRING:
+			text(((JsonString)value).getString(), out);
+			break;
+		case NUMBER:
+			var num = (JsonNumber)value;
+			if(num.isIntegral() && num.bigIntegerValue().bitLength() < 64) {
+				integer(num.longValue(), out);
+			}
+			else {
+				out.write(0xfb);
+				var l = Double.doubleToLongBits(num.doubleValue());
+				for(int i = 56; i >= 0; i -= 8)
+					out.write((int)(l >>> i));
+			}
+			break;
+		case ARRAY:
+			var arr = (JsonArray)value;
+			header(ARRAY, arr.size(), out);
+			arr.forEach(v -> encode(v, out));
+			break;
+		case OBJECT:
+			var obj = (JsonObject)value;
+			header(MAP, obj.size(), out);
+			obj.forEach((k, v) -> {
+				text(k, out);
+				encode(v, out);
+			});
+			break;
+		}
+	}
+
+	static void integer(long value, ByteArrayOutputStream out) {
+		if(value < 0)
+			header(NEGATIVE, -1 - value, out);
+		else
+			header(UNSIGNED, value, out);
+	}
+
+	static void text(String text, ByteArrayOutputStream out) {
+		var b = text.getBytes(StandardCharsets.UTF_8);
+		header(TEXT, b.length, out);
+		out.writeBytes(b);
+	}
+
+	static void header(int major, long length, ByteArrayOutputStream out) {
+		var mt = major << 5;
+		if(length < 24) {
+			out.write(mt | (int)length);
+		}
+		else if(length < 0x100) {
+			out.write(mt | 24);
+			out.write((int)length);
+		}
+		else if(length < 0x10000) {
+			out.write(mt | 25);
+			out.write((int)(length >> 8));
+			out.write((int)length);
+		}
+		else if(length < 0x100000000l) {
+			out.write(mt | 26);
+			for(int i = 24; i >= 0; i -= 8)
+				out.write((int)(length >>> i));
+		}
+		else {
+			out.write(mt | 27);
+			for(int i = 56; i >= 0; i -= 8)
+				out.write((int)(length >>> i));
+		}
+	}
+
+	static JsonValue decode(ByteBuffer buffer) {
+		try {
+			return decode(buffer, 0);
+		}
+		catch(BufferUnderflowException bue) {
+			throw new IllegalArgumentException("Truncated CBOR.", bue);
+		}
+	}
+
+	private static JsonValue decode(ByteBuffer buffer, int depth) {
+		if(depth > MAX_DEPTH)
+			throw new IllegalArgumentException("CBOR nested too deeply.");
+
+		var initial = buffer.get() & 0xff;
+		var major = initial >> 5;
+		var info = initial & 0x1f;
+
+		if(major == SIMPLE) {
+			switch(info) {
+			case 20:
+				return JsonValue.FALSE;
+			case 21:
+				return JsonValue.TRUE;
+			case 22:
+			case 23:
+				return JsonValue.NULL;
+			case 25:
+				return number(halfToDouble(buffer.getShort() & 0xffff));
+			case 26:
+				return number(buffer.getFloat());
+			case 27:
+				return number(buffer.getDouble());
+			default:
+				throw new IllegalArgumentException("Unsupported CBOR simple value " + info + ".");
+			}
+		}
+
+		var length = length(info, buffer);
+		switch(major) {
+		case UNSIGNED:
+			return Json.createValue(length);
+		case NEGATIVE:
+			return Json.createValue(-1 - length);
+		case BYTES:
+			return Json.createValue(Base64.getEncoder().encodeToString(bytes(buffer, length)));
+		case TEXT:
+			return Json.createValue(new String(bytes(buffer, length), StandardCharsets.UTF_8));
+		case ARRAY:
+			var arr = Json.createArrayBuilder();
+			for(long i = 0; i < length; i++)
+				arr.add(decode(buffer, depth + 1));
+			return arr.build();
+		case MAP:
+			var obj = Json.createObjectBuilder();
+			for(long i = 0; i < length; i++) {
+				var key = decode(buffer, depth + 1);
+				var val = decode(buffer, depth + 1);
+				obj.add(key instanceof JsonString str ? str.getString() : key.toString(), val);
+			}
+			return obj.build();
+		case TAG:
+			return decode(buffer, depth + 1);
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private static long length(int info, ByteBuffer buffer) {
+		if(info < 24)
+			return info;
+		switch(info) {
+		case 24:
+			return buffer.get() & 0xff;
+		case 25:
+			return buffer.getShort() & 0xffff;
+		case 26:
+			return buffer.getInt() & 0xffffffffl;
+		case 27:
+			var l = buffer.getLong();
+			if(l < 0)
+				throw new IllegalArgumentException("CBOR integer too large.");
+			return l;
+		default:
+			throw new IllegalArgumentException("Indefinite length CBOR is not supported.");
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, long length) {
+		if(length > buffer.remaining())
+			throw new IllegalArgumentException("Truncated CBOR.");
+		var b = new byte[(int)length];
+		buffer.get(b);
+		return b;
+	}
+
+	private static JsonValue number(double value) {
+		/* JSON has no representation of these */
+		return Double.isNaN(value) || Double.isInfinite(value) ? JsonValue.NULL : Json.createValue(value);
+	}
+
+	private static double halfToDouble(int half) {
+		var exp = (half >> 10) & 0x1f;
+		var mant = half & 0x3ff;
+		double val;
+		if(exp == 0)
+			val = mant * Math.pow(2, -24);
+		else if(exp != 31)
+			val = (mant + 1024) * Math.pow(2, exp - 25);
+		else
+			val = mant == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+		return (half & 0x8000) == 0 ? val : -val;
+	}
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * Fans {@link Io} broadcasts out to the other nodes of a cluster over an
+ * {@link IoTransport}, and delivers theirs locally.
+ * <p>
+ * Every node numbers the messages it sends on each channel. Received messages
+ * are delivered in that order, with duplicates dropped. Messages that arrive
+ * early are held until the gap before them is filled, or until too many are
+ * held or the gap has been open too long, in which case the missing messages
+ * are given up on. A timer checks for gaps, so they are given up on even when
+ * nothing else arrives.
+ * <p>
+ * Given a shared secret, every packet is prefixed with an HMAC of its content,
+ * and packets without a valid one are dropped, so nothing else on the network
+ * may inject messages.
+ * <p>
+ * Every packet also carries the time it was sent. Packets older than
+ * {@link #MAX_AGE}, or sent before this node started, are dropped, so a
+ * captured packet cannot be replayed once the sequence it belonged to has been
+ * forgotten. Nodes' clocks must be kept in step.
+ */
+final class Cluster {
+
+	/**
+	 * Receives broadcasts from other nodes.
+	 */
+	interface Listener {
+		void broadcast(String channel, Optional<String> key, JsonValue data);
+
+		void refresh();
+
+		void reload();
+	}
+
+	private final static int MAX_HELD = 256;
+	private final static long GAP_TIMEOUT = 2000;
+	private final static long MAX_AGE = 30000;
+	/* Must be longer than MAX_AGE, so a packet can only be replayed while its stream is remembered */
+	private final static long STREAM_EXPIRY = 600000;
+	private final static String MAC_ALGORITHM = "HmacSHA256";
+	private final static int MAC_LENGTH = 32;
+
+	private final static class Stream {
+		private final String name;
+		private long expected = -1;
+		private long heldSince;
+		private long lastSeen;
+		private final TreeMap<Long, JsonObject> held = new TreeMap<>();
+
+		private Stream(String name) {
+			this.name = name;
+		}
+	}
+
+	private final String node = UUID.randomUUID().toString();
+	private final IoTransport transport;
+	private final Listener listener;
+	private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+	private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+	private final Optional<SecretKeySpec> secret;
+	private final ScheduledFuture<?> gapTimer;
+	private final long started = System.currentTimeMillis();
+	private long lastPrune = System.currentTimeMillis();
+
+	Cluster(IoTransport transport, Listener listener, Optional<byte[]> secret, ScheduledExecutorService timer) {
+		this.transport = transport;
+		this.listener = listener;
+		this.secret = secret.map(s -> new SecretKeySpec(s, MAC_ALGORITHM));
+		if(this.secret.isEmpty())
+			Io.LOG.warning("No cluster secret is set, so messages from other nodes are not authenticated.");
+		gapTimer = timer.scheduleWithFixedDelay(this::expire, GAP_TIMEOUT, GAP_TIMEOUT / 4, TimeUnit.MILLISECONDS);
+		transport.start(this::receive);
+	}
+
+	void broadcast(String channel, Optional<String> key, JsonValue data) {
+		var bldr = packet(channel, "message").add("channel", channel).add("data", data);
+		key.ifPresent(k -> bldr.add("key", k));
+		send(bldr.build());
+	}
+
+	void refresh() {
+		send(packet("", "refresh").build());
+	}
+
+	void reload() {
+		send(packet("", "reload").build());
+	}
+
+	void close() {
+		gapTimer.cancel(false);
+		transport.close();
+	}
+
+	private JsonObjectBuilder packet(String stream, String type) {
+		return Json.createObjectBuilder().
+				add("node", node).
+				add("stream", stream).
+				add("seq", sequences.computeIfAbsent(stream, k -> new AtomicLong()).getAndIncrement()).
+				add("time", System.currentTimeMillis()).
+				add("type", type);
+	}
+
+	private void send(JsonObject packet) {
+		try {
+			var data = packet.toString().getBytes(StandardCharsets.UTF_8);
+			if(secret.isPresent()) {
+				var signed = new byte[MAC_LENGTH + data.length];
+				System.arraycopy(mac(data), 0, signed, 0, MAC_LENGTH);
+				System.arraycopy(data, 0, signed, MAC_LENGTH, data.length);
+				data = signed;
+			}
+			transport.send(data);
+		}
+		catch(RuntimeException re) {
+			Io.LOG.warning("Failed to send to cluster.", re);
+		}
+	}
+
+	private void receive(byte[] data) {
+		if(secret.isPresent()) {
+			if(data.length < MAC_LENGTH || !MessageDigest.isEqual(mac(Arrays.copyOfRange(data, MAC_LENGTH, data.length)), 
+					Arrays.copyOf(data, MAC_LENGTH))) {
+				if(Io.LOG.debug())
+					Io.LOG.debug("Dropped cluster packet that failed authentication.");
+				return;
+			}
+			data = Arrays.copyOfRange(data, MAC_LENGTH, data.length);
+		}
+		
+		JsonObject packet;
+		String from;
+		long seq;
+		long time;
+		try(var rdr = Json.createReader(new ByteArrayInputStream(data))) {
+			packet = rdr.readObject();
+			from = packet.getString("node");
+			seq = packet.getJsonNumber("seq").longValue();
+			time = packet.getJsonNumber("time").longValue();
+		}
+		catch(JsonException | ClassCastException | NullPointerException e) {
+			Io.LOG.warning("Dropped malformed cluster packet.");
+			return;
+		}
+		if(from.equals(node))
+			return;
+
+		var now = System.currentTimeMillis();
+		if(time < started || Math.abs(now - time) > MAX_AGE) {
+			if(Io.LOG.debug())
+				Io.LOG.debug("Dropped stale cluster packet {0} from {1}.", seq, from);
+			return;
+		}
+		var key = from + "/" + packet.getString("stream", "");
+		var stream = streams.computeIfAbsent(key, Stream::new);
+		synchronized(stream) {
+			var was = stream.expected;
+			stream.lastSeen = now;
+			if(stream.expected == -1) {
+				/* First from this node, either it or we have just joined */
+				stream.expected = seq;
+			}
+
+			if(seq < stream.expected) {
+				return;
+			}
+			else if(seq == stream.expected) {
+				deliver(stream, packet);
+			}
+			else {
+				if(stream.held.isEmpty())
+					stream.heldSince = now;
+				stream.held.putIfAbsent(seq, packet);
+				if(stream.held.size() > MAX_HELD)
+					giveUp(stream);
+			}
+
+			drain(stream, was, now);
+		}
+	}
+
+	/**
+	 * Give up on gaps that have been open too long, and forget nodes that have
+	 * not been heard from for a while. Called by a timer.
+	 */
+	private void expire() {
+		var now = System.currentTimeMillis();
+		for(var stream : streams.values()) {
+			synchronized(stream) {
+				if(!stream.held.isEmpty() && now - stream.heldSince > GAP_TIMEOUT) {
+					var was = stream.expected;
+					giveUp(stream);
+					drain(stream, was, now);
+				}
+			}
+		}
+		prune(now);
+	}
+
+	private void giveUp(Stream stream) {
+		if(Io.LOG.debug())
+			Io.LOG.debug("Gave up waiting for cluster messages {0} to {1} of {2}", stream.expected, stream.held.firstKey() - 1, stream.name);
+		stream.expected = stream.held.firstKey();
+		deliver(stream, stream.held.remove(stream.expected));
+	}
+
+	private void drain(Stream stream, long was, long now) {
+		while(!stream.held.isEmpty() && stream.held.firstKey() == stream.expected) {
+			deliver(stream, stream.held.remove(stream.expected));
+		}
+		if(stream.expected != was)
+			/* Progress was made, so time the next gap from now */
+			stream.heldSince = now;
+	}
+
+	private byte[] mac(byte[] data) {
+		try {
+			var mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(secret.get());
+			return mac.doFinal(data);
+		}
+		catch(GeneralSecurityException gse) {
+			throw new IllegalStateException("Failed to authenticate cluster packet.", gse);
+		}
+	}
+
+	private void deliver(Stream stream, JsonObject packet) {
+		stream.expected++;
+		try {
+			switch(packet.getString("type")) {
+			case "message":
+				listener.broadcast(packet.getString("channel"), Optional.ofNullable(packet.getString("key", null)), packet.get("data"));
+				break;
+			case "refresh":
+				listener.refresh();
+				break;
+			case "reload":
+				listener.reload();
+				break;
+			default:
+				Io.LOG.warning("Unknown cluster message type {0}", packet.getString("type"));
+				break;
+			}
+		}
+		catch(RuntimeException re) {
+			Io.LOG.error("Failed to deliver cluster message.", re);
+		}
+	}
+
+	private void prune(long now) {
+		if(now - lastPrune > 60000) {
+			lastPrune = now;
+			streams.values().removeIf(s -> now - s.lastSeen > STREAM_EXPIRY);
+		}
+	}
+}
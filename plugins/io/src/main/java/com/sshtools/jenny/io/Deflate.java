@@ -0,0 +1,101 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses the frames sent to a single socket using raw deflate, in the same
+ * way as the websocket permessage-deflate extension. Each frame is ended with
+ * a sync flush, so the browser can inflate it as soon as it arrives.
+ * <p>
+ * With context takeover, the compressor carries its window from one frame to
+ * the next, so repeated content such as JSON keys costs almost nothing after
+ * the first time. Without it, every frame starts afresh, using less memory
+ * per socket.
+ * <p>
+ * A compressed frame is a binary frame starting with {@link #CONTINUE} or
+ * {@link #RESET}, followed by the deflated payload. The inflated payload is a
+ * 4 byte length followed by the original frame. Binary CBOR frames always
+ * start with an array header, so cannot be mistaken for compressed frames.
+ * <p>
+ * Only used from the socket's flush task, so is not thread safe.
+ */
+final class Deflate {
+
+	/**
+	 * Settings shared by all sockets.
+	 */
+	record Settings(boolean enabled, int level, boolean contextTakeover, int minSize) {
+	}
+
+	final static byte CONTINUE = 1;
+	final static byte RESET = 2;
+
+	private final Settings settings;
+	private final Deflater deflater;
+	private final byte[] buf = new byte[8192];
+	private boolean started;
+
+	Deflate(Settings settings) {
+		this.settings = settings;
+		this.deflater = new Deflater(settings.level, true);
+	}
+
+	/**
+	 * Get whether a payload is worth compressing.
+	 *
+	 * @param size uncompressed size
+	 * @return compress
+	 */
+	boolean compress(int size) {
+		return size >= settings.minSize;
+	}
+
+	ByteBuffer compress(byte[] payload) {
+		var out = new ByteArrayOutputStream(Math.max(64, payload.length / 2));
+		out.write(settings.contextTakeover && started ? CONTINUE : RESET);
+
+		var len = new byte[] { (byte)(payload.length >> 24), (byte)(payload.length >> 16), (byte)(payload.length >> 8), (byte)payload.length };
+		deflate(len, out);
+		deflate(payload, out);
+		int n;
+		while((n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH)) > 0) {
+			out.write(buf, 0, n);
+		}
+
+		if(settings.contextTakeover)
+			started = true;
+		else
+			deflater.reset();
+
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	void close() {
+		deflater.end();
+	}
+
+	private void deflate(byte[] data, ByteArrayOutputStream out) {
+		deflater.setInput(data);
+		while(!deflater.needsInput()) {
+			var n = deflater.deflate(buf, 0, buf.length, Deflater.NO_FLUSH);
+			out.write(buf, 0, n);
+		}
+	}
+}
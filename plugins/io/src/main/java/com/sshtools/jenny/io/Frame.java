@@ -0,0 +1,308 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+
+/**
+ * A single message to a browser, that may be encoded either as JSON text or
+ * as compact CBOR. Each encoding is only produced once, however many sockets
+ * the frame is sent to.
+ * <p>
+ * In CBOR, a message is an array whose first element is the type code, and
+ * channels are referred to by the integer id the server assigns them. A batch
+ * of messages is an array of such arrays.
+ */
+final class Frame {
+
+	/**
+	 * Wire encodings, negotiated using the websocket subprotocol.
+	 */
+	enum Encoding {
+		JSON("monitor"), CBOR("jenny.cbor");
+
+		private final String protocol;
+
+		Encoding(String protocol) {
+			this.protocol = protocol;
+		}
+
+		String protocol() {
+			return protocol;
+		}
+
+		/**
+		 * Suffix added to a protocol to request compressed frames.
+		 */
+		final static String DEFLATE = "+deflate";
+
+		static Encoding ofProtocol(String protocol) {
+			return protocol != null && protocol.startsWith(CBOR.protocol) ? CBOR : JSON;
+		}
+
+		static boolean deflated(String protocol) {
+			return protocol != null && protocol.endsWith(DEFLATE);
+		}
+	}
+
+	final static int MESSAGE = 0;
+	final static int RELOAD = 1;
+	final static int REFRESH = 2;
+	final static int CHANNEL = 3;
+	final static int SUBSCRIBE = 4;
+	final static int UNSUBSCRIBE = 5;
+	final static int SESSION = 6;
+	final static int SEQ = 7;
+	final static int HELLO = 8;
+	final static int REQUEST = 9;
+	final static int RESPONSE = 10;
+
+	private final int type;
+	private final String name;
+	private final long number;
+	private final JsonValue data;
+	private final long ref;
+	private final String error;
+
+	private volatile String text;
+	private volatile byte[] binary;
+
+	private Frame(int type, String name, long number, JsonValue data) {
+		this(type, name, number, data, 0, null);
+	}
+
+	private Frame(int type, String name, long number, JsonValue data, long ref, String error) {
+		this.type = type;
+		this.name = name;
+		this.number = number;
+		this.data = data;
+		this.ref = ref;
+		this.error = error;
+	}
+
+	static Frame message(String channel, int channelId, JsonValue data) {
+		return new Frame(MESSAGE, channel, channelId, data);
+	}
+
+	static Frame reload() {
+		return new Frame(RELOAD, null, 0, null);
+	}
+
+	static Frame refresh() {
+		return new Frame(REFRESH, null, 0, null);
+	}
+
+	/**
+	 * Tells a browser using the compact encoding the id of a channel, before any
+	 * messages for it are sent.
+	 *
+	 * @param channel channel
+	 * @param channelId id
+	 * @return frame
+	 */
+	static Frame channel(String channel, int channelId) {
+		return new Frame(CHANNEL, channel, channelId, null);
+	}
+
+	/**
+	 * The reply to a request from a browser.
+	 *
+	 * @param channel channel
+	 * @param channelId channel id
+	 * @param requestId id the browser gave the request
+	 * @param data result
+	 * @return frame
+	 */
+	static Frame response(String channel, int channelId, long requestId, JsonValue data) {
+		return new Frame(RESPONSE, channel, channelId, data, requestId, null);
+	}
+
+	/**
+	 * The reply to a request from a browser that failed.
+	 *
+	 * @param channel channel
+	 * @param channelId channel id
+	 * @param requestId id the browser gave the request
+	 * @param error error message
+	 * @return frame
+	 */
+	static Frame error(String channel, int channelId, long requestId, String error) {
+		return new Frame(RESPONSE, channel, channelId, JsonValue.NULL, requestId, error);
+	}
+
+	/**
+	 * Tells a browser its session id, and whether an earlier session was
+	 * resumed.
+	 *
+	 * @param id session id
+	 * @param resumed resumed
+	 * @return frame
+	 */
+	static Frame session(String id, boolean resumed) {
+		return new Frame(SESSION, id, resumed ? 1 : 0, null);
+	}
+
+	/**
+	 * Tells a browser the sequence number of the next counted frame. Each
+	 * counted frame after that is numbered one more than the last.
+	 *
+	 * @param seq sequence number
+	 * @return frame
+	 */
+	static Frame seq(long seq) {
+		return new Frame(SEQ, null, seq, null);
+	}
+
+	/**
+	 * Get the channel, or <code>null</code> if this is a control message.
+	 *
+	 * @return channel
+	 */
+	String channel() {
+		return type == MESSAGE ? name : null;
+	}
+
+	/**
+	 * Get whether this frame is given a sequence number, and so may be replayed.
+	 *
+	 * @return counted
+	 */
+	boolean counted() {
+		return type != SESSION && type != SEQ;
+	}
+
+	int size(Encoding encoding) {
+		return encoding == Encoding.CBOR ? binary().length : text().length();
+	}
+
+	String text() {
+		var t = text;
+		if(t == null) {
+			var bldr = Json.createObjectBuilder();
+			switch(type) {
+			case MESSAGE:
+				bldr.add("type", "message").add("channel", name).add("data", data);
+				break;
+			case RELOAD:
+				bldr.add("type", "reload");
+				break;
+			case REFRESH:
+				bldr.add("type", "refresh");
+				break;
+			case SESSION:
+				bldr.add("type", "session").add("id", name).add("resumed", number == 1);
+				break;
+			case SEQ:
+				bldr.add("type", "seq").add("seq", number);
+				break;
+			case RESPONSE:
+				bldr.add("type", "response").add("channel", name).add("id", ref).add("data", data);
+				if(error != null)
+					bldr.add("error", error);
+				break;
+			default:
+				bldr.add("type", "channel").add("channel", name).add("id", number);
+				break;
+			}
+			text = t = bldr.build().toString();
+		}
+		return t;
+	}
+
+	byte[] binary() {
+		var b = binary;
+		if(b == null) {
+			var out = new ByteArrayOutputStream();
+			switch(type) {
+			case MESSAGE:
+				Cbor.header(Cbor.ARRAY, 3, out);
+				Cbor.integer(type, out);
+				Cbor.integer(number, out);
+				Cbor.encode(data, out);
+				break;
+			case CHANNEL:
+				Cbor.header(Cbor.ARRAY, 3, out);
+				Cbor.integer(type, out);
+				Cbor.integer(number, out);
+				Cbor.text(name, out);
+				break;
+			case SESSION:
+				Cbor.header(Cbor.ARRAY, 3, out);
+				Cbor.integer(type, out);
+				Cbor.text(name, out);
+				Cbor.encode(number == 1 ? JsonValue.TRUE : JsonValue.FALSE, out);
+				break;
+			case SEQ:
+				Cbor.header(Cbor.ARRAY, 2, out);
+				Cbor.integer(type, out);
+				Cbor.integer(number, out);
+				break;
+			case RESPONSE:
+				Cbor.header(Cbor.ARRAY, error == null ? 4 : 5, out);
+				Cbor.integer(type, out);
+				Cbor.integer(number, out);
+				Cbor.integer(ref, out);
+				Cbor.encode(data, out);
+				if(error != null)
+					Cbor.text(error, out);
+				break;
+			default:
+				Cbor.header(Cbor.ARRAY, 1, out);
+				Cbor.integer(type, out);
+				break;
+			}
+			binary = b = out.toByteArray();
+		}
+		return b;
+	}
+
+	/**
+	 * Join several frames into one batch.
+	 *
+	 * @param frames frames
+	 * @return batch
+	 */
+	static String text(List<Frame> frames) {
+		if(frames.size() == 1)
+			return frames.get(0).text();
+		var b = new StringBuilder("[");
+		for(int i = 0; i < frames.size(); i++) {
+			if(i > 0)
+				b.append(',');
+			b.append(frames.get(i).text());
+		}
+		return b.append(']').toString();
+	}
+
+	/**
+	 * Join several frames into one batch.
+	 *
+	 * @param frames frames
+	 * @return batch
+	 */
+	static byte[] binary(List<Frame> frames) {
+		if(frames.size() == 1)
+			return frames.get(0).binary();
+		var out = new ByteArrayOutputStream();
+		Cbor.header(Cbor.ARRAY, frames.size(), out);
+		frames.forEach(f -> out.writeBytes(f.binary()));
+		return out.toByteArray();
+	}
+}
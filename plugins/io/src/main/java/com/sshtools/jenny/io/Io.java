@@ -15,20 +15,43 @@
  */
 package com.sshtools.jenny.io;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
 import javax.json.JsonObject;
+import javax.json.JsonReaderFactory;
+import javax.json.JsonString;
 import javax.json.JsonValue;
 
 import com.sshtools.bootlace.api.Logs;
@@ -36,8 +59,18 @@ import com.sshtools.bootlace.api.Logs.Category;
 import com.sshtools.bootlace.api.Logs.Log;
 import com.sshtools.bootlace.api.Plugin;
 import com.sshtools.bootlace.api.PluginContext;
+import com.sshtools.jenny.api.Api;
+import com.sshtools.jenny.api.Metrics.Metric;
+import com.sshtools.jenny.config.Config;
+import com.sshtools.jenny.io.Frame.Encoding;
+import com.sshtools.jenny.web.KeyedScheduledExecutorService.Priority;
 import com.sshtools.jenny.web.Web;
 import com.sshtools.jenny.web.WebModule;
+import com.sshtools.jini.config.INISet;
+import com.sshtools.uhttpd.UHTTPD.Method;
+import com.sshtools.uhttpd.UHTTPD.Session;
+import com.sshtools.uhttpd.UHTTPD.Status;
+import com.sshtools.uhttpd.UHTTPD.Transaction;
 import com.sshtools.uhttpd.UHTTPD.WebSocket;
 import com.sshtools.uhttpd.UHTTPD.WebSocketBuilder;
 import com.sshtools.uhttpd.UHTTPD.WebSocketHandler;
@@ -46,9 +79,24 @@ public class Io implements Plugin {
 	final static Log LOG = Logs.of(Category.ofName(Io.class));
 	
 	public final static WebModule MODULE_IO = WebModule.of("/io/io.js", Io.class, "io.js");
-
-	private record SocketChannelKey(WebSocket socket, String channel) {
+	
+	public final static String OUTBOUND = "outbound";
+	public final static String ENCODING = "encoding";
+	public final static String COMPRESSION = "compression";
+	public final static String CLUSTER = "cluster";
+	public final static String REQUESTS = "requests";
+	public final static String SSE = "sse";
+	
+	private final static String LINK_HEADER = "X-Io-Link";
+	
+	/**
+	 * The built in cluster transports.
+	 */
+	public enum ClusterTransport {
+		NONE, LOOPBACK, MULTICAST
 	}
+	
+	private final static JsonReaderFactory READERS = Json.createReaderFactory(Map.of());
 
 	public interface Contributor extends Closeable {
 		Function<Sender, IoChannel> channelFactory();
@@ -57,47 +105,158 @@ public class Io implements Plugin {
 		void close();
 	}
 
+	/**
+	 * What to do when a browser is not receiving messages as fast as they are
+	 * being sent, and its queue is full.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Drop the oldest waiting channel messages. Control messages, such as
+		 * channel ids and responses, are never dropped. Messages sent with a
+		 * key are always reduced to the latest for each key, whatever the
+		 * policy.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Close the socket. The browser will reconnect and subscribe again.
+		 */
+		DISCONNECT
+	}
+
+	/**
+	 * Statistics about the messages sent to a single browser.
+	 *
+	 * @param queued messages waiting to be sent
+	 * @param queuedBytes size of messages waiting to be sent
+	 * @param sent messages sent
+	 * @param dropped messages dropped because the queue was full, or the socket was closed
+	 * @param coalesced messages replaced by a later message before being sent
+	 * @param congested whether the queue is more than half full
+	 */
+	public record OutboundStats(int queued, long queuedBytes, long sent, long dropped, long coalesced, boolean congested) {
+		public final static OutboundStats EMPTY = new OutboundStats(0, 0, 0, 0, 0, false);
+	}
+
+	/**
+	 * Statistics about a single channel, across all browsers.
+	 *
+	 * @param channel channel
+	 * @param subscribers browsers currently subscribed
+	 * @param sent messages written to browsers
+	 * @param sentBytes encoded size of messages written to browsers, before any compression
+	 * @param received messages received from browsers
+	 * @param requests requests received from browsers
+	 * @param handlerTime time the contributor spent handling messages and requests
+	 */
+	public record ChannelStats(String channel, int subscribers, long sent, long sentBytes, long received, long requests, Duration handlerTime) {
+	}
+
+	/**
+	 * Statistics about all browsers.
+	 *
+	 * @param websockets open websockets
+	 * @param streams open event streams
+	 * @param sessions sessions, including those waiting to be resumed
+	 * @param detached sessions waiting to be resumed
+	 * @param queued messages waiting to be sent
+	 * @param queuedBytes size of messages waiting to be sent
+	 * @param channels per channel statistics
+	 */
+	public record IoStats(int websockets, int streams, int sessions, int detached, long queued, long queuedBytes, List<ChannelStats> channels) {
+	}
+
 	public interface Sender {
 		void send(JsonValue data);
+		
+		/**
+		 * Get statistics about messages sent to this sender's browser. A
+		 * producer may use {@link OutboundStats#congested()} to send less often.
+		 * 
+		 * @return stats
+		 */
+		default OutboundStats stats() {
+			return OutboundStats.EMPTY;
+		}
+		
+		/**
+		 * Send data that replaces any earlier data sent with the same key that
+		 * has not yet been delivered, such as the progress of a task.
+		 * 
+		 * @param key key
+		 * @param data data
+		 */
+		default void send(String key, JsonValue data) {
+			send(data);
+		}
 	}
 	
 	private final static class SenderImpl implements Sender {
-		private final WebSocket socket;
+		private final Outbound outbound;
 		private final String channel;
+		private final int channelId;
 		
-		SenderImpl(WebSocket socket, String channel) {
-			this.socket =socket;
+		SenderImpl(Outbound outbound, String channel, int channelId) {
+			this.outbound = outbound;
 			this.channel = channel;
+			this.channelId = channelId;
 		}
 
 		@Override
 		public void send(JsonValue data) {
-			socket.send(Json.createObjectBuilder().
-					add("type", "message").
-					add("channel", channel).
-					add("data", data).
-					build().toString());
+			outbound.send(Optional.empty(), Frame.message(channel, channelId, data));
+		}
+
+		@Override
+		public void send(String key, JsonValue data) {
+			outbound.send(Optional.of(key), Frame.message(channel, channelId, data));
+		}
+
+		@Override
+		public OutboundStats stats() {
+			return outbound.stats();
 		}
 		
 	}
 
+	/**
+	 * Answers requests a browser makes on a channel. The result should be
+	 * returned without blocking, and completed when ready. If it fails, the
+	 * browser is only told the request failed, the cause is logged.
+	 */
+	@FunctionalInterface
+	public interface Responder {
+		CompletionStage<JsonValue> respond(JsonValue request);
+	}
+
 	private final static class IoChannelImpl implements IoChannel {
 
 		private Sender sender;
 		private Consumer<JsonValue> receiver;
 		private Optional<Consumer<IoChannel>> onUnsubscribe;
+		private Optional<Responder> responder;
 
-		private IoChannelImpl(Sender sender, Consumer<JsonValue> receiver, Consumer<IoChannel> onUnsubscribe) {
+		private IoChannelImpl(Sender sender, Consumer<JsonValue> receiver, Consumer<IoChannel> onUnsubscribe, Responder responder) {
 			super();
 			this.sender = sender;
 			this.receiver = receiver;
 			this.onUnsubscribe = Optional.ofNullable(onUnsubscribe);
+			this.responder = Optional.ofNullable(responder);
 		}
 
 		@Override
 		public void send(JsonValue data) {
 			sender.send(data);
 		}
+
+		@Override
+		public void send(String key, JsonValue data) {
+			sender.send(key, data);
+		}
+
+		@Override
+		public OutboundStats stats() {
+			return sender.stats();
+		}
 	}
 
 	public interface IoChannel extends Sender {
@@ -107,74 +266,713 @@ public class Io implements Plugin {
 		}
 		
 		public static IoChannel of(Sender sender, Consumer<JsonValue> receiver) {
-			return new IoChannelImpl(sender, receiver, null);
+			return new IoChannelImpl(sender, receiver, null, null);
 		}
 
 		public static IoChannel of(Sender sender, Consumer<JsonValue> receiver, Consumer<IoChannel> onUnsubscribe) {
-			return new IoChannelImpl(sender, receiver, onUnsubscribe);
+			return new IoChannelImpl(sender, receiver, onUnsubscribe, null);
+		}
+		
+		public static IoChannel responding(Sender sender, Responder responder) {
+			return new IoChannelImpl(sender, (e) -> {}, null, responder);
+		}
+		
+		public static IoChannel responding(Sender sender, Responder responder, Consumer<JsonValue> receiver, Consumer<IoChannel> onUnsubscribe) {
+			return new IoChannelImpl(sender, receiver, onUnsubscribe, responder);
 		}
 	}
 
-	private final List<WebSocket> webSockets;
 	private final Map<String, Contributor> contributors = new ConcurrentHashMap<>();
-	private final WebSocketHandler io;
+	private WebSocketHandler io;
 	private Web web;
-	private final Map<SocketChannelKey, IoChannel> channels = new ConcurrentHashMap<>();
+	private Api api;
+	private Optional<byte[]> clusterSecret = Optional.empty();
+	private final Subscriptions subscriptions = new Subscriptions();
+	private final Map<Link, Outbound> outbound = new ConcurrentHashMap<>();
+	private final Map<WebSocket, ByteArrayOutputStream> fragments = new ConcurrentHashMap<>();
+	private final Map<String, Integer> channelIds = new ConcurrentHashMap<>();
+	private final Map<Integer, String> channelNames = new ConcurrentHashMap<>();
+	private final AtomicInteger nextChannelId = new AtomicInteger();
+	private volatile Optional<Cluster> cluster = Optional.empty();
+	private INISet configSet;
+	private final Map<String, Outbound> sessions = new ConcurrentHashMap<>();
+	private final IoMetrics metrics = new IoMetrics();
+	private Outbound.Limits limits = new Outbound.Limits(50, 100, 1000, 1024 * 1024, OverflowPolicy.DROP_OLDEST, 64);
+	private Deflate.Settings compression = new Deflate.Settings(true, 6, true, 256);
+	private long resumeTimeout = 60;
+	private int maxRequests = 16;
+	private long requestTimeout = 30;
+	private boolean sse = true;
+	private long sseHeartbeat = 15;
+	private int sseMaxStreams = 100;
+	private int maxMessageSize = 1024 * 1024;
+	private final AtomicInteger sseStreams = new AtomicInteger();
+	private final Map<String, SseLink> sseLinks = new ConcurrentHashMap<>();
+
+	private void receive(String text, WebSocket websocket) {
+		if(text.length() > maxMessageSize) {
+			tooLarge(websocket);
+			return;
+		}
+		
+		try(var jr = READERS.createReader(new StringReader(text))) {
+			if(!(jr.readValue() instanceof JsonObject msg) || !(msg.get("type") instanceof JsonString type)) {
+				LOG.warning("Ignoring malformed I/O message.");
+				return;
+			}
+	
+			if (type.getString().equals("hello")) {
+				hello(Link.of(websocket), websocket.protocol(), msg);
+				return;
+			}
+			
+			var out = outbound.get(Link.of(websocket));
+			if(out != null)
+				dispatch(out, msg);
+		}
+		catch(JsonException | ClassCastException | NullPointerException e) {
+			malformed(e);
+		}
+	}
 
-	public Io() {
-		webSockets = new CopyOnWriteArrayList<>();
-		io = new WebSocketBuilder().onText(this::receive).onData((data, last, ws) -> {
-		}).onClose((code, text, ws) -> {
-			removeWebsocket(ws);
-		}).onOpen((ws) -> {
-			webSockets.add(ws);
-		}).build();
+	private void dispatch(Outbound out, JsonObject msg) {
+		var type = msg.getString("type");
+		if (type.equals("subscribe")) {
+			subscribe(out, msg.getString("channel"));
+		} else if (type.equals("unsubscribe")) {
+			unsubscribe(out, msg.getString("channel"));
+		} else if (type.equals("message")) {
+			message(out, msg.getString("channel"), msg.get("data"));
+		} else if (type.equals("request")) {
+			request(out, msg.getString("channel"), msg.getJsonNumber("id").longValue(), msg.get("data"));
+		}
 	}
 
-	private void removeWebsocket(WebSocket ws) {
-		channels.keySet().stream().filter(en -> en.socket.equals(ws)).collect(Collectors.toSet()).forEach(r -> channels.remove(r));
-		webSockets.remove(ws);
+	private void receive(ByteBuffer data, boolean last, WebSocket websocket) {
+		var frags = last ? fragments.remove(websocket) : fragments.computeIfAbsent(websocket, k -> new ByteArrayOutputStream());
+		var size = (frags == null ? 0 : frags.size()) + data.remaining();
+		if(size > maxMessageSize) {
+			fragments.remove(websocket);
+			tooLarge(websocket);
+			return;
+		}
+		
+		ByteBuffer buf;
+		if(frags == null) {
+			buf = data;
+		}
+		else {
+			frags.writeBytes(bytes(data));
+			if(!last)
+				return;
+			buf = ByteBuffer.wrap(frags.toByteArray());
+		}
+
+		try {
+			receive(Cbor.decode(buf), websocket);
+		}
+		catch(IllegalArgumentException | ClassCastException | IndexOutOfBoundsException | NullPointerException e) {
+			malformed(e);
+		}
+	}
+	
+	private void receive(JsonValue value, WebSocket websocket) {
+		if(!(value instanceof JsonArray msg) || msg.isEmpty() || !(msg.get(0) instanceof JsonNumber num)) {
+			LOG.warning("Ignoring malformed I/O message.");
+			return;
+		}
+		
+		var type = num.intValue();
+		if(type == Frame.HELLO) {
+			var session = msg.size() > 1 && msg.get(1) instanceof JsonString str ? Optional.of(str.getString()) : Optional.<String>empty();
+			if(msg.size() > 2 && msg.get(2) instanceof JsonNumber seq && seq.isIntegral())
+				hello(Link.of(websocket), websocket.protocol(), session, seq.longValue());
+			else
+				hello(Link.of(websocket), websocket.protocol(), Optional.empty(), 0);
+			return;
+		}
+		
+		var out = outbound.get(Link.of(websocket));
+		if(out == null)
+			return;
+		
+		switch(type) {
+		case Frame.SUBSCRIBE:
+			subscribe(out, msg.getString(1));
+			break;
+		case Frame.UNSUBSCRIBE:
+			channelName(msg.get(1)).ifPresent(channel -> unsubscribe(out, channel));
+			break;
+		case Frame.MESSAGE:
+			channelName(msg.get(1)).ifPresent(channel -> message(out, channel, msg.get(2)));
+			break;
+		case Frame.REQUEST:
+			channelName(msg.get(1)).ifPresent(channel -> request(out, channel, msg.getJsonNumber(2).longValue(), msg.get(3)));
+			break;
+		default:
+			LOG.warning("Unknown I/O message type {0}", type);
+			break;
+		}
+	}
+	
+	/**
+	 * A browser sent more than any genuine message could need. Rather than
+	 * keep reading, the socket is closed.
+	 */
+	private void tooLarge(WebSocket websocket) {
+		LOG.warning("Closing socket, message exceeds {0} bytes.", maxMessageSize);
+		Link.of(websocket).close();
+	}
+	
+	/**
+	 * A message that does not have the expected shape is dropped, rather than
+	 * failing whatever thread received it.
+	 */
+	private static void malformed(RuntimeException e) {
+		LOG.warning("Ignoring malformed I/O message. {0}", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
 	}
 
-	private void receive(String text, WebSocket websocket) {
+	private Outbound newSession() {
+		var out = new Outbound(web.keyedUiQueue(), limits, metrics, httpSession());
+		sessions.put(out.id(), out);
+		subscriptions.open(out);
+		return out;
+	}
 
-		var jr = Json.createReader(new StringReader(text));
-		var msg = jr.readObject();
-		var type = msg.getString("type");
+	private void socketOpened(WebSocket websocket) {
+		var out = newSession();
+		var link = Link.of(websocket);
+		outbound.put(link, out);
+		metrics.connected(IoMetrics.WEBSOCKET);
+		attach(out, link, websocket.protocol(), OptionalLong.empty());
+	}
 
-		if (type.equals("subscribe")) {
-			var channel = msg.getString("channel");
-			var contributor = contributors.get(channel);
-			if (contributor == null)
-				LOG.warning("No I/O contributor {0}", channel);
+	private void socketClosed(WebSocket websocket) {
+		fragments.remove(websocket);
+		var link = Link.of(websocket);
+		var out = outbound.remove(link);
+		if(out != null) {
+			metrics.disconnected(IoMetrics.WEBSOCKET);
+			detached(out, link);
+		}
+	}
+	
+	/**
+	 * A link has gone. If it was still the one attached to the session, the
+	 * session waits to be resumed.
+	 */
+	private void detached(Outbound out, Link link) {
+		if(!out.detach(link))
+			return;
+		if(resumeTimeout == 0 || out.closed())
+			discard(out);
+		else
+			expireLater(out, TimeUnit.SECONDS.toNanos(resumeTimeout));
+	}
+	
+	/**
+	 * The first message from a browser. If it names a session that may be
+	 * resumed, the new socket takes it over, along with its subscriptions, and
+	 * anything the browser missed is sent again. Otherwise the browser is given
+	 * the new session created when the socket opened, and must subscribe again.
+	 * <p>
+	 * The session may still be attached to an old connection the server has not
+	 * yet noticed is dead, in which case that connection is closed.
+	 */
+	private void hello(Link link, String protocol, JsonObject msg) {
+		/* A sequence that is missing or not a number means there is nothing to resume from */
+		if(msg.get("seq") instanceof JsonNumber seq && seq.isIntegral())
+			hello(link, protocol, Optional.ofNullable(msg.getString("session", null)), seq.longValue());
+		else
+			hello(link, protocol, Optional.empty(), 0);
+	}
+	
+	private void hello(Link link, String protocol, Optional<String> session, long seq) {
+		var current = outbound.get(link);
+		if(current == null)
+			return;
+		
+		var previous = resumable(session, current.owner()).filter(o -> o != current);
+		if(previous.isPresent()) {
+			var out = previous.get();
+			if(LOG.debug())
+				LOG.debug("Resuming session {0} from {1}", out.id(), seq);
+			outbound.put(link, out);
+			discard(current);
+			attach(out, link, protocol, OptionalLong.of(seq));
+			out.send(Optional.empty(), Frame.session(out.id(), true));
+		}
+		else {
+			current.send(Optional.empty(), Frame.session(current.id(), false));
+		}
+	}
+	
+	/**
+	 * Find a session that may be resumed. It must have been created under the 
+	 * same HTTP session, so knowing its id alone is not enough to take it over.
+	 */
+	private Optional<Outbound> resumable(Optional<String> session, Optional<Session> owner) {
+		return session.map(sessions::get).filter(o -> !o.closed()).filter(o -> {
+			if(o.ownedBy(owner))
+				return true;
+			LOG.warning("Refusing to resume I/O session {0} from a different HTTP session.", o.id());
+			return false;
+		});
+	}
+	
+	/**
+	 * Get the HTTP session of the request being handled, creating it if need be.
+	 */
+	private static Optional<Session> httpSession() {
+		try {
+			return Session.get(true);
+		}
+		catch(IllegalStateException ise) {
+			return Optional.empty();
+		}
+	}
+	
+	private void attach(Outbound out, Link link, String protocol, OptionalLong resumeFrom) {
+		var deflate = Encoding.deflated(protocol) ? Optional.of(new Deflate(compression)) : Optional.<Deflate>empty();
+		out.attach(link, Encoding.ofProtocol(protocol), deflate, resumeFrom);
+	}
+
+	/**
+	 * Fallback for browsers that cannot open a websocket, for example because
+	 * a proxy does not allow it. A <code>GET</code> opens an event stream that
+	 * frames are sent down as JSON, and <code>POST</code> sends messages up,
+	 * either a single message or an array of them.
+	 * <p>
+	 * The stream starts with a <code>link</code> event holding a token for the
+	 * stream, that posts must carry in a header. As with a websocket, the first
+	 * message posted is a <code>hello</code>, which may name a session to resume.
+	 * Neither ever appears in a URL, so cannot leak into logs.
+	 * <p>
+	 * Each stream holds a request thread for as long as it is open, so the
+	 * number open at once is limited.
+	 */
+	private void sse(Transaction tx) throws InterruptedException {
+		if(!sse) {
+			tx.responseCode(Status.NOT_FOUND);
+		}
+		else if(tx.method() == Method.POST) {
+			ssePost(tx);
+		}
+		else if(sseStreams.incrementAndGet() > sseMaxStreams) {
+			sseStreams.decrementAndGet();
+			if(LOG.debug())
+				LOG.debug("Refusing event stream, already {0} open.", sseMaxStreams);
+			tx.responseCode(Status.SERVICE_UNAVAILABLE);
+		}
+		else {
+			try {
+				tx.responseType("text/event-stream");
+				tx.header("Cache-Control", "no-cache");
+				tx.header("X-Accel-Buffering", "no");
+				
+				var link = new SseLink(tx.responseWriter());
+				var token = UUID.randomUUID().toString();
+				link.event("link", token);
+				
+				var out = newSession();
+				outbound.put(link, out);
+				sseLinks.put(token, link);
+				attach(out, link, Encoding.JSON.protocol(), OptionalLong.empty());
+				metrics.connected(IoMetrics.SSE);
+				try {
+					link.await(TimeUnit.SECONDS.toMillis(sseHeartbeat));
+				}
+				finally {
+					metrics.disconnected(IoMetrics.SSE);
+					sseLinks.remove(token);
+					link.close();
+					var current = outbound.remove(link);
+					if(current != null)
+						detached(current, link);
+				}
+			}
+			finally {
+				sseStreams.decrementAndGet();
+			}
+		}
+	}
+
+	private void ssePost(Transaction tx) {
+		/* Browsers always send an origin with a post, so anything else is not from our page */
+		if(!sameOrigin(tx)) {
+			tx.responseCode(Status.FORBIDDEN);
+			return;
+		}
+		
+		var link = tx.headerOr(LINK_HEADER).map(sseLinks::get);
+		var out = link.map(outbound::get);
+		if(out.isEmpty()) {
+			tx.responseCode(Status.NOT_FOUND);
+			return;
+		}
+		if(out.get().owner().isPresent() && !out.get().ownedBy(httpSession())) {
+			tx.responseCode(Status.FORBIDDEN);
+			return;
+		}
+		
+		try(var jr = READERS.createReader(tx.request().asStream())) {
+			var msg = jr.readValue();
+			if(msg instanceof JsonArray arr)
+				arr.forEach(m -> ssePosted(link.get(), m));
 			else
-				channels.put(new SocketChannelKey(websocket, channel), contributor.channelFactory().apply(new SenderImpl(websocket, channel)));
-		} else if (type.equals("unsubscribe")) {
-			var ch = channels.remove(new SocketChannelKey(websocket, msg.getString("channel")));
-			((IoChannelImpl)ch).onUnsubscribe.ifPresent(c -> c.accept(ch));
-		} else if (type.equals("message")) {
-			((IoChannelImpl)channels.get(new SocketChannelKey(websocket, msg.getString("channel")))).receiver.accept(msg.get("data"));
+				ssePosted(link.get(), msg);
+		}
+		catch(JsonException | ClassCastException | NullPointerException e) {
+			malformed(e);
+			tx.responseCode(Status.BAD_REQUEST);
+		}
+	}
+	
+	private void ssePosted(Link link, JsonValue value) {
+		if(!(value instanceof JsonObject msg) || !(msg.get("type") instanceof JsonString type)) {
+			LOG.warning("Ignoring malformed I/O message.");
+			return;
+		}
+		if(type.getString().equals("hello")) {
+			hello(link, Encoding.JSON.protocol(), msg);
+		}
+		else {
+			/* The hello may have switched the link to a resumed session */
+			var out = outbound.get(link);
+			if(out != null)
+				dispatch(out, msg);
+		}
+	}
+	
+	private static boolean sameOrigin(Transaction tx) {
+		var origin = tx.headerOr("Origin");
+		var host = tx.headerOr("Host");
+		if(origin.isEmpty() || host.isEmpty())
+			return false;
+		try {
+			var authority = URI.create(origin.get()).getRawAuthority();
+			return authority != null && authority.equalsIgnoreCase(host.get());
 		}
+		catch(IllegalArgumentException iae) {
+			return false;
+		}
+	}
+	
+	private void expireLater(Outbound out, long delay) {
+		web.keyedUiQueue().schedule(out, Priority.LOW, () -> {
+			if(out.closed())
+				return;
+			var detached = out.detachedFor();
+			if(detached == 0)
+				return;
+			
+			var timeout = TimeUnit.SECONDS.toNanos(resumeTimeout);
+			if(detached >= timeout)
+				discard(out);
+			else
+				/* Was resumed and detached again since this was scheduled */
+				expireLater(out, timeout - detached);
+		}, delay, TimeUnit.NANOSECONDS);
+	}
+	
+	private void discard(Outbound out) {
+		sessions.remove(out.id());
+		subscriptions.close(out);
+		out.close();
+	}
+
+	private void subscribe(Outbound out, String channel) {
+		var contributor = contributors.get(channel);
+		if (contributor == null)
+			LOG.warning("No I/O contributor {0}", channel);
+		else {
+			var id = channelId(channel);
+			if(out.encoding() == Encoding.CBOR) {
+				/* The browser must know the id before any messages for the channel arrive */
+				out.send(Optional.empty(), Frame.channel(channel, id));
+			}
+			if(subscriptions.channel(out, channel).isEmpty())
+				subscriptions.subscribe(out, channel, contributor.channelFactory().apply(new SenderImpl(out, channel, id)));
+		}
+	}
+
+	private void unsubscribe(Outbound out, String channel) {
+		subscriptions.unsubscribe(out, channel).ifPresent(ch -> 
+			((IoChannelImpl)ch).onUnsubscribe.ifPresent(c -> c.accept(ch)));
+	}
+
+	private void message(Outbound out, String channel, JsonValue data) {
+		subscriptions.channel(out, channel).ifPresent(ch -> {
+			metrics.received(channel);
+			var started = System.nanoTime();
+			try {
+				((IoChannelImpl)ch).receiver.accept(data);
+			}
+			finally {
+				metrics.handled(channel, System.nanoTime() - started);
+			}
+		});
+	}
+
+	private void request(Outbound out, String channel, long id, JsonValue data) {
+		/* Only channels that exist are given an id, so made up names cost nothing */
+		var responder = subscriptions.channel(out, channel).flatMap(ch -> ((IoChannelImpl)ch).responder);
+		if(responder.isEmpty()) {
+			out.send(Optional.empty(), Frame.error(channel, 0, id, "Channel does not accept requests."));
+			return;
+		}
+		var channelId = channelId(channel);
+		if(!out.beginRequest(maxRequests)) {
+			out.send(Optional.empty(), Frame.error(channel, channelId, id, "Too many requests."));
+			return;
+		}
+		
+		CompletionStage<JsonValue> result;
+		metrics.requested(channel);
+		var started = System.nanoTime();
+		try {
+			result = responder.get().respond(data);
+		}
+		catch(RuntimeException re) {
+			result = CompletableFuture.failedFuture(re);
+		}
+		finally {
+			/* Only time spent on this thread, a responder that completes later is not included */
+			metrics.handled(channel, System.nanoTime() - started);
+		}
+
+		/* The request is in progress until the responder finishes, even if the browser has given up */
+		result.whenComplete((res, err) -> out.endRequest());
+		
+		result.toCompletableFuture().copy().
+			orTimeout(requestTimeout, TimeUnit.SECONDS).
+			whenComplete((res, err) -> {
+				if(err == null) {
+					out.send(Optional.empty(), Frame.response(channel, channelId, id, res == null ? JsonValue.NULL : res));
+				}
+				else {
+					var cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+					if(cause instanceof TimeoutException) {
+						out.send(Optional.empty(), Frame.error(channel, channelId, id, "Timed out."));
+					}
+					else {
+						LOG.warning("Request on `{0}` failed.", channel, cause);
+						out.send(Optional.empty(), Frame.error(channel, channelId, id, "Request failed."));
+					}
+				}
+			});
+	}
+
+	private int channelId(String channel) {
+		return channelIds.computeIfAbsent(channel, k -> {
+			var id = nextChannelId.incrementAndGet();
+			channelNames.put(id, k);
+			return id;
+		});
+	}
+
+	private Optional<String> channelName(JsonValue value) {
+		if(value instanceof JsonNumber num)
+			return Optional.ofNullable(channelNames.get(num.intValue()));
+		else if(value instanceof JsonString str)
+			return Optional.of(str.getString());
+		else
+			return Optional.empty();
+	}
+
+	private static byte[] bytes(ByteBuffer data) {
+		var b = new byte[data.remaining()];
+		data.get(b);
+		return b;
 	}
 
 	public WebSocketHandler io() {
 		return io;
 	}
 
+	/**
+	 * Get statistics about all browsers and channels.
+	 *
+	 * @return stats
+	 */
+	public IoStats stats() {
+		int detached = 0;
+		long queued = 0;
+		long queuedBytes = 0;
+		for(var out : sessions.values()) {
+			if(out.detachedFor() > 0)
+				detached++;
+			var s = out.stats();
+			queued += s.queued();
+			queuedBytes += s.queuedBytes();
+		}
+		
+		var names = new TreeSet<>(metrics.channels());
+		names.addAll(subscriptions.channels());
+		return new IoStats(
+			metrics.connections(IoMetrics.WEBSOCKET),
+			metrics.connections(IoMetrics.SSE),
+			sessions.size(),
+			detached,
+			queued,
+			queuedBytes,
+			names.stream().map(n -> metrics.stats(n, subscriptions.subscribers(n).size())).toList());
+	}
+
+	private void collect(Consumer<Metric> sink) {
+		var stats = stats();
+		sink.accept(Metric.gauge("jenny_io_sessions", "Browser sessions.", Map.of("state", "attached"), stats.sessions() - stats.detached()));
+		sink.accept(Metric.gauge("jenny_io_sessions", "Browser sessions.", Map.of("state", "detached"), stats.detached()));
+		sink.accept(Metric.gauge("jenny_io_queued", "Messages waiting to be sent.", Map.of(), stats.queued()));
+		sink.accept(Metric.gauge("jenny_io_queued_bytes", "Size of messages waiting to be sent.", Map.of(), stats.queuedBytes()));
+		stats.channels().forEach(ch -> 
+			sink.accept(Metric.gauge("jenny_io_channel_subscribers", "Browsers subscribed to a channel.", Map.of("channel", ch.channel()), ch.subscribers())));
+		metrics.collect(sink);
+	}
+
 	@Override
 	public void open(PluginContext context) {
 		web = context.plugin(Web.class);
+		
+		configSet = context.plugin(Config.class).configBuilder("io", Io.class, "Io.schema.ini").build();
+		configSet.document().sectionOr(OUTBOUND).ifPresent(cfg -> {
+			limits = new Outbound.Limits(
+				cfg.getInt("batch-window", 50),
+				Math.max(1, cfg.getInt("max-batch", 100)),
+				Math.max(1, cfg.getInt("max-pending", 1000)),
+				Math.max(1, cfg.getLong("max-pending-bytes", 1024 * 1024)),
+				cfg.getEnum(OverflowPolicy.class, "overflow-policy", OverflowPolicy.DROP_OLDEST),
+				Math.max(0, cfg.getInt("replay-size", 64))
+			);
+			resumeTimeout = Math.max(0, cfg.getInt("resume-timeout", 60));
+		});
+		
+		var compact = configSet.document().sectionOr(ENCODING).map(cfg -> cfg.getBoolean("compact", true)).orElse(true);
+		configSet.document().sectionOr(ENCODING).ifPresent(cfg -> {
+			maxMessageSize = Math.max(1024, cfg.getInt("max-message-size", 1024 * 1024));
+		});
+		configSet.document().sectionOr(REQUESTS).ifPresent(cfg -> {
+			maxRequests = Math.max(1, cfg.getInt("max-in-flight", 16));
+			requestTimeout = Math.max(1, cfg.getInt("timeout", 30));
+		});
+		
+		configSet.document().sectionOr(SSE).ifPresent(cfg -> {
+			sse = cfg.getBoolean("enabled", true);
+			sseHeartbeat = Math.max(1, cfg.getInt("heartbeat", 15));
+			sseMaxStreams = Math.max(1, cfg.getInt("max-streams", 100));
+		});
+		
+		configSet.document().sectionOr(COMPRESSION).ifPresent(cfg -> {
+			compression = new Deflate.Settings(
+				cfg.getBoolean("enabled", true),
+				Math.min(9, Math.max(1, cfg.getInt("level", 6))),
+				cfg.getBoolean("context-takeover", true),
+				Math.max(0, cfg.getInt("min-size", 256))
+			);
+		});
+		
+		var protocols = new ArrayList<String>();
+		for(var enc : compact ? new Encoding[] { Encoding.CBOR, Encoding.JSON } : new Encoding[] { Encoding.JSON }) {
+			if(compression.enabled())
+				protocols.add(enc.protocol() + Encoding.DEFLATE);
+			protocols.add(enc.protocol());
+		}
+		
+		io = new WebSocketBuilder().
+			withProtocols(protocols.toArray(new String[0])).
+			onText(this::receive).
+			onData(this::receive).
+			onClose((code, text, ws) -> socketClosed(ws)).
+			onOpen(this::socketOpened).
+			build();
+		
+		api = context.plugin(Api.class);
+		configSet.document().sectionOr(CLUSTER).ifPresent(cfg -> {
+			clusterSecret = cfg.getOr("secret").filter(s -> !s.isBlank()).map(s -> s.getBytes(StandardCharsets.UTF_8));
+			switch(cfg.getEnum(ClusterTransport.class, "transport", ClusterTransport.NONE)) {
+			case LOOPBACK:
+				transport(new LoopbackTransport(cfg.get("group", "default")));
+				break;
+			case MULTICAST:
+				if(clusterSecret.isEmpty() && !cfg.getBoolean("insecure", false))
+					throw new IllegalStateException("The MULTICAST cluster transport needs a secret, unless insecure is set.");
+				try {
+					var nif = cfg.getOr("interface").map(n -> {
+						try {
+							return NetworkInterface.getByName(n);
+						} catch (SocketException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+					transport(new MulticastTransport(
+						InetAddress.getByName(cfg.get("group", "239.255.77.77")), 
+						cfg.getInt("port", 45677), 
+						nif,
+						cfg.getInt("ttl", 1)));
+				}
+				catch(UnknownHostException uhe) {
+					throw new UncheckedIOException(uhe);
+				}
+				break;
+			default:
+				break;
+			}
+		});
+		
 		context.autoClose(
+			api.metrics().register(this::collect),
 			web.modules(MODULE_IO),
 			web.router().route().
-				webSocket("/io/io", io).build()
+				webSocket("/io/io", io).
+				handle("/io/sse", this::sse).build()
 		);
 	}
 
+	@Override
+	public void close() {
+		sessions.values().forEach(Outbound::close);
+		sessions.clear();
+		cluster.ifPresent(Cluster::close);
+		cluster = Optional.empty();
+		if(configSet != null) {
+			configSet.close();
+		}
+	}
+
 	public WebModule webModule() {
 		return MODULE_IO;
 	}
 
+	/**
+	 * Use a transport to share broadcasts, refreshes and reloads with other
+	 * nodes of a cluster, replacing any transport already in use. Messages sent
+	 * directly to a subscriber's {@link Sender} are never shared. Packets are
+	 * authenticated using the configured cluster secret, if any.
+	 * 
+	 * @param transport transport
+	 */
+	public void transport(IoTransport transport) {
+		if(api == null)
+			throw new IllegalStateException("Not open.");
+		cluster.ifPresent(Cluster::close);
+		cluster = Optional.of(new Cluster(transport, new Cluster.Listener() {
+			@Override
+			public void broadcast(String channel, Optional<String> key, JsonValue data) {
+				broadcastLocal(channel, key, data);
+			}
+
+			@Override
+			public void refresh() {
+				sendAll(Frame.refresh());
+			}
+
+			@Override
+			public void reload() {
+				sendAll(Frame.reload());
+			}
+		}, clusterSecret, api.globalTimerQueue()));
+	}
+
 	/**
 	 * Send notification message.
 	 * 
@@ -186,38 +984,56 @@ public class Io implements Plugin {
 	 * @return
 	 */
 	public void broadcast(String channel, JsonObject msg) {
-		channels.keySet().stream().
-			filter(k -> k.channel().equals(channel)).
-			forEach(k -> {
-				var jmsg = Json.createObjectBuilder().
-					add("type", "message").
-					add("channel", channel).
-					add("data", msg).
-					build().toString();
-				
-				if(LOG.debug())
-					LOG.debug("Broadcast: {0}", jmsg);
-				
-				k.socket().send(jmsg);
-			});
+		broadcast(channel, Optional.empty(), msg);
+	}
+
+	/**
+	 * Broadcast a message that replaces any earlier message broadcast with the
+	 * same key that has not yet been delivered to each subscriber.
+	 * 
+	 * @param channel channel
+	 * @param key key
+	 * @param msg message
+	 */
+	public void broadcast(String channel, String key, JsonObject msg) {
+		broadcast(channel, Optional.of(key), msg);
+	}
+	
+	private void broadcast(String channel, Optional<String> key, JsonObject msg) {
+		broadcastLocal(channel, key, msg);
+		cluster.ifPresent(c -> c.broadcast(channel, key, msg));
+	}
+	
+	private void broadcastLocal(String channel, Optional<String> key, JsonValue msg) {
+		var subscribers = subscriptions.subscribers(channel);
+		if(subscribers.isEmpty())
+			return;
+		
+		var frame = Frame.message(channel, channelId(channel), msg);
+		if(LOG.debug())
+			LOG.debug("Broadcast: {0}", frame.text());
+		
+		subscribers.forEach(out -> out.send(key, frame));
 	}
 
 	/**
 	 * Generic refresh
 	 */
 	public void refresh() {
-		webSockets.forEach(ws -> ws.send(Json.createObjectBuilder().
-				add("type", "refresh").
-				build().toString()));
+		sendAll(Frame.refresh());
+		cluster.ifPresent(Cluster::refresh);
 	}
 
 	/**
 	 * Generic reload
 	 */
 	public void reload() {
-		webSockets.forEach(ws -> ws.send(Json.createObjectBuilder().
-				add("type", "reload").
-				build().toString()));
+		sendAll(Frame.reload());
+		cluster.ifPresent(Cluster::reload);
+	}
+	
+	private void sendAll(Frame frame) {
+		sessions.values().forEach(out -> out.send(Optional.empty(), frame));
 	}
 
 	public Contributor contributor(String channel, Function<Sender, IoChannel> channelFactory) {
@@ -0,0 +1,155 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.sshtools.jenny.api.Histogram;
+import com.sshtools.jenny.api.Metrics.Metric;
+import com.sshtools.jenny.io.Io.ChannelStats;
+
+/**
+ * Counters for all {@link Io} traffic, kept across sessions so nothing is lost
+ * when a session ends. Messages and bytes are counted per channel as they are
+ * actually written, so a channel that is coalesced or dropped is not
+ * over-counted, and the time contributors spend handling what browsers send
+ * is counted per channel too.
+ */
+final class IoMetrics {
+
+	final static String WEBSOCKET = "websocket";
+	final static String SSE = "sse";
+
+	private final static class Counters {
+		private final LongAdder sent = new LongAdder();
+		private final LongAdder sentBytes = new LongAdder();
+		private final LongAdder received = new LongAdder();
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder handlerNanos = new LongAdder();
+	}
+
+	private final static class Transport {
+		private final AtomicLong open = new AtomicLong();
+		private final LongAdder opened = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+	}
+
+	private final Map<String, Counters> channels = new ConcurrentHashMap<>();
+	private final Map<String, Transport> transports = Map.of(WEBSOCKET, new Transport(), SSE, new Transport());
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final Histogram latency = new Histogram(Histogram.LATENCY_SECONDS);
+
+	void connected(String transport) {
+		var t = transports.get(transport);
+		t.open.incrementAndGet();
+		t.opened.increment();
+	}
+
+	void disconnected(String transport) {
+		transports.get(transport).open.decrementAndGet();
+	}
+
+	int connections(String transport) {
+		return (int)transports.get(transport).open.get();
+	}
+
+	void wrote(String transport, long bytes) {
+		transports.get(transport).bytes.add(bytes);
+	}
+
+	void sent(String channel, long bytes) {
+		var c = counters(channel);
+		c.sent.increment();
+		c.sentBytes.add(bytes);
+	}
+
+	void received(String channel) {
+		counters(channel).received.increment();
+	}
+
+	void requested(String channel) {
+		counters(channel).requests.increment();
+	}
+
+	void handled(String channel, long nanos) {
+		counters(channel).handlerNanos.add(nanos);
+	}
+
+	void dropped(long count) {
+		dropped.add(count);
+	}
+
+	void coalesced(long count) {
+		coalesced.add(count);
+	}
+
+	/**
+	 * Record how long the oldest message in a batch waited before it was
+	 * written.
+	 *
+	 * @param nanos wait
+	 */
+	void latency(long nanos) {
+		latency.observe(seconds(nanos));
+	}
+
+	ChannelStats stats(String channel, int subscribers) {
+		var c = channels.get(channel);
+		return c == null
+			? new ChannelStats(channel, subscribers, 0, 0, 0, 0, Duration.ZERO)
+			: new ChannelStats(channel, subscribers, c.sent.sum(), c.sentBytes.sum(), c.received.sum(), c.requests.sum(), Duration.ofNanos(c.handlerNanos.sum()));
+	}
+
+	Set<String> channels() {
+		return channels.keySet();
+	}
+
+	void collect(Consumer<Metric> metrics) {
+		transports.forEach((name, t) -> {
+			var labels = Map.of("transport", name);
+			metrics.accept(Metric.gauge("jenny_io_connections", "Open browser connections.", labels, t.open.get()));
+			metrics.accept(Metric.counter("jenny_io_connections_total", "Browser connections opened.", labels, t.opened.sum()));
+			metrics.accept(Metric.counter("jenny_io_written_bytes_total", "Bytes written to browsers, after any compression.", labels, t.bytes.sum()));
+		});
+		metrics.accept(Metric.counter("jenny_io_dropped_total", "Messages dropped because a browser was not keeping up.", Map.of(), dropped.sum()));
+		metrics.accept(Metric.counter("jenny_io_coalesced_total", "Messages replaced by a later message before being sent.", Map.of(), coalesced.sum()));
+		latency.collect("jenny_io_send_latency_seconds", "Time the oldest message in each batch waited until written.", Map.of(), metrics);
+
+		channels.forEach((channel, c) -> {
+			var labels = Map.of("channel", channel);
+			metrics.accept(Metric.counter("jenny_io_channel_sent_total", "Messages written to browsers.", labels, c.sent.sum()));
+			metrics.accept(Metric.counter("jenny_io_channel_sent_bytes_total", "Encoded size of messages written to browsers, before any compression.", labels, c.sentBytes.sum()));
+			metrics.accept(Metric.counter("jenny_io_channel_received_total", "Messages received from browsers.", labels, c.received.sum()));
+			metrics.accept(Metric.counter("jenny_io_channel_requests_total", "Requests received from browsers.", labels, c.requests.sum()));
+			metrics.accept(Metric.counter("jenny_io_channel_handler_seconds_total", "Time contributors spent handling messages and requests.", labels, seconds(c.handlerNanos.sum())));
+		});
+	}
+
+	private Counters counters(String channel) {
+		return channels.computeIfAbsent(channel, k -> new Counters());
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1_000_000_000d;
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+/**
+ * Carries {@link Io} broadcasts between the nodes of a cluster. A transport
+ * only needs to make a best effort to deliver each packet to every other node,
+ * duplicates, losses and reordering are dealt with by {@link Io}.
+ */
+public interface IoTransport extends Closeable {
+
+	/**
+	 * Start receiving packets from other nodes.
+	 *
+	 * @param receiver receives packets
+	 */
+	void start(Consumer<byte[]> receiver);
+
+	/**
+	 * Send a packet to all other nodes.
+	 *
+	 * @param packet packet
+	 */
+	void send(byte[] packet);
+
+	@Override
+	void close();
+}
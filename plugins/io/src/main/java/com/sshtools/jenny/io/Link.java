@@ -0,0 +1,76 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.nio.ByteBuffer;
+
+import com.sshtools.uhttpd.UHTTPD.WebSocket;
+
+/**
+ * The connection frames for a session are currently sent down, either a
+ * websocket or an event stream.
+ */
+interface Link {
+
+	/**
+	 * A link over a websocket. Links for the same socket are equal.
+	 */
+	record WebSocketLink(WebSocket socket) implements Link {
+
+		@Override
+		public void send(String text) {
+			socket.send(text);
+		}
+
+		@Override
+		public void send(ByteBuffer data) {
+			socket.send(data);
+		}
+
+		@Override
+		public String transport() {
+			return IoMetrics.WEBSOCKET;
+		}
+
+		@Override
+		public void close() {
+			try {
+				socket.close();
+			}
+			catch(Exception e) {
+				if(Io.LOG.debug())
+					Io.LOG.debug("Failed to close socket.", e);
+			}
+		}
+	}
+
+	static Link of(WebSocket socket) {
+		return new WebSocketLink(socket);
+	}
+
+	/**
+	 * Get the name of the transport, used to label metrics.
+	 *
+	 * @return transport
+	 */
+	String transport();
+
+	void send(String text);
+
+	void send(ByteBuffer data);
+
+	void close();
+}
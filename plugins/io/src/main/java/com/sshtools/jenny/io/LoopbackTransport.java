@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+
+/**
+ * An {@link IoTransport} that connects nodes running in the same JVM, for
+ * testing and development. All transports created with the same group name
+ * receive each other's packets.
+ */
+public final class LoopbackTransport implements IoTransport {
+
+	private final static Map<String, Set<LoopbackTransport>> GROUPS = new ConcurrentHashMap<>();
+
+	private final String group;
+	private Consumer<byte[]> receiver;
+
+	public LoopbackTransport() {
+		this("default");
+	}
+
+	public LoopbackTransport(String group) {
+		this.group = group;
+	}
+
+	@Override
+	public void start(Consumer<byte[]> receiver) {
+		this.receiver = receiver;
+		GROUPS.computeIfAbsent(group, k -> new CopyOnWriteArraySet<>()).add(this);
+	}
+
+	@Override
+	public void send(byte[] packet) {
+		GROUPS.getOrDefault(group, Set.of()).forEach(t -> {
+			if(t != this)
+				t.receiver.accept(packet.clone());
+		});
+	}
+
+	@Override
+	public void close() {
+		GROUPS.computeIfPresent(group, (k, v) -> {
+			v.remove(this);
+			return v.isEmpty() ? null : v;
+		});
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * An {@link IoTransport} that sends packets to a UDP multicast group, so
+ * needs no other services. All nodes must use the same group and port, and be
+ * on a network that routes multicast between them.
+ * <p>
+ * A packet must fit in a single datagram, larger packets are dropped.
+ */
+public final class MulticastTransport implements IoTransport {
+
+	/**
+	 * The largest packet that can be sent.
+	 */
+	public final static int MAX_PACKET = 65507;
+
+	private final InetSocketAddress group;
+	private final Optional<NetworkInterface> networkInterface;
+	private final MulticastSocket socket;
+	private Thread thread;
+	private volatile boolean closed;
+
+	public MulticastTransport(InetAddress group, int port, Optional<NetworkInterface> networkInterface, int ttl) {
+		this.group = new InetSocketAddress(group, port);
+		this.networkInterface = networkInterface;
+		try {
+			socket = new MulticastSocket(port);
+			socket.setTimeToLive(ttl);
+			if(networkInterface.isPresent())
+				socket.setNetworkInterface(networkInterface.get());
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	@Override
+	public void start(Consumer<byte[]> receiver) {
+		try {
+			socket.joinGroup(group, networkInterface.orElse(null));
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+
+		thread = new Thread(() -> {
+			var buf = new byte[MAX_PACKET];
+			while(!closed) {
+				var pkt = new DatagramPacket(buf, buf.length);
+				try {
+					socket.receive(pkt);
+					receiver.accept(Arrays.copyOfRange(pkt.getData(), pkt.getOffset(), pkt.getOffset() + pkt.getLength()));
+				}
+				catch(IOException ioe) {
+					if(!closed)
+						Io.LOG.error("Failed to receive cluster packet.", ioe);
+				}
+				catch(RuntimeException re) {
+					Io.LOG.error("Failed to handle cluster packet.", re);
+				}
+			}
+		}, "IoMulticast");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void send(byte[] packet) {
+		if(packet.length > MAX_PACKET) {
+			Io.LOG.warning("Cluster packet of {0} bytes is too large for multicast, dropped.", packet.length);
+			return;
+		}
+		try {
+			socket.send(new DatagramPacket(packet, packet.length, group));
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			socket.leaveGroup(group, networkInterface.orElse(null));
+		}
+		catch(IOException ioe) {
+			if(Io.LOG.debug())
+				Io.LOG.debug("Failed to leave multicast group.", ioe);
+		}
+		finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,483 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.sshtools.jenny.io.Frame.Encoding;
+import com.sshtools.jenny.io.Io.OutboundStats;
+import com.sshtools.jenny.io.Io.OverflowPolicy;
+import com.sshtools.jenny.web.KeyedScheduledExecutorService;
+import com.sshtools.jenny.web.KeyedScheduledExecutorService.Priority;
+import com.sshtools.uhttpd.UHTTPD.Session;
+
+/**
+ * The frames waiting to be sent to a single browser session. Messages are
+ * collected for a short window and then sent together as a single array
+ * frame. A message sent with a key replaces any message with the same channel
+ * and key that is still waiting, so for example only the latest progress of a
+ * job is sent.
+ * <p>
+ * Frames are encoded as JSON text or CBOR, and optionally compressed,
+ * depending on the subprotocol the socket negotiated. Browsers that cannot
+ * use a websocket receive JSON over an event stream instead.
+ * <p>
+ * Flushes run on the UI queue, keyed by the session, so frames for one session
+ * are always sent in order, but a slow socket does not hold up any other.
+ * <p>
+ * The queue is bounded by both the number of messages and their total size.
+ * When a client cannot keep up and a limit is reached, the
+ * {@link OverflowPolicy} decides what to give up.
+ * <p>
+ * A session outlives its socket. While detached, messages wait as usual. Every
+ * frame sent is numbered, and the last few on each channel are kept, so when
+ * the browser reconnects and attaches a new socket, anything sent after the
+ * last frame it received is sent again. Only a connection made under the same
+ * HTTP session as the one that created it may resume it.
+ */
+final class Outbound {
+
+	/**
+	 * Limits and behaviour shared by all sessions.
+	 */
+	record Limits(long window, int maxBatch, int maxPending, long maxPendingBytes, OverflowPolicy policy, int replaySize) {
+	}
+
+	private record CoalesceKey(String channel, String key) {
+	}
+
+	private record Attachment(Link link, Encoding encoding, Optional<Deflate> deflate) {
+	}
+
+	private record Sent(long seq, Frame frame) {
+	}
+
+	private final String id = UUID.randomUUID().toString();
+	private final KeyedScheduledExecutorService queue;
+	private final Limits limits;
+	private final IoMetrics metrics;
+	private final Optional<Session> owner;
+	private final Map<Object, Frame> pending = new LinkedHashMap<>();
+	private Optional<Attachment> attachment = Optional.empty();
+	private long detachedAt = System.nanoTime();
+	private boolean scheduled;
+	private boolean closed;
+	private boolean warned;
+	private long bytes;
+	private long sent;
+	private long dropped;
+	private long coalesced;
+	private int requests;
+	private long queuedAt;
+
+	/* Only used from tasks keyed by this session */
+	private final Map<String, ArrayDeque<Sent>> history = new HashMap<>();
+	private long nextSeq = 1;
+
+	Outbound(KeyedScheduledExecutorService queue, Limits limits, IoMetrics metrics, Optional<Session> owner) {
+		this.queue = queue;
+		this.limits = limits;
+		this.metrics = metrics;
+		this.owner = owner;
+	}
+
+	/**
+	 * Get the HTTP session this session was created under, if there was one.
+	 *
+	 * @return owner
+	 */
+	Optional<Session> owner() {
+		return owner;
+	}
+
+	/**
+	 * Get whether this session was created under the given HTTP session. A
+	 * session created without one is owned by nobody.
+	 *
+	 * @param session HTTP session
+	 * @return owned
+	 */
+	boolean ownedBy(Optional<Session> session) {
+		return owner.isPresent() && owner.equals(session);
+	}
+
+	/**
+	 * Get the session id.
+	 *
+	 * @return id
+	 */
+	String id() {
+		return id;
+	}
+
+	/**
+	 * Get statistics about this queue.
+	 *
+	 * @return stats
+	 */
+	OutboundStats stats() {
+		synchronized(pending) {
+			return new OutboundStats(pending.size(), bytes, sent, dropped, coalesced, congested());
+		}
+	}
+
+	/**
+	 * Start sending to a link. If another link is still attached, for example
+	 * because the browser noticed its connection had gone before the server did,
+	 * it is closed.
+	 *
+	 * @param link link
+	 * @param encoding encoding
+	 * @param deflate compressor
+	 * @param resumeFrom if resuming, the last sequence number the browser received
+	 */
+	void attach(Link link, Encoding encoding, Optional<Deflate> deflate, OptionalLong resumeFrom) {
+		var att = new Attachment(link, encoding, deflate);
+		Optional<Link> previous;
+		synchronized(pending) {
+			if(closed)
+				throw new IllegalStateException("Closed.");
+			previous = attachment.map(Attachment::link).filter(l -> !l.equals(link));
+			attachment.ifPresent(this::release);
+			attachment = Optional.of(att);
+			bytes = pending.values().stream().mapToLong(f -> f.size(encoding)).sum();
+			/* Time spent detached is not send latency */
+			queuedAt = System.nanoTime();
+			scheduled = true;
+		}
+		previous.ifPresent(Link::close);
+		queue.execute(this, Priority.NORMAL, () -> {
+			resumeFrom.ifPresent(from -> replay(att, from));
+			flush();
+		});
+	}
+
+	/**
+	 * Stop sending to a link, if it is the current one. Messages will wait until
+	 * another link is attached.
+	 *
+	 * @param link link
+	 * @return whether the link was detached
+	 */
+	boolean detach(Link link) {
+		synchronized(pending) {
+			if(attachment.isEmpty() || !attachment.get().link.equals(link))
+				return false;
+			attachment.ifPresent(this::release);
+			attachment = Optional.empty();
+			detachedAt = System.nanoTime();
+			return true;
+		}
+	}
+
+	/**
+	 * Get how long this session has been without a link.
+	 *
+	 * @return nanoseconds, or zero when attached
+	 */
+	long detachedFor() {
+		synchronized(pending) {
+			return attachment.isPresent() ? 0 : System.nanoTime() - detachedAt;
+		}
+	}
+
+	/**
+	 * Get whether this session has been closed, and so cannot be resumed.
+	 *
+	 * @return closed
+	 */
+	boolean closed() {
+		synchronized(pending) {
+			return closed;
+		}
+	}
+
+	/**
+	 * Stop sending for good, and release the compressor once any flush in
+	 * progress is done.
+	 */
+	void close() {
+		synchronized(pending) {
+			closed = true;
+			pending.clear();
+			bytes = 0;
+			attachment.ifPresent(this::release);
+			attachment = Optional.empty();
+		}
+	}
+
+	/**
+	 * Start handling a request from the browser, unless too many are already in
+	 * progress.
+	 *
+	 * @param max maximum requests in progress
+	 * @return whether started
+	 */
+	boolean beginRequest(int max) {
+		synchronized(pending) {
+			if(requests >= max)
+				return false;
+			requests++;
+			return true;
+		}
+	}
+
+	/**
+	 * Finish handling a request from the browser.
+	 */
+	void endRequest() {
+		synchronized(pending) {
+			requests--;
+		}
+	}
+
+	/**
+	 * Get the encoding used for the current link.
+	 *
+	 * @return encoding
+	 */
+	Encoding encoding() {
+		synchronized(pending) {
+			return attachment.map(Attachment::encoding).orElse(Encoding.JSON);
+		}
+	}
+
+	/**
+	 * Queue a message.
+	 *
+	 * @param key key to coalesce with
+	 * @param frame message
+	 */
+	void send(Optional<String> key, Frame frame) {
+		Optional<Link> disconnect = Optional.empty();
+		synchronized(pending) {
+			if(closed) {
+				dropped++;
+				metrics.dropped(1);
+				return;
+			}
+
+			var encoding = attachment.map(Attachment::encoding).orElse(Encoding.JSON);
+			var k = key.<Object>map(kk -> new CoalesceKey(frame.channel(), kk)).orElseGet(Object::new);
+			/* Replaced messages move to the end, so they are never sent before anything queued earlier */
+			var was = pending.remove(k);
+			if(was != null) {
+				coalesced++;
+				metrics.coalesced(1);
+				bytes -= was.size(encoding);
+			}
+			else if(pending.isEmpty()) {
+				queuedAt = System.nanoTime();
+			}
+			pending.put(k, frame);
+			bytes += frame.size(encoding);
+
+			if(pending.size() > limits.maxPending || bytes > limits.maxPendingBytes) {
+				if(overflow(encoding)) {
+					disconnect = attachment.map(Attachment::link);
+					attachment.ifPresent(this::release);
+					attachment = Optional.empty();
+				}
+			}
+
+			if(disconnect.isEmpty()) {
+				if(closed || scheduled || attachment.isEmpty())
+					return;
+				scheduled = true;
+			}
+		}
+
+		if(disconnect.isPresent())
+			disconnect.get().close();
+		else if(limits.window == 0)
+			queue.execute(this, Priority.NORMAL, this::flush);
+		else
+			queue.schedule(this, Priority.NORMAL, this::flush, limits.window, TimeUnit.MILLISECONDS);
+	}
+
+	private void release(Attachment att) {
+		att.deflate.ifPresent(d -> queue.execute(this, Priority.NORMAL, d::close));
+	}
+
+	private boolean congested() {
+		return pending.size() > limits.maxPending / 2 || bytes > limits.maxPendingBytes / 2;
+	}
+
+	private boolean overflow(Encoding encoding) {
+		if(!warned) {
+			warned = true;
+			Io.LOG.warning("Client is not keeping up, {0} messages ({1} bytes) are waiting. Applying {2} policy.", pending.size(), bytes, limits.policy);
+		}
+
+		switch(limits.policy) {
+		case DISCONNECT:
+			closed = true;
+			dropped += pending.size();
+			metrics.dropped(pending.size());
+			pending.clear();
+			bytes = 0;
+			return true;
+		default:
+			dropOldest(encoding);
+			return false;
+		}
+	}
+
+	/**
+	 * Drop the oldest messages until back within limits, always keeping the
+	 * newest and any control messages, without which the client could not
+	 * make sense of what follows.
+	 */
+	private void dropOldest(Encoding encoding) {
+		var it = pending.values().iterator();
+		while(it.hasNext() && (pending.size() > limits.maxPending || bytes > limits.maxPendingBytes)) {
+			var f = it.next();
+			if(!it.hasNext())
+				break;
+			if(f.channel() == null)
+				continue;
+			it.remove();
+			bytes -= f.size(encoding);
+			dropped++;
+			metrics.dropped(1);
+		}
+	}
+
+	private void flush() {
+		List<Frame> batch;
+		Attachment att;
+		long since;
+		synchronized(pending) {
+			scheduled = false;
+			if(closed || attachment.isEmpty())
+				return;
+			att = attachment.get();
+			since = queuedAt;
+			batch = new ArrayList<>(pending.values());
+			pending.clear();
+			bytes = 0;
+		}
+		if(batch.isEmpty())
+			return;
+
+		if(limits.replaySize > 0) {
+			var numbered = new ArrayList<Frame>(batch.size() + 1);
+			numbered.add(Frame.seq(nextSeq));
+			for(var f : batch) {
+				if(f.counted())
+					record(f);
+				numbered.add(f);
+			}
+			batch = numbered;
+		}
+
+		transmit(att, batch);
+		metrics.latency(System.nanoTime() - since);
+	}
+
+	private void record(Frame frame) {
+		var channel = frame.channel();
+		var ring = history.computeIfAbsent(channel == null ? "" : channel, k -> new ArrayDeque<>());
+		ring.add(new Sent(nextSeq++, frame));
+		while(ring.size() > limits.replaySize)
+			ring.removeFirst();
+	}
+
+	private void replay(Attachment att, long from) {
+		var missed = new ArrayList<Sent>();
+		history.values().forEach(ring -> ring.forEach(s -> {
+			if(s.seq > from)
+				missed.add(s);
+		}));
+		if(missed.isEmpty())
+			return;
+
+		missed.sort(Comparator.comparingLong(Sent::seq));
+		if(Io.LOG.debug())
+			Io.LOG.debug("Replaying {0} frames to session {1}", missed.size(), id);
+
+		var frames = new ArrayList<Frame>(missed.size() + 1);
+		var expected = -1l;
+		for(var s : missed) {
+			/* Anything older than the history kept is gone, so tell the browser where numbering picks up */
+			if(s.seq != expected)
+				frames.add(Frame.seq(s.seq));
+			frames.add(s.frame);
+			expected = s.seq + 1;
+		}
+		transmit(att, frames);
+	}
+
+	private void transmit(Attachment att, List<Frame> frames) {
+		try {
+			for(int i = 0 ; i < frames.size(); i += limits.maxBatch) {
+				var chunk = frames.subList(i, Math.min(frames.size(), i + limits.maxBatch));
+				send(att, chunk);
+				var count = chunk.stream().filter(Frame::counted).count();
+				synchronized(pending) {
+					sent += count;
+				}
+			}
+		}
+		catch(RuntimeException re) {
+			if(Io.LOG.debug())
+				Io.LOG.debug("Failed to send to link, it has probably closed.", re);
+		}
+	}
+
+	private void send(Attachment att, List<Frame> chunk) {
+		var link = att.link;
+		var deflate = att.deflate;
+		long written;
+		if(att.encoding == Encoding.CBOR) {
+			var data = Frame.binary(chunk);
+			var buf = deflate.isPresent() && deflate.get().compress(data.length) ? deflate.get().compress(data) : ByteBuffer.wrap(data);
+			written = buf.remaining();
+			link.send(buf);
+		}
+		else {
+			var text = Frame.text(chunk);
+			if(deflate.isPresent() && deflate.get().compress(text.length())) {
+				var buf = deflate.get().compress(text.getBytes(StandardCharsets.UTF_8));
+				written = buf.remaining();
+				link.send(buf);
+			}
+			else {
+				written = text.length();
+				link.send(text);
+			}
+		}
+
+		metrics.wrote(link.transport(), written);
+		for(var f : chunk) {
+			var channel = f.channel();
+			if(channel != null)
+				metrics.sent(channel, f.size(att.encoding));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link Link} that sends frames as server-sent events, for browsers that
+ * cannot use a websocket. Only text frames are supported. The request thread
+ * waits in {@link #await(long)} for as long as the stream is open, sending a
+ * comment now and then so proxies keep it open and a dead connection is
+ * noticed.
+ */
+final class SseLink implements Link {
+
+	private final WritableByteChannel channel;
+	private boolean closed;
+
+	SseLink(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public void send(String text) {
+		/* Frames are single line JSON, so need no splitting into several data lines */
+		write("data: " + text + "\n\n");
+	}
+
+	/**
+	 * Send a named event, that is not a frame.
+	 *
+	 * @param name event name
+	 * @param data event data
+	 */
+	void event(String name, String data) {
+		write("event: " + name + "\ndata: " + data + "\n\n");
+	}
+
+	@Override
+	public void send(ByteBuffer data) {
+		throw new UnsupportedOperationException("Event streams only carry text.");
+	}
+
+	@Override
+	public String transport() {
+		return IoMetrics.SSE;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Wait until the stream is closed, sending a keep-alive comment every
+	 * interval.
+	 *
+	 * @param interval milliseconds between keep-alives
+	 * @throws InterruptedException if interrupted
+	 */
+	synchronized void await(long interval) throws InterruptedException {
+		while(!closed) {
+			wait(interval);
+			if(!closed) {
+				try {
+					write(":\n\n");
+				}
+				catch(UncheckedIOException uioe) {
+					return;
+				}
+			}
+		}
+	}
+
+	private synchronized void write(String text) {
+		if(closed)
+			throw new IllegalStateException("Closed.");
+		try {
+			var buf = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+			while(buf.hasRemaining())
+				channel.write(buf);
+		}
+		catch(IOException ioe) {
+			closed = true;
+			notifyAll();
+			throw new UncheckedIOException(ioe);
+		}
+	}
+}
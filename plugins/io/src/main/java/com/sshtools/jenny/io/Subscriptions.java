@@ -0,0 +1,148 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sshtools.jenny.io.Io.IoChannel;
+
+/**
+ * Two way index of which sessions are subscribed to which channels. Finding the
+ * subscribers of a channel, or the channels of a session, never requires
+ * scanning other subscriptions.
+ * <p>
+ * Both sides of the index are always updated while holding the lock for the
+ * session's entry, so a session that is closing cannot gain new subscriptions.
+ */
+final class Subscriptions {
+
+	private final Map<String, Map<Outbound, IoChannel>> byChannel = new ConcurrentHashMap<>();
+	private final Map<Outbound, Set<String>> bySession = new ConcurrentHashMap<>();
+
+	/**
+	 * Add a newly opened session, with no subscriptions.
+	 *
+	 * @param session session
+	 */
+	void open(Outbound session) {
+		bySession.computeIfAbsent(session, k -> ConcurrentHashMap.newKeySet());
+	}
+
+	/**
+	 * Remove a session, and all of its subscriptions.
+	 *
+	 * @param session session
+	 */
+	void close(Outbound session) {
+		bySession.computeIfPresent(session, (k, channels) -> {
+			channels.forEach(channel -> removeSubscriber(channel, session));
+			return null;
+		});
+	}
+
+	/**
+	 * Get all open sessions.
+	 *
+	 * @return sessions
+	 */
+	Set<Outbound> sessions() {
+		return bySession.keySet();
+	}
+
+	/**
+	 * Get all channels with at least one subscriber.
+	 *
+	 * @return channels
+	 */
+	Set<String> channels() {
+		return byChannel.keySet();
+	}
+
+	/**
+	 * Get all sessions subscribed to a channel.
+	 *
+	 * @param channel channel
+	 * @return sessions
+	 */
+	Collection<Outbound> subscribers(String channel) {
+		var subs = byChannel.get(channel);
+		return subs == null ? Set.of() : subs.keySet();
+	}
+
+	/**
+	 * Get the channel a session is subscribed to.
+	 *
+	 * @param session session
+	 * @param channel channel name
+	 * @return channel
+	 */
+	Optional<IoChannel> channel(Outbound session, String channel) {
+		var subs = byChannel.get(channel);
+		return subs == null ? Optional.empty() : Optional.ofNullable(subs.get(session));
+	}
+
+	/**
+	 * Subscribe a session to a channel. Nothing happens if the session is closed.
+	 *
+	 * @param session session
+	 * @param channel channel name
+	 * @param ioChannel channel
+	 * @return whether subscribed
+	 */
+	boolean subscribe(Outbound session, String channel, IoChannel ioChannel) {
+		return bySession.computeIfPresent(session, (k, channels) -> {
+			channels.add(channel);
+			byChannel.compute(channel, (c, subs) -> {
+				if(subs == null)
+					subs = new ConcurrentHashMap<>();
+				subs.put(session, ioChannel);
+				return subs;
+			});
+			return channels;
+		}) != null;
+	}
+
+	/**
+	 * Unsubscribe a session from a channel.
+	 *
+	 * @param session session
+	 * @param channel channel name
+	 * @return channel that was removed
+	 */
+	Optional<IoChannel> unsubscribe(Outbound session, String channel) {
+		var removed = new IoChannel[1];
+		bySession.computeIfPresent(session, (k, channels) -> {
+			if(channels.remove(channel)) {
+				removed[0] = removeSubscriber(channel, session);
+			}
+			return channels;
+		});
+		return Optional.ofNullable(removed[0]);
+	}
+
+	private IoChannel removeSubscriber(String channel, Outbound session) {
+		var removed = new IoChannel[1];
+		byChannel.computeIfPresent(channel, (c, subs) -> {
+			removed[0] = subs.remove(session);
+			return subs.isEmpty() ? null : subs;
+		});
+		return removed[0];
+	}
+}
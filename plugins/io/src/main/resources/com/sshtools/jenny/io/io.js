@@ -1,47 +1,445 @@
 /* Jenny IO Javascript API */
+
+/* Minimal CBOR (RFC 8949), enough to carry JSON */
+const JennyCBOR = {
+	encode(val) {
+		const out = [];
+		const head = (major, len) => {
+			const mt = major << 5;
+			if(len < 24)
+				out.push(mt | len);
+			else if(len < 0x100)
+				out.push(mt | 24, len);
+			else if(len < 0x10000)
+				out.push(mt | 25, len >> 8, len & 0xff);
+			else if(len < 0x100000000)
+				out.push(mt | 26, (len >>> 24) & 0xff, (len >>> 16) & 0xff, (len >>> 8) & 0xff, len & 0xff);
+			else {
+				const hi = Math.floor(len / 0x100000000), lo = len >>> 0;
+				out.push(mt | 27, (hi >>> 24) & 0xff, (hi >>> 16) & 0xff, (hi >>> 8) & 0xff, hi & 0xff,
+						(lo >>> 24) & 0xff, (lo >>> 16) & 0xff, (lo >>> 8) & 0xff, lo & 0xff);
+			}
+		};
+		const enc = (v) => {
+			if(v === null || v === undefined)
+				out.push(0xf6);
+			else if(v === true)
+				out.push(0xf5);
+			else if(v === false)
+				out.push(0xf4);
+			else if(typeof v === 'number') {
+				if(Number.isSafeInteger(v))
+					v < 0 ? head(1, -1 - v) : head(0, v);
+				else {
+					const dv = new DataView(new ArrayBuffer(8));
+					dv.setFloat64(0, v);
+					out.push(0xfb, ...new Uint8Array(dv.buffer));
+				}
+			}
+			else if(typeof v === 'string') {
+				const b = new TextEncoder().encode(v);
+				head(3, b.length);
+				for(let i = 0; i < b.length; i++)
+					out.push(b[i]);
+			}
+			else if(Array.isArray(v)) {
+				head(4, v.length);
+				v.forEach(enc);
+			}
+			else {
+				const keys = Object.keys(v).filter((k) => v[k] !== undefined);
+				head(5, keys.length);
+				keys.forEach((k) => { enc(k); enc(v[k]); });
+			}
+		};
+		enc(val);
+		return new Uint8Array(out);
+	},
+	
+	decode(buf) {
+		const dv = new DataView(buf);
+		const td = new TextDecoder();
+		let pos = 0;
+		const len = (info) => {
+			let l;
+			if(info < 24)
+				return info;
+			switch(info) {
+			case 24: l = dv.getUint8(pos); pos += 1; return l;
+			case 25: l = dv.getUint16(pos); pos += 2; return l;
+			case 26: l = dv.getUint32(pos); pos += 4; return l;
+			case 27: l = dv.getUint32(pos) * 0x100000000 + dv.getUint32(pos + 4); pos += 8; return l;
+			default: throw new Error('Indefinite length CBOR is not supported');
+			}
+		};
+		const dec = () => {
+			const ib = dv.getUint8(pos++);
+			const major = ib >> 5, info = ib & 0x1f;
+			let v;
+			if(major === 7) {
+				switch(info) {
+				case 20: return false;
+				case 21: return true;
+				case 22: case 23: return null;
+				case 25:
+					const h = dv.getUint16(pos); pos += 2;
+					const e = (h >> 10) & 0x1f, m = h & 0x3ff;
+					v = e === 0 ? m * Math.pow(2, -24) : (e !== 31 ? (m + 1024) * Math.pow(2, e - 25) : (m === 0 ? Infinity : NaN));
+					return h & 0x8000 ? -v : v;
+				case 26: v = dv.getFloat32(pos); pos += 4; return v;
+				case 27: v = dv.getFloat64(pos); pos += 8; return v;
+				default: throw new Error('Unsupported CBOR simple value ' + info);
+				}
+			}
+			const l = len(info);
+			switch(major) {
+			case 0: return l;
+			case 1: return -1 - l;
+			case 2: v = new Uint8Array(buf, pos, l); pos += l; return v;
+			case 3: v = td.decode(new Uint8Array(buf, pos, l)); pos += l; return v;
+			case 4:
+				v = [];
+				for(let i = 0; i < l; i++)
+					v.push(dec());
+				return v;
+			case 5:
+				v = {};
+				for(let i = 0; i < l; i++) {
+					const k = dec();
+					v[k] = dec();
+				}
+				return v;
+			default:
+				return dec();
+			}
+		};
+		return dec();
+	}
+};
+
 class JennyIO {
 	on = {};
 	_onReady = [];
 	_ready = false;
+	_compact = false;
+	_ids = {};
+	_names = {};
+	_chain = Promise.resolve();
+	_session = null;
+	_seq = 0;
+	_subscribed = {};
+	_prior = {};
+	_attempts = 0;
+	_requests = {};
+	_nextRequest = 0;
+	_failures = 0;
+	_sse = false;
+	_src = null;
+	_link = null;
+	_linked = false;
+	_outbox = [];
+	_post = Promise.resolve();
 	
 	constructor() {
-		var sckt = new WebSocket(this._wsUri(), 'monitor');
+		this._connect();
+	}
+	
+	_connect() {
+		if(this._sse) {
+			this._connectSse();
+			return;
+		}
+		
+		/* Compressed variants are only offered if the browser can inflate them */
+		const deflate = typeof DecompressionStream !== 'undefined';
+		const protocols = [];
+		['jenny.cbor', 'monitor'].forEach((p) => {
+			if(deflate)
+				protocols.push(p + '+deflate');
+			protocols.push(p);
+		});
+		var sckt = new WebSocket(this._wsUri(), protocols);
+		sckt.binaryType = 'arraybuffer';
+		sckt.inflater = null;
 
 		sckt.onclose = (event) => {
-			console.log('Close  ' + event);
+			console.log('Close  ' + event.code);
+			/* A socket that never opens is probably blocked by a proxy, so after a couple of tries use an event stream */
+			if(!sckt.opened && ++this._failures >= 2 && typeof EventSource !== 'undefined') {
+				console.log('Websocket unavailable, falling back to event stream');
+				this._sse = true;
+			}
+			this._reconnect();
 		};
 		sckt.onopen = (event) => {
-			console.log('Open  ' + event);
-			this._ready = true;
-			for(var i = 0 ; i < this._onReady.length; i++)
-			     this._onReady[i](this);
+			console.log('Open  ' + event + ' (' + sckt.protocol + ')');
+			sckt.opened = true;
+			this._failures = 0;
+			this._compact = sckt.protocol.startsWith('jenny.cbor');
+			this._opened();
+			/* Ask to resume the previous session, if any, from the last message received */
+			this._write({
+				"type": "hello",
+				"session": this._session,
+				"seq": this._seq
+			}, [8, this._session, this._seq]);
+			this._notifyReady();
 		};
 		sckt.onerror = (event) => {
 			console.log('Error ' + event);
 		};
 		sckt.onmessage = (event) => {
-			const msg = JSON.parse(event.data);
-			switch (msg.type) {
-				case 'reload':
-					console.log('Page reload requested');
-					window.location.href = window.location.href;
-					//window.location.reload();
-					break;
-				case 'message':
-                    if(msg.channel in this.on)
-					   this.on[msg.channel](msg.data);
-					else
-					   console.log('No handler for channel ' + msg.channel);
-					break;
-				default:
-					console.log('No handler for message type of ' + msg.type);
-					break;
+			const data = event.data;
+			const marker = typeof data === 'string' ? 0 : new Uint8Array(data)[0];
+			if(marker === 1 || marker === 2) {
+				/* Compressed, inflation is asynchronous so chain to keep frames in order */
+				this._chain = this._chain.
+					then(() => this._inflate(sckt, new Uint8Array(data, 1), marker === 2)).
+					then((out) => this._receive(this._compact ? out.buffer.slice(out.byteOffset, out.byteOffset + out.byteLength) : new TextDecoder().decode(out))).
+					catch((e) => console.log('Failed to inflate. ' + e));
+			}
+			else {
+				this._chain = this._chain.then(() => this._receive(data));
 			}
 		};
 
 		this._sckt = sckt;
 	}
 	
+	/* The stream first sends a token that posts must carry, then the hello is posted as for a websocket */
+	_connectSse() {
+		const src = new EventSource('/io/sse');
+		this._link = null;
+		this._linked = false;
+		
+		src.onopen = () => {
+			console.log('Open event stream');
+			this._compact = false;
+			this._opened();
+			this._notifyReady();
+		};
+		src.onerror = () => {
+			/* Reconnect ourselves rather than let the browser, so backoff applies */
+			console.log('Event stream error');
+			src.close();
+			if(this._src === src) {
+				this._src = null;
+				this._reconnect();
+			}
+		};
+		src.addEventListener('link', (event) => {
+			this._link = event.data;
+			this._postQueued({
+				"type": "hello",
+				"session": this._session,
+				"seq": this._seq
+			});
+		});
+		src.onmessage = (event) => {
+			this._chain = this._chain.then(() => this._receive(event.data));
+		};
+		
+		this._src = src;
+	}
+	
+	_opened() {
+		this._attempts = 0;
+		/* Subscriptions are remembered, in case the session is resumed */
+		this._prior = this._subscribed;
+		this._subscribed = {};
+	}
+	
+	_notifyReady() {
+		if(!this._ready) {
+			this._ready = true;
+			for(var i = 0 ; i < this._onReady.length; i++)
+			     this._onReady[i](this);
+		}
+	}
+	
+	/* Exponential backoff, with jitter so a restarted server is not hit by every browser at once */
+	_reconnect() {
+		const delay = Math.min(30000, 500 * Math.pow(2, this._attempts++));
+		setTimeout(() => this._connect(), delay / 2 + Math.random() * delay / 2);
+	}
+	
+	_open() {
+		if(this._sse)
+			/* Messages can only be posted once the server has said which session they are for */
+			return this._src && this._src.readyState === EventSource.OPEN && this._linked;
+		else
+			return this._sckt && this._sckt.readyState === WebSocket.OPEN;
+	}
+	
+	_receive(data) {
+		if(typeof data === 'string') {
+			const msg = JSON.parse(data);
+			/* Several messages may be batched into one frame */
+			if(Array.isArray(msg))
+				msg.forEach((m) => this._dispatch(m));
+			else
+				this._dispatch(msg);
+		}
+		else {
+			const msg = JennyCBOR.decode(data);
+			/* A batch is an array of messages, each of which is itself an array */
+			if(Array.isArray(msg[0]))
+				msg.forEach((m) => this._dispatch(this._expand(m)));
+			else
+				this._dispatch(this._expand(msg));
+		}
+	}
+	
+	/* Inflate one frame. The socket's inflater is kept between frames unless the server resets it */
+	async _inflate(sckt, data, reset) {
+		if(reset || !sckt.inflater) {
+			if(sckt.inflater)
+				sckt.inflater.writer.abort().catch(() => {});
+			const ds = new DecompressionStream('deflate-raw');
+			sckt.inflater = { writer: ds.writable.getWriter(), reader: ds.readable.getReader(), buf: new Uint8Array(0) };
+		}
+		const inf = sckt.inflater;
+		inf.writer.write(data);
+		/* The inflated frame is prefixed with its length */
+		while(true) {
+			if(inf.buf.length >= 4) {
+				const len = new DataView(inf.buf.buffer, inf.buf.byteOffset, 4).getUint32(0);
+				if(inf.buf.length >= 4 + len) {
+					const out = inf.buf.slice(4, 4 + len);
+					inf.buf = inf.buf.slice(4 + len);
+					return out;
+				}
+			}
+			const { value, done } = await inf.reader.read();
+			if(done)
+				throw new Error('Inflate stream ended');
+			const n = new Uint8Array(inf.buf.length + value.length);
+			n.set(inf.buf);
+			n.set(value, inf.buf.length);
+			inf.buf = n;
+		}
+	}
+	
+	_expand(arr) {
+		switch(arr[0]) {
+			case 0:
+				return { type: 'message', channel: this._names[arr[1]], data: arr[2] };
+			case 1:
+				return { type: 'reload' };
+			case 2:
+				return { type: 'refresh' };
+			case 3:
+				return { type: 'channel', id: arr[1], channel: arr[2] };
+			case 6:
+				return { type: 'session', id: arr[1], resumed: arr[2] };
+			case 7:
+				return { type: 'seq', seq: arr[1] };
+			case 10:
+				return { type: 'response', channel: this._names[arr[1]], id: arr[2], data: arr[3], error: arr[4] };
+			default:
+				return { type: arr[0] };
+		}
+	}
+	
+	_write(json, compact) {
+		if(!this._open())
+			return false;
+		else if(this._sse)
+			this._postQueued(json);
+		else if(this._compact)
+			this._sckt.send(JennyCBOR.encode(compact));
+		else
+			this._sckt.send(JSON.stringify(json));
+		return true;
+	}
+	
+	/* Messages queued while a post is in flight are sent together in the next */
+	_postQueued(json) {
+		this._outbox.push(json);
+		if(this._outbox.length === 1) {
+			this._post = this._post.then(() => {
+				const batch = this._outbox;
+				this._outbox = [];
+				return fetch('/io/sse', {
+					method: 'POST',
+					headers: { 'Content-Type': 'application/json', 'X-Io-Link': this._link },
+					body: JSON.stringify(batch)
+				});
+			}).then((res) => {
+				if(!res.ok)
+					console.log('Failed to send, ' + res.status);
+			}).catch((e) => console.log('Failed to send. ' + e));
+		}
+	}
+	
+	_subscribeAll() {
+		Object.keys(this.on).forEach((channel) => {
+			if(!(channel in this._subscribed))
+				this._sendSubscribe(channel);
+		});
+	}
+	
+	_sendSubscribe(channel) {
+		if(this._write({
+			"type": "subscribe",
+			"channel": channel
+		}, [4, channel]))
+			this._subscribed[channel] = true;
+	}
+	
+	_dispatch(msg) {
+		/* Sequence numbers count everything except these two */
+		if(msg.type !== 'session' && msg.type !== 'seq')
+			this._seq++;
+		
+		switch (msg.type) {
+			case 'session':
+				this._session = msg.id;
+				this._linked = true;
+				if(msg.resumed) {
+					/* Still subscribed to everything from before, unless unsubscribed while away */
+					Object.keys(this._prior).forEach((channel) => {
+						if(channel in this.on)
+							this._subscribed[channel] = true;
+						else
+							this._sendUnsubscribe(channel);
+					});
+				}
+				else {
+					this._seq = 0;
+					/* Responses to anything asked of the old session will never come */
+					Object.keys(this._requests).forEach((id) => this._settle(id, undefined, 'Session lost'));
+				}
+				this._prior = {};
+				this._subscribeAll();
+				break;
+			case 'seq':
+				this._seq = msg.seq - 1;
+				break;
+			case 'response':
+				this._settle(msg.id, msg.data, msg.error);
+				break;
+			case 'channel':
+				this._ids[msg.channel] = msg.id;
+				this._names[msg.id] = msg.channel;
+				break;
+			case 'reload':
+				console.log('Page reload requested');
+				window.location.href = window.location.href;
+				//window.location.reload();
+				break;
+			case 'message':
+                if(msg.channel in this.on)
+				   this.on[msg.channel](msg.data);
+				else
+				   console.log('No handler for channel ' + msg.channel);
+				break;
+			default:
+				console.log('No handler for message type of ' + msg.type);
+				break;
+		}
+	}
+	
 	onReady(cb) {
         if(this._ready) 
             cb(this);
@@ -50,38 +448,73 @@ class JennyIO {
     }
 	
 	unsubscribe(channel) {
-		this.on[channel] = false;
-		debugger;
-		this._sckt.send(JSON.stringify({
+		delete this.on[channel];
+		this._sendUnsubscribe(channel);
+	}
+	
+	_sendUnsubscribe(channel) {
+		/* If not connected, this happens when the session is resumed */
+		if(this._write({
 			"type": "unsubscribe",
 			"channel": channel
-		}));
+		}, [5, channel]))
+			delete this._subscribed[channel];
 	}
 
 
 	subscribe(channel, cb) {
 		this.on[channel] = cb;
 		var self = this;
-		this._sckt.send(JSON.stringify({
-			"type": "subscribe",
-			"channel": channel
-		}));
+		/* If not connected, this happens when the session is established */
+		this._sendSubscribe(channel);
 		return {
 			unsubscribe: function() {
 				self.unsubscribe(channel);
 			},
 			send: function(obj) {
 				self.send(channel, obj);
+			},
+			request: function(obj, timeout) {
+				return self.request(channel, obj, timeout);
 			}
 		};
 	}
 
+	/* Make a request on a channel, returning a promise of the response */
+	request(channel, obj, timeout) {
+		return new Promise((resolve, reject) => {
+			const id = ++this._nextRequest;
+			const timer = setTimeout(() => this._settle(id, undefined, 'Timed out'), timeout || 30000);
+			this._requests[id] = { resolve: resolve, reject: reject, timer: timer };
+			if(!this._write({
+				"type": "request",
+				"channel": channel,
+				"id": id,
+				"data": obj
+			}, [9, channel in this._ids ? this._ids[channel] : channel, id, obj]))
+				this._settle(id, undefined, 'Not connected');
+		});
+	}
+	
+	_settle(id, data, error) {
+		const req = this._requests[id];
+		if(req) {
+			delete this._requests[id];
+			clearTimeout(req.timer);
+			if(error)
+				req.reject(new Error(error));
+			else
+				req.resolve(data);
+		}
+	}
+
 	send(channel, obj) {
-		this._sckt.send(JSON.stringify({
+		/* The channel name is used until the server has told us its id */
+		this._write({
 			"type": "message",
 			"channel": channel,
 			"data": obj
-		}));
+		}, [0, channel in this._ids ? this._ids[channel] : channel, obj]);
 	}
 
 	_wsUri() {
@@ -0,0 +1,137 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+
+import javax.json.Json;
+import javax.json.JsonNumber;
+import javax.json.JsonValue;
+
+import org.junit.jupiter.api.Test;
+
+class CborTest {
+
+	@Test
+	void testConstants() {
+		roundTrip(JsonValue.NULL);
+		roundTrip(JsonValue.TRUE);
+		roundTrip(JsonValue.FALSE);
+	}
+
+	@Test
+	void testIntegers() {
+		for(var l : new long[] { 0, 1, 23, 24, 255, 256, 65535, 65536, 4294967295l, 4294967296l, Long.MAX_VALUE,
+				-1, -24, -25, -256, -257, -65537, Long.MIN_VALUE }) {
+			roundTrip(Json.createValue(l));
+		}
+	}
+
+	@Test
+	void testDoubles() {
+		roundTrip(Json.createValue(2.5));
+		roundTrip(Json.createValue(-1.0e300));
+		roundTrip(Json.createValue(0.1));
+	}
+
+	@Test
+	void testStrings() {
+		roundTrip(Json.createValue(""));
+		roundTrip(Json.createValue("hello"));
+		roundTrip(Json.createValue("ünïcödé ✓ 😀"));
+		roundTrip(Json.createValue("x".repeat(300)));
+		roundTrip(Json.createValue("y".repeat(70000)));
+	}
+
+	@Test
+	void testStructures() {
+		roundTrip(Json.createArrayBuilder().build());
+		roundTrip(Json.createObjectBuilder().build());
+		roundTrip(Json.createObjectBuilder().
+			add("channel", "jobs.default").
+			add("seq", 42).
+			add("data", Json.createObjectBuilder().
+				add("list", Json.createArrayBuilder().add(1).add("two").add(3.5).addNull().add(true)).
+				add("empty", Json.createArrayBuilder())).
+			build());
+
+		var big = Json.createArrayBuilder();
+		for(int i = 0; i < 1000; i++)
+			big.add(i);
+		roundTrip(big.build());
+	}
+
+	@Test
+	void testKnownEncodings() {
+		/* Examples from RFC 8949, appendix A */
+		assertArrayEquals(bytes(0x18, 0x64), Cbor.encode(Json.createValue(100)));
+		assertArrayEquals(bytes(0x38, 0x63), Cbor.encode(Json.createValue(-100)));
+		assertArrayEquals(bytes(0x64, 0x49, 0x45, 0x54, 0x46), Cbor.encode(Json.createValue("IETF")));
+		assertArrayEquals(bytes(0x83, 0x01, 0x02, 0x03), Cbor.encode(Json.createArrayBuilder().add(1).add(2).add(3).build()));
+		assertArrayEquals(bytes(0xa1, 0x61, 0x61, 0x01), Cbor.encode(Json.createObjectBuilder().add("a", 1).build()));
+	}
+
+	@Test
+	void testDecodesHalfAndSingleFloats() {
+		assertEquals(1.0, ((JsonNumber)decode(0xf9, 0x3c, 0x00)).doubleValue());
+		assertEquals(-4.0, ((JsonNumber)decode(0xf9, 0xc4, 0x00)).doubleValue());
+		assertEquals(100000.0, ((JsonNumber)decode(0xfa, 0x47, 0xc3, 0x50, 0x00)).doubleValue());
+		/* JSON cannot represent infinity or NaN */
+		assertEquals(JsonValue.NULL, decode(0xf9, 0x7c, 0x00));
+		assertEquals(JsonValue.NULL, decode(0xf9, 0x7e, 0x00));
+	}
+
+	@Test
+	void testTruncated() {
+		assertThrows(IllegalArgumentException.class, () -> decode(0x83, 0x01, 0x02));
+		assertThrows(IllegalArgumentException.class, () -> decode(0x64, 0x49, 0x45));
+		assertThrows(IllegalArgumentException.class, () -> decode(0x19, 0x01));
+		assertThrows(IllegalArgumentException.class, () -> decode(0x7b, 0x7f, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff));
+	}
+
+	@Test
+	void testTooDeep() {
+		var b = new int[101];
+		for(int i = 0; i < 100; i++)
+			b[i] = 0x81;
+		b[100] = 0x01;
+		assertThrows(IllegalArgumentException.class, () -> decode(b));
+	}
+
+	@Test
+	void testIndefiniteLength() {
+		assertThrows(IllegalArgumentException.class, () -> decode(0x9f, 0x01, 0xff));
+	}
+
+	private static void roundTrip(JsonValue value) {
+		assertEquals(value, Cbor.decode(ByteBuffer.wrap(Cbor.encode(value))));
+	}
+
+	private static JsonValue decode(int... data) {
+		return Cbor.decode(ByteBuffer.wrap(bytes(data)));
+	}
+
+	private static byte[] bytes(int... data) {
+		var b = new byte[data.length];
+		for(int i = 0; i < data.length; i++)
+			b[i] = (byte)data[i];
+		return b;
+	}
+}
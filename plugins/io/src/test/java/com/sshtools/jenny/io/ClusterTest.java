@@ -0,0 +1,226 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.json.Json;
+import javax.json.JsonValue;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ClusterTest {
+
+	private final static class Recorder implements Cluster.Listener {
+		private final List<String> received = new CopyOnWriteArrayList<>();
+
+		@Override
+		public void broadcast(String channel, Optional<String> key, JsonValue data) {
+			received.add(channel + key.map(k -> "/" + k).orElse("") + "=" + data);
+		}
+
+		@Override
+		public void refresh() {
+			received.add("refresh");
+		}
+
+		@Override
+		public void reload() {
+			received.add("reload");
+		}
+	}
+
+	private final List<Cluster> clusters = new ArrayList<>();
+	private final List<LoopbackTransport> transports = new ArrayList<>();
+	private ScheduledExecutorService timer;
+	private String group;
+
+	@BeforeEach
+	void setUp() {
+		timer = Executors.newSingleThreadScheduledExecutor();
+		group = UUID.randomUUID().toString();
+	}
+
+	@AfterEach
+	void tearDown() {
+		clusters.forEach(Cluster::close);
+		transports.forEach(LoopbackTransport::close);
+		timer.shutdownNow();
+	}
+
+	@Test
+	void testBroadcast() {
+		var a = new Recorder();
+		var b = new Recorder();
+		var ca = cluster(a, Optional.empty());
+		cluster(b, Optional.empty());
+
+		ca.broadcast("jobs", Optional.empty(), Json.createValue(1));
+		ca.broadcast("jobs", Optional.of("job1"), Json.createValue("done"));
+		ca.refresh();
+		ca.reload();
+
+		assertEquals(List.of("jobs=1", "jobs/job1=\"done\"", "refresh", "reload"), b.received);
+		assertTrue(a.received.isEmpty());
+	}
+
+	@Test
+	void testSecret() {
+		var b = new Recorder();
+		var ca = cluster(new Recorder(), Optional.of(secret("one")));
+		cluster(b, Optional.of(secret("one")));
+
+		ca.broadcast("jobs", Optional.empty(), Json.createValue(1));
+
+		assertEquals(List.of("jobs=1"), b.received);
+	}
+
+	@Test
+	void testMismatchedSecretDropped() {
+		var b = new Recorder();
+		var ca = cluster(new Recorder(), Optional.of(secret("one")));
+		cluster(b, Optional.of(secret("two")));
+
+		ca.broadcast("jobs", Optional.empty(), Json.createValue(1));
+
+		assertTrue(b.received.isEmpty());
+	}
+
+	@Test
+	void testUnauthenticatedDropped() {
+		var b = new Recorder();
+		cluster(b, Optional.of(secret("one")));
+		var raw = raw();
+
+		raw.send(packet(0));
+		raw.send(new byte[0]);
+
+		assertTrue(b.received.isEmpty());
+	}
+
+	@Test
+	void testMalformedDropped() {
+		var b = new Recorder();
+		cluster(b, Optional.empty());
+		var raw = raw();
+
+		raw.send("not json".getBytes(StandardCharsets.UTF_8));
+		raw.send("{\"node\":\"other\"}".getBytes(StandardCharsets.UTF_8));
+		raw.send(packet(0));
+
+		assertEquals(List.of("c=0"), b.received);
+	}
+
+	@Test
+	void testStaleDropped() throws InterruptedException {
+		var b = new Recorder();
+		var raw = raw();
+		var before = System.currentTimeMillis();
+		Thread.sleep(10);
+		cluster(b, Optional.empty());
+
+		raw.send(packet(0, before));
+		raw.send(packet(1, System.currentTimeMillis() - 60000));
+		raw.send(packet(2, System.currentTimeMillis() + 60000));
+		assertTrue(b.received.isEmpty());
+
+		raw.send(packet(3));
+		assertEquals(List.of("c=3"), b.received);
+	}
+
+	@Test
+	void testOrderedAndDeduplicated() {
+		var b = new Recorder();
+		cluster(b, Optional.empty());
+		var raw = raw();
+
+		raw.send(packet(0));
+		raw.send(packet(2));
+		assertEquals(List.of("c=0"), b.received);
+		raw.send(packet(1));
+		raw.send(packet(1));
+		raw.send(packet(0));
+
+		assertEquals(List.of("c=0", "c=1", "c=2"), b.received);
+	}
+
+	@Test
+	void testGapExpires() throws InterruptedException {
+		var b = new Recorder();
+		cluster(b, Optional.empty());
+		var raw = raw();
+
+		raw.send(packet(0));
+		raw.send(packet(2));
+		assertEquals(List.of("c=0"), b.received);
+
+		var until = System.currentTimeMillis() + 10000;
+		while(b.received.size() < 2 && System.currentTimeMillis() < until) {
+			Thread.sleep(100);
+		}
+		assertEquals(List.of("c=0", "c=2"), b.received);
+
+		/* Late arrival of the missing message is dropped */
+		raw.send(packet(1));
+		raw.send(packet(3));
+		assertEquals(List.of("c=0", "c=2", "c=3"), b.received);
+	}
+
+	private Cluster cluster(Recorder recorder, Optional<byte[]> secret) {
+		var cluster = new Cluster(new LoopbackTransport(group), recorder, secret, timer);
+		clusters.add(cluster);
+		return cluster;
+	}
+
+	private LoopbackTransport raw() {
+		var transport = new LoopbackTransport(group);
+		transport.start(p -> {});
+		transports.add(transport);
+		return transport;
+	}
+
+	private static byte[] packet(long seq) {
+		return packet(seq, System.currentTimeMillis());
+	}
+
+	private static byte[] packet(long seq, long time) {
+		return Json.createObjectBuilder().
+				add("node", "other").
+				add("stream", "c").
+				add("seq", seq).
+				add("time", time).
+				add("type", "message").
+				add("channel", "c").
+				add("data", seq).
+				build().toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static byte[] secret(String text) {
+		return text.getBytes(StandardCharsets.UTF_8);
+	}
+}
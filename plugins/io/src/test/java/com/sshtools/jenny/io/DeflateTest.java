@@ -0,0 +1,138 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.io;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.jupiter.api.Test;
+
+class DeflateTest {
+
+	private static final byte[] FRAME = "{\"channel\":\"jobs\",\"data\":{\"progress\":50,\"message\":\"Working\"}}".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void testRoundTripWithTakeover() throws Exception {
+		var deflate = new Deflate(new Deflate.Settings(true, 6, true, 0));
+		var inflater = new Inflater(true);
+		try {
+			var first = deflate.compress(FRAME);
+			assertEquals(Deflate.RESET, first.get(0));
+			assertArrayEquals(FRAME, inflate(inflater, first));
+
+			for(int i = 0; i < 5; i++) {
+				var next = deflate.compress(FRAME);
+				assertEquals(Deflate.CONTINUE, next.get(0));
+				assertArrayEquals(FRAME, inflate(inflater, next));
+			}
+		}
+		finally {
+			deflate.close();
+			inflater.end();
+		}
+	}
+
+	@Test
+	void testRoundTripWithoutTakeover() throws Exception {
+		var deflate = new Deflate(new Deflate.Settings(true, 6, false, 0));
+		try {
+			for(int i = 0; i < 5; i++) {
+				var frame = deflate.compress(FRAME);
+				assertEquals(Deflate.RESET, frame.get(0));
+				var inflater = new Inflater(true);
+				try {
+					assertArrayEquals(FRAME, inflate(inflater, frame));
+				}
+				finally {
+					inflater.end();
+				}
+			}
+		}
+		finally {
+			deflate.close();
+		}
+	}
+
+	@Test
+	void testTakeoverShrinksRepeatedFrames() {
+		var deflate = new Deflate(new Deflate.Settings(true, 6, true, 0));
+		try {
+			var first = deflate.compress(FRAME).remaining();
+			var second = deflate.compress(FRAME).remaining();
+			assertTrue(second < first, "Expected " + second + " < " + first);
+		}
+		finally {
+			deflate.close();
+		}
+	}
+
+	@Test
+	void testLargePayload() throws Exception {
+		var payload = new byte[100000];
+		new Random(1).nextBytes(payload);
+		var deflate = new Deflate(new Deflate.Settings(true, 6, true, 0));
+		var inflater = new Inflater(true);
+		try {
+			assertArrayEquals(payload, inflate(inflater, deflate.compress(payload)));
+			assertArrayEquals(FRAME, inflate(inflater, deflate.compress(FRAME)));
+		}
+		finally {
+			deflate.close();
+			inflater.end();
+		}
+	}
+
+	@Test
+	void testMinSize() {
+		var deflate = new Deflate(new Deflate.Settings(true, 6, true, 256));
+		try {
+			assertFalse(deflate.compress(255));
+			assertTrue(deflate.compress(256));
+		}
+		finally {
+			deflate.close();
+		}
+	}
+
+	private static byte[] inflate(Inflater inflater, ByteBuffer frame) throws DataFormatException {
+		var in = new byte[frame.remaining() - 1];
+		frame.duplicate().position(1).get(in);
+		inflater.setInput(in);
+
+		var out = new ByteArrayOutputStream();
+		var buf = new byte[1024];
+		int n;
+		while((n = inflater.inflate(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+
+		var data = ByteBuffer.wrap(out.toByteArray());
+		var len = data.getInt();
+		assertEquals(len, data.remaining());
+		var payload = new byte[len];
+		data.get(payload);
+		return payload;
+	}
+}
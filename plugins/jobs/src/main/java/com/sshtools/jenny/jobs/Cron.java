@@ -0,0 +1,207 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import java.text.MessageFormat;
+import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.Optional;
+
+/**
+ * A parsed cron expression, with the five usual fields, minute, hour, day of
+ * month, month and day of week. Each field may be <code>*</code>, a value, a
+ * range, a list, and may have a step, for example <code>*&#47;15</code> or
+ * <code>1-5</code>. Months and days of the week may be given as three letter
+ * names, and Sunday may be either 0 or 7. The macros <code>@yearly</code>,
+ * <code>@monthly</code>, <code>@weekly</code>, <code>@daily</code> and
+ * <code>@hourly</code> are also understood.
+ * <p>
+ * As with most cron implementations, when both the day of month and day of week
+ * are restricted, a day matching either will do.
+ * <p>
+ * Times are matched against the local time. A time skipped when clocks go
+ * forward runs once the gap ends, and a time repeated when they go back only
+ * runs the first time.
+ */
+final class Cron {
+
+	private final static String[] MONTHS = { "JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC" };
+	private final static String[] DAYS = { "SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT" };
+
+	private final String expression;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet days;
+	private final BitSet months;
+	private final BitSet weekdays;
+	private final boolean anyDay;
+	private final boolean anyWeekday;
+
+	private Cron(String expression) {
+		this.expression = expression;
+
+		var fields = macro(expression.trim()).split("\\s+");
+		if(fields.length != 5)
+			throw new IllegalArgumentException(MessageFormat.format("Cron expression ''{0}'' must have 5 fields.", expression));
+
+		minutes = field(fields[0], 0, 59, null, 0);
+		hours = field(fields[1], 0, 23, null, 0);
+		days = field(fields[2], 1, 31, null, 0);
+		months = field(fields[3], 1, 12, MONTHS, 1);
+		weekdays = field(fields[4], 0, 7, DAYS, 0);
+		if(weekdays.get(7))
+			weekdays.set(0);
+
+		anyDay = isAny(fields[2]);
+		anyWeekday = isAny(fields[4]);
+	}
+
+	/**
+	 * Parse a cron expression.
+	 *
+	 * @param expression expression
+	 * @return cron
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	static Cron parse(String expression) {
+		return new Cron(expression);
+	}
+
+	/**
+	 * Get the first time after the given time that matches this expression.
+	 *
+	 * @param after time
+	 * @return next time, or empty if there is none in the next five years
+	 */
+	Optional<ZonedDateTime> next(ZonedDateTime after) {
+		var t = after.toLocalDateTime().truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+		var limit = t.plusYears(5);
+		while(t.isBefore(limit)) {
+			if(!months.get(t.getMonthValue())) {
+				t = t.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+			}
+			else if(!dayMatches(t)) {
+				t = t.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+			}
+			else if(!hours.get(t.getHour())) {
+				t = t.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+			}
+			else if(!minutes.get(t.getMinute())) {
+				t = t.plusMinutes(1);
+			}
+			else {
+				/* A local time in a gap is moved forward by the length of the gap */
+				var z = ZonedDateTime.ofLocal(t, after.getZone(), after.getOffset());
+				if(z.isAfter(after))
+					return Optional.of(z);
+				t = t.plusMinutes(1);
+			}
+		}
+		return Optional.empty();
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	private boolean dayMatches(LocalDateTime t) {
+		var day = days.get(t.getDayOfMonth());
+		var weekday = weekdays.get(t.getDayOfWeek().getValue() % 7);
+		if(anyDay || anyWeekday)
+			return day && weekday;
+		else
+			return day || weekday;
+	}
+
+	private static boolean isAny(String field) {
+		return field.equals("*") || field.equals("?");
+	}
+
+	private static String macro(String expression) {
+		switch(expression.toLowerCase()) {
+		case "@yearly":
+		case "@annually":
+			return "0 0 1 1 *";
+		case "@monthly":
+			return "0 0 1 * *";
+		case "@weekly":
+			return "0 0 * * 0";
+		case "@daily":
+		case "@midnight":
+			return "0 0 * * *";
+		case "@hourly":
+			return "0 * * * *";
+		default:
+			return expression;
+		}
+	}
+
+	private static BitSet field(String field, int min, int max, String[] names, int nameBase) {
+		var bits = new BitSet(max + 1);
+		for(var part : field.split(",")) {
+			var step = 1;
+			var idx = part.indexOf('/');
+			if(idx != -1) {
+				step = number(part.substring(idx + 1), 1, max, null, 0, field);
+				part = part.substring(0, idx);
+			}
+
+			int from, to;
+			if(isAny(part)) {
+				from = min;
+				to = max;
+			}
+			else {
+				var dash = part.indexOf('-');
+				if(dash == -1) {
+					from = number(part, min, max, names, nameBase, field);
+					to = idx == -1 ? from : max;
+				}
+				else {
+					from = number(part.substring(0, dash), min, max, names, nameBase, field);
+					to = number(part.substring(dash + 1), min, max, names, nameBase, field);
+				}
+			}
+			if(to < from)
+				throw new IllegalArgumentException(MessageFormat.format("Range ''{0}'' in cron field ''{1}'' is backwards.", part, field));
+
+			for(int i = from; i <= to; i += step)
+				bits.set(i);
+		}
+		return bits;
+	}
+
+	private static int number(String text, int min, int max, String[] names, int nameBase, String field) {
+		if(names != null) {
+			for(int i = 0; i < names.length; i++) {
+				if(names[i].equalsIgnoreCase(text))
+					return i + nameBase;
+			}
+		}
+		try {
+			var val = Integer.parseInt(text);
+			if(val < min || val > max)
+				throw new IllegalArgumentException(MessageFormat.format("Value ''{0}'' in cron field ''{1}'' must be between {2} and {3}.", text, field, min, max));
+			return val;
+		}
+		catch(NumberFormatException nfe) {
+			throw new IllegalArgumentException(MessageFormat.format("Value ''{0}'' in cron field ''{1}'' is not valid.", text, field));
+		}
+	}
+}
@@ -15,24 +15,117 @@
  */
 package com.sshtools.jenny.jobs;
 
+import java.io.Serializable;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.function.Function;
 
 public interface Job<RESULT> {
 	
 	public record Handle<RESULT>(Future<RESULT> result, JobState state) {}
 	
+	/**
+	 * What to do when a job is submitted to a queue that already has the
+	 * maximum number of jobs waiting.
+	 */
+	public enum Rejection {
+		/**
+		 * Refuse the job, throwing a {@link java.util.concurrent.RejectedExecutionException}.
+		 */
+		ABORT,
+		/**
+		 * Run the job on the thread that submitted it.
+		 */
+		CALLER_RUNS,
+		/**
+		 * Wait until there is room in the queue.
+		 */
+		BLOCK
+	}
+	
+	/**
+	 * A queue of jobs, with its own pool of threads. Any of these may be
+	 * overridden by configuration.
+	 */
 	public interface Queue {
+		
+		/**
+		 * Get the number of processors, multiplied by a factor, for queues that size
+		 * themselves from the hardware.
+		 * 
+		 * @param factor factor
+		 * @return threads, at least one
+		 */
+		static int processors(double factor) {
+			return Math.max(1, (int)Math.round(Runtime.getRuntime().availableProcessors() * factor));
+		}
+		
+		/**
+		 * Get the maximum number of jobs that run at once.
+		 * 
+		 * @return threads
+		 */
 		int threads();
+		
+		/**
+		 * Get the maximum number of jobs that may wait to run, or zero for no
+		 * limit.
+		 * 
+		 * @return maximum queued
+		 */
+		default int maxQueued() {
+			return 0;
+		}
+		
+		/**
+		 * Get whether jobs run on virtual threads. The number of threads still
+		 * limits how many run at once.
+		 * 
+		 * @return virtual threads
+		 */
+		default boolean virtualThreads() {
+			return false;
+		}
+		
+		/**
+		 * Get what to do when the queue is full.
+		 * 
+		 * @return rejection
+		 */
+		default Rejection rejection() {
+			return Rejection.ABORT;
+		}
 	}
 	
 	public enum StandardQueues implements Queue {
-		GENERIC, IO, SYSTEM;
+		/**
+		 * Mostly computation, one job per processor.
+		 */
+		GENERIC, 
+		/**
+		 * Mostly waiting on disk or network, so more jobs than processors.
+		 */
+		IO, 
+		/**
+		 * Housekeeping, run one at a time in the order submitted.
+		 */
+		SYSTEM;
 
 		@Override
 		public int threads() {
-			return 1;
+			switch(this) {
+			case GENERIC:
+				return Queue.processors(1);
+			case IO:
+				return Queue.processors(4);
+			default:
+				return 1;
+			}
 		}
 	}
 
@@ -56,6 +149,63 @@ public interface Job<RESULT> {
 		boolean cancelled();
 		
 		void onCancel(Function<Job<?>, Boolean> r);
+		
+		/**
+		 * Durably record the job's progress, along with anything it needs to carry
+		 * on from this point if it is interrupted and later recovered. The state is
+		 * only kept if the job itself is {@link Serializable}.
+		 * 
+		 * @param state state to continue from
+		 */
+		void checkpoint(Serializable state);
+		
+		/**
+		 * Get the state saved by the last checkpoint, if this job was recovered
+		 * after being interrupted.
+		 * 
+		 * @param <T> type of state
+		 * @return state
+		 */
+		<T extends Serializable> Optional<T> checkpoint();
+		
+		/**
+		 * Get which attempt at running the job this is, starting at one.
+		 * 
+		 * @return attempt
+		 */
+		int attempt();
+		
+		/**
+		 * Start a child job. The child is run with this job's queue, category and
+		 * bundle unless its options say otherwise, and its progress is added to
+		 * this job's progress. Cancelling this job cancels its children.
+		 * 
+		 * @param <R> type of result
+		 * @param job job
+		 * @return handle
+		 */
+		<R> Handle<R> fork(Job<R> job);
+		
+		/**
+		 * Start a child job with its own options, for example to give it a different
+		 * queue, or to have it wait for other jobs. Its category and bundle default
+		 * to this job's, and its progress is added to this job's progress. Cancelling this job cancels its children.
+		 * 
+		 * @param <R> type of result
+		 * @param options options
+		 * @return handle
+		 */
+		<R> Handle<R> fork(Jobs.JobOptions<R> options);
+		
+		/**
+		 * Wait for all child jobs started so far to finish. Children that are ready
+		 * but still waiting for a thread are run on this thread instead, so joining
+		 * never waits on a queue this job is itself occupying.
+		 * 
+		 * @throws InterruptedException if interrupted
+		 * @throws ExecutionException if any child failed
+		 */
+		void join() throws InterruptedException, ExecutionException;
 	}
 	
 	public static class JobState {
@@ -69,6 +219,15 @@ public interface Job<RESULT> {
 		Object result;
 		String category;
 		Function<Job<?>, Boolean> onCancel;
+		int attempt = 1;
+		Serializable checkpoint;
+		volatile boolean dirty;
+		JobState parent;
+		final List<JobState> children = new CopyOnWriteArrayList<>();
+		FutureTask<Object> task;
+		volatile boolean queued;
+		RecurringJob recurring;
+		volatile List<Handle<?>> dependencies = List.of();
 		
 		public UUID uuid() {
 			return uuid;
@@ -78,12 +237,46 @@ public interface Job<RESULT> {
 			return queue;
 		}
 		
+		/**
+		 * Get the maximum value, including that of any children.
+		 * 
+		 * @return maximum
+		 */
 		public long max() {
-			return max;
+			var m = max;
+			for(var child : children)
+				m += child.max();
+			return m;
 		}
 		
+		/**
+		 * Get the value, including that of any children.
+		 * 
+		 * @return value
+		 */
 		public long val() {
-			return val;
+			var v = val;
+			for(var child : children)
+				v += child.val();
+			return v;
+		}
+		
+		/**
+		 * Get the parent job, if this was started with {@link JobContext#fork(Job)}.
+		 * 
+		 * @return parent
+		 */
+		public Optional<JobState> parent() {
+			return Optional.ofNullable(parent);
+		}
+		
+		/**
+		 * Get whether the job is waiting for the jobs it depends on.
+		 * 
+		 * @return waiting
+		 */
+		public boolean waiting() {
+			return !queued;
 		}
 		
 		public String text() {
@@ -102,11 +295,16 @@ public interface Job<RESULT> {
 			return cancelled;
 		}
 		
+		public int attempt() {
+			return attempt;
+		}
+		
 		public int percent() { 
+			var max = max();
 			if(max == 0)
 				return 0;
 			else {
-				return (int)(((double)val / (double)max) * 100d);
+				return (int)(((double)val() / (double)max) * 100d);
 			}
 		}
 	}
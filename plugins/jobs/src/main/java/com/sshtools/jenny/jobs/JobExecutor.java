@@ -0,0 +1,182 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import java.text.MessageFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.sshtools.jenny.jobs.Job.Rejection;
+
+/**
+ * Runs the jobs for a single {@link Job.Queue}, on a bounded pool of platform
+ * or virtual threads with an optionally bounded queue.
+ * <p>
+ * A {@link java.util.concurrent.ScheduledThreadPoolExecutor} always has an
+ * unbounded queue and cannot grow, so instead delayed and periodic tasks wait
+ * on a shared timer and join this queue when due. Idle threads exit after a
+ * minute, so a queue that is rarely used holds no threads.
+ */
+final class JobExecutor extends ThreadPoolExecutor implements ScheduledExecutorService {
+
+	/* Set while the timer hands a due task over, which must never block the timer */
+	private final static ThreadLocal<Boolean> FIRING = ThreadLocal.withInitial(() -> false);
+
+	private final String name;
+	private final Rejection rejection;
+	private final ScheduledExecutorService timer;
+
+	JobExecutor(String name, int threads, int maxQueued, boolean virtualThreads, Rejection rejection, ScheduledExecutorService timer) {
+		super(threads, threads, 60, TimeUnit.SECONDS, 
+			maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new LinkedBlockingQueue<>(),
+			(virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform()).name(name + "-", 0).factory());
+		this.name = name;
+		this.rejection = rejection;
+		this.timer = timer;
+		allowCoreThreadTimeOut(true);
+		setRejectedExecutionHandler((r, ex) -> reject(r));
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return arm(new DelayedTask<Void>(Executors.callable(command, null), unit.toNanos(delay), 0));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return arm(new DelayedTask<>(callable, unit.toNanos(delay), 0));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		if(period <= 0)
+			throw new IllegalArgumentException("Period must be positive.");
+		return arm(new DelayedTask<Void>(Executors.callable(command, null), unit.toNanos(initialDelay), unit.toNanos(period)));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		if(delay <= 0)
+			throw new IllegalArgumentException("Delay must be positive.");
+		return arm(new DelayedTask<Void>(Executors.callable(command, null), unit.toNanos(initialDelay), -unit.toNanos(delay)));
+	}
+
+	private <V> DelayedTask<V> arm(DelayedTask<V> task) {
+		if(isShutdown())
+			throw new RejectedExecutionException(MessageFormat.format("Job queue {0} is shut down.", name));
+		task.timerFuture = timer.schedule(task::fire, task.due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		return task;
+	}
+
+	private void reject(Runnable r) {
+		if(isShutdown())
+			throw new RejectedExecutionException(MessageFormat.format("Job queue {0} is shut down.", name));
+		if(FIRING.get())
+			throw new RejectedExecutionException(MessageFormat.format("Job queue {0} is full, a scheduled job could not run.", name));
+		
+		switch(rejection) {
+		case CALLER_RUNS:
+			r.run();
+			break;
+		case BLOCK:
+			try {
+				getQueue().put(r);
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(MessageFormat.format("Interrupted waiting for room in job queue {0}.", name), ie);
+			}
+			break;
+		default:
+			throw new RejectedExecutionException(MessageFormat.format("Job queue {0} is full, {1} jobs are waiting.", name, getQueue().size()));
+		}
+	}
+
+	/**
+	 * A task waiting on the timer. The period is positive for a fixed rate,
+	 * negative for a fixed delay, and zero if the task runs once.
+	 */
+	private final class DelayedTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+		private final long period;
+		private volatile long due;
+		private volatile ScheduledFuture<?> timerFuture;
+
+		private DelayedTask(Callable<V> callable, long delay, long period) {
+			super(callable);
+			this.period = period;
+			this.due = System.nanoTime() + delay;
+		}
+
+		@Override
+		public void run() {
+			if(period == 0)
+				super.run();
+			else if(runAndReset() && !isShutdown()) {
+				due = period > 0 ? due + period : System.nanoTime() - period;
+				arm(this);
+			}
+		}
+
+		@Override
+		public boolean isPeriodic() {
+			return period != 0;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			var cancelled = super.cancel(mayInterruptIfRunning);
+			var tf = timerFuture;
+			if(cancelled && tf != null)
+				tf.cancel(false);
+			return cancelled;
+		}
+
+		private void fire() {
+			if(isDone())
+				return;
+			FIRING.set(true);
+			try {
+				execute(this);
+			}
+			catch(RejectedExecutionException ree) {
+				setException(ree);
+			}
+			finally {
+				FIRING.set(false);
+			}
+		}
+	}
+}
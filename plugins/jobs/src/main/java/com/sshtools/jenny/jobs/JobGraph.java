@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import static com.sshtools.jenny.jobs.Jobs.LOG;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.sshtools.jenny.jobs.Job.Handle;
+
+/**
+ * Holds back jobs until the jobs they depend on have completed. A job that
+ * depends on a job that fails or is cancelled never runs.
+ */
+final class JobGraph {
+
+	private final class Waiter {
+		private final AtomicInteger remaining;
+		private final Runnable ready;
+		private final Consumer<UUID> blocked;
+
+		private Waiter(int remaining, Runnable ready, Consumer<UUID> blocked) {
+			this.remaining = new AtomicInteger(remaining);
+			this.ready = ready;
+			this.blocked = blocked;
+		}
+
+		private void arrive() {
+			if(remaining.decrementAndGet() == 0) {
+				try {
+					dispatcher.execute(ready);
+				}
+				catch(RejectedExecutionException ree) {
+					LOG.warning("Could not dispatch a job whose dependencies completed, starting it directly.", ree);
+					ready.run();
+				}
+			}
+		}
+
+		private void block(UUID dependency) {
+			if(remaining.getAndSet(-1) > 0)
+				blocked.accept(dependency);
+		}
+	}
+
+	private final Map<UUID, List<Waiter>> waiters = new HashMap<>();
+	private final Executor dispatcher;
+	
+	/**
+	 * Constructor.
+	 *
+	 * @param dispatcher executor that starts jobs once they are ready
+	 */
+	JobGraph(Executor dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Wait for a set of jobs to complete. Once they all have, <code>ready</code>
+	 * is handed to the dispatcher, so the thread that finished the last of them
+	 * is not held up starting whatever waited on it. If any of them fails or is cancelled,
+	 * <code>blocked</code> is called with its ID instead.
+	 *
+	 * @param dependencies jobs to wait for
+	 * @param ready called when all jobs have completed
+	 * @param blocked called when any job did not complete
+	 */
+	void await(Collection<Handle<?>> dependencies, Runnable ready, Consumer<UUID> blocked) {
+		/* One more than needed, so ready is not called until all are registered */
+		var waiter = new Waiter(dependencies.size() + 1, ready, blocked);
+		var done = new ArrayList<Handle<?>>();
+		synchronized(waiters) {
+			for(var dep : dependencies) {
+				/* A job is done before it is finished, so either it is seen here, or it sees the waiter */
+				if(dep.result().isDone())
+					done.add(dep);
+				else
+					waiters.computeIfAbsent(dep.state().uuid(), k -> new ArrayList<>()).add(waiter);
+			}
+		}
+		for(var dep : done) {
+			if(completed(dep.result()))
+				waiter.arrive();
+			else
+				waiter.block(dep.state().uuid());
+		}
+		waiter.arrive();
+	}
+
+	/**
+	 * A job has finished, so start or block anything waiting for it.
+	 *
+	 * @param uuid job
+	 * @param completed whether the job completed normally
+	 */
+	void finished(UUID uuid, boolean completed) {
+		List<Waiter> l;
+		synchronized(waiters) {
+			l = waiters.remove(uuid);
+		}
+		if(l != null) {
+			for(var waiter : l) {
+				if(completed)
+					waiter.arrive();
+				else
+					waiter.block(uuid);
+			}
+		}
+	}
+
+	private static boolean completed(Future<?> future) {
+		if(future.isCancelled())
+			return false;
+		try {
+			future.get();
+			return true;
+		}
+		catch(Exception e) {
+			return false;
+		}
+	}
+}
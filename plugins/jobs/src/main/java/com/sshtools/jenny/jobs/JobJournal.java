@@ -0,0 +1,474 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+
+import com.sshtools.jenny.jobs.Job.JobState;
+import com.sshtools.jenny.jobs.Jobs.JobOptions;
+import com.sshtools.jenny.jobs.Jobs.JobRecord;
+import com.sshtools.jenny.jobs.Jobs.JobStatus;
+
+/**
+ * A durable record of jobs, so work interrupted by a restart may be resumed,
+ * and finished jobs may be looked at for a while afterwards.
+ * <p>
+ * The journal is an append-only file with one JSON record per line. A job is
+ * recorded when it is submitted, whenever it saves a checkpoint, and when it
+ * finishes. Jobs that are {@link Serializable} are stored along with their
+ * checkpoints, so they may be run again, and only their records are forced to
+ * disk as they are written. A record torn by a crash is skipped when the
+ * journal is read.
+ * <p>
+ * Now and then the file is compacted, keeping only the latest records of each
+ * job and dropping finished jobs older than the retention period. The new file
+ * is written alongside and atomically moved into place, so a crash while
+ * compacting loses nothing.
+ */
+final class JobJournal implements Closeable {
+
+	/**
+	 * Journal settings.
+	 */
+	record Settings(Path file, Duration retention, int maxAttempts, boolean sync) {
+	}
+
+	/**
+	 * A job that was unfinished when the journal was last closed, and that may
+	 * be run again.
+	 */
+	record Orphan(UUID uuid, String category, int attempt, boolean exclusive, byte[] job, Optional<byte[]> queue,
+			Optional<String> bundle, Optional<String> locale, Optional<byte[]> checkpoint, long val, long max,
+			String text, String title) {
+	}
+
+	private final static class Entry {
+		private JsonObject submitted;
+		private Optional<JsonObject> checkpoint = Optional.empty();
+		private Optional<JsonObject> finished = Optional.empty();
+	}
+
+	private final static int MAX_DEPTH = 20;
+	private final static int MAX_REFERENCES = 100000;
+	private final static int MAX_ARRAY = 1000000;
+
+	private final Settings settings;
+	private final Map<UUID, Entry> entries = new LinkedHashMap<>();
+	private final Set<UUID> orphans = new HashSet<>();
+	private FileChannel channel;
+
+	JobJournal(Settings settings) {
+		this.settings = settings;
+		try {
+			Files.createDirectories(settings.file.toAbsolutePath().getParent());
+			if(Files.exists(settings.file))
+				load();
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+
+		/* Anything unfinished was running when the process stopped */
+		entries.forEach((uuid, entry) -> {
+			if(entry.finished.isEmpty()) {
+				if(entry.submitted.containsKey("job") && entry.submitted.getInt("attempt", 1) < settings.maxAttempts)
+					orphans.add(uuid);
+				else
+					entry.finished = Optional.of(finishRecord(uuid, JobStatus.INTERRUPTED, Optional.empty()));
+			}
+		});
+		if(!orphans.isEmpty())
+			Jobs.LOG.info("{0} interrupted jobs may be recovered.", orphans.size());
+
+		compact();
+	}
+
+	/**
+	 * Record a job being submitted.
+	 *
+	 * @param state state
+	 * @param options options
+	 */
+	synchronized void submitted(JobState state, JobOptions<?> options) {
+		var bldr = record("submit", state.uuid).
+			add("category", state.category).
+			add("attempt", state.attempt).
+			add("exclusive", options.exclusive());
+		if(state.title != null)
+			bldr.add("title", state.title);
+
+		/* Children are started again by their parent, recurring jobs by their schedule, and what a job depended on is gone after a restart */
+		if(options.job() instanceof Serializable && state.parent == null && state.recurring == null && options.dependencies().isEmpty()) {
+			serialize(options.job()).ifPresent(b -> bldr.add("job", b));
+			if(options.queue() instanceof Serializable)
+				serialize(options.queue()).ifPresent(b -> bldr.add("queue", b));
+			options.bundle().ifPresent(b -> {
+				if(b.getBaseBundleName() != null) {
+					bldr.add("bundle", b.getBaseBundleName());
+					bldr.add("locale", b.getLocale().toLanguageTag());
+				}
+			});
+		}
+
+		var entry = new Entry();
+		entry.submitted = bldr.build();
+		orphans.remove(state.uuid);
+		entries.put(state.uuid, entry);
+		append(entry.submitted, recoverable(entry));
+	}
+
+	/**
+	 * Record a job's progress, and any state it needs to continue from there.
+	 *
+	 * @param state state
+	 */
+	synchronized void checkpoint(JobState state) {
+		var entry = entries.get(state.uuid);
+		if(entry == null)
+			return;
+
+		var bldr = record("checkpoint", state.uuid).
+			add("val", state.val).
+			add("max", state.max);
+		if(state.text != null)
+			bldr.add("text", state.text);
+		if(state.title != null)
+			bldr.add("title", state.title);
+		if(state.checkpoint != null && entry.submitted.containsKey("job"))
+			serialize(state.checkpoint).ifPresent(b -> bldr.add("data", b));
+
+		var rec = bldr.build();
+		entry.checkpoint = Optional.of(rec);
+		append(rec, recoverable(entry));
+	}
+
+	/**
+	 * Record a job finishing.
+	 *
+	 * @param uuid job
+	 * @param status how it finished
+	 * @param error error, if it failed
+	 */
+	synchronized void finished(UUID uuid, JobStatus status, Optional<String> error) {
+		var entry = entries.get(uuid);
+		if(entry == null)
+			return;
+		var rec = finishRecord(uuid, status, error);
+		orphans.remove(uuid);
+		entry.finished = Optional.of(rec);
+		append(rec, recoverable(entry));
+	}
+
+	/**
+	 * Take the interrupted jobs of a category, so they may be run again.
+	 *
+	 * @param category category
+	 * @return orphans
+	 */
+	synchronized List<Orphan> orphans(String category) {
+		var l = new ArrayList<Orphan>();
+		for(var it = orphans.iterator(); it.hasNext(); ) {
+			var uuid = it.next();
+			var entry = entries.get(uuid);
+			var sub = entry.submitted;
+			if(!sub.getString("category").equals(category))
+				continue;
+			it.remove();
+
+			var chk = entry.checkpoint;
+			l.add(new Orphan(uuid, category, sub.getInt("attempt", 1), sub.getBoolean("exclusive", true),
+				decode(sub.getString("job")),
+				Optional.ofNullable(sub.getString("queue", null)).map(JobJournal::decode),
+				Optional.ofNullable(sub.getString("bundle", null)),
+				Optional.ofNullable(sub.getString("locale", null)),
+				chk.flatMap(c -> Optional.ofNullable(c.getString("data", null))).map(JobJournal::decode),
+				chk.map(c -> c.getJsonNumber("val").longValue()).orElse(0l),
+				chk.map(c -> c.getJsonNumber("max").longValue()).orElse(0l),
+				chk.map(c -> c.getString("text", null)).orElse(null),
+				chk.map(c -> c.getString("title", null)).orElse(sub.getString("title", null))));
+		}
+		return l;
+	}
+
+	/**
+	 * Get all jobs in the journal, oldest first.
+	 *
+	 * @return jobs
+	 */
+	synchronized List<JobRecord> records() {
+		var l = new ArrayList<JobRecord>(entries.size());
+		entries.forEach((uuid, entry) -> {
+			var sub = entry.submitted;
+			var chk = entry.checkpoint;
+			var fin = entry.finished;
+			l.add(new JobRecord(uuid,
+				sub.getString("category"),
+				Optional.ofNullable(chk.map(c -> c.getString("title", null)).orElse(sub.getString("title", null))),
+				chk.flatMap(c -> Optional.ofNullable(c.getString("text", null))),
+				chk.map(c -> c.getJsonNumber("val").longValue()).orElse(0l),
+				chk.map(c -> c.getJsonNumber("max").longValue()).orElse(0l),
+				fin.map(f -> JobStatus.valueOf(f.getString("status"))).orElse(orphans.contains(uuid) ? JobStatus.RECOVERABLE : JobStatus.RUNNING),
+				Instant.ofEpochMilli(sub.getJsonNumber("time").longValue()),
+				fin.map(f -> Instant.ofEpochMilli(f.getJsonNumber("time").longValue())),
+				sub.getInt("attempt", 1),
+				fin.flatMap(f -> Optional.ofNullable(f.getString("error", null)))));
+		});
+		return l;
+	}
+
+	/**
+	 * Rewrite the journal with only the latest records of each job, dropping
+	 * those that finished before the retention period. Interrupted jobs that
+	 * nothing has recovered in that time are given up on.
+	 */
+	synchronized void compact() {
+		var cutoff = System.currentTimeMillis() - settings.retention.toMillis();
+		for(var it = entries.entrySet().iterator(); it.hasNext(); ) {
+			var en = it.next();
+			var entry = en.getValue();
+			if(orphans.contains(en.getKey()) && entry.submitted.getJsonNumber("time").longValue() < cutoff) {
+				orphans.remove(en.getKey());
+				entry.finished = Optional.of(finishRecord(en.getKey(), JobStatus.INTERRUPTED, Optional.empty()));
+			}
+			if(entry.finished.isPresent() && entry.finished.get().getJsonNumber("time").longValue() < cutoff)
+				it.remove();
+		}
+
+		var tmp = settings.file.resolveSibling(settings.file.getFileName() + ".tmp");
+		try {
+			closeChannel();
+			try(var out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				for(var entry : entries.values()) {
+					write(out, entry.submitted);
+					if(entry.checkpoint.isPresent())
+						write(out, entry.checkpoint.get());
+					if(entry.finished.isPresent())
+						write(out, entry.finished.get());
+				}
+				out.force(true);
+			}
+			Files.move(tmp, settings.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException ioe) {
+			Jobs.LOG.warning("Failed to compact job journal `{0}`.", settings.file, ioe);
+		}
+		finally {
+			try {
+				Files.deleteIfExists(tmp);
+				channel = FileChannel.open(settings.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		closeChannel();
+	}
+
+	/**
+	 * Read an object stored in the journal, resolving classes using a
+	 * particular class loader, such as that of the plugin that owns the job.
+	 * Only classes of that loader, of this plugin, and of the JDK may be
+	 * read, so a tampered journal cannot create arbitrary objects.
+	 *
+	 * @param data serialized object
+	 * @param loader class loader
+	 * @return object
+	 * @throws IOException on error
+	 * @throws ClassNotFoundException if a class cannot be found
+	 */
+	static Object deserialize(byte[] data, ClassLoader loader) throws IOException, ClassNotFoundException {
+		try(var in = new ObjectInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				}
+				catch(ClassNotFoundException cnfe) {
+					return super.resolveClass(desc);
+				}
+			}
+		}) {
+			in.setObjectInputFilter(filter(loader));
+			return in.readObject();
+		}
+	}
+
+	private static ObjectInputFilter filter(ClassLoader loader) {
+		return info -> {
+			if(info.depth() > MAX_DEPTH || info.references() > MAX_REFERENCES || info.arrayLength() > MAX_ARRAY)
+				return ObjectInputFilter.Status.REJECTED;
+			var clazz = info.serialClass();
+			if(clazz == null)
+				return ObjectInputFilter.Status.UNDECIDED;
+			while(clazz.isArray())
+				clazz = clazz.getComponentType();
+			if(clazz.isPrimitive() || clazz.getName().startsWith("java.") || clazz.getClassLoader() == loader ||
+					clazz.getClassLoader() == JobJournal.class.getClassLoader())
+				return ObjectInputFilter.Status.ALLOWED;
+			Jobs.LOG.warning("Refusing to restore job containing `{0}`.", clazz.getName());
+			return ObjectInputFilter.Status.REJECTED;
+		};
+	}
+
+	/* Only a job that may be run again after a restart needs its records on disk straight away */
+	private static boolean recoverable(Entry entry) {
+		return entry.submitted.containsKey("job");
+	}
+
+	private static Optional<String> serialize(Object obj) {
+		var out = new ByteArrayOutputStream();
+		try(var oout = new ObjectOutputStream(out)) {
+			oout.writeObject(obj);
+		}
+		catch(InvalidClassException | NotSerializableException e) {
+			Jobs.LOG.warning("Job {0} could not be stored, so cannot be recovered. {1}", obj.getClass().getName(), e.getMessage());
+			return Optional.empty();
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return Optional.of(Base64.getEncoder().encodeToString(out.toByteArray()));
+	}
+
+	private static byte[] decode(String data) {
+		return Base64.getDecoder().decode(data);
+	}
+
+	private JsonObjectBuilder record(String op, UUID uuid) {
+		return Json.createObjectBuilder().
+			add("op", op).
+			add("uuid", uuid.toString()).
+			add("time", System.currentTimeMillis());
+	}
+
+	private JsonObject finishRecord(UUID uuid, JobStatus status, Optional<String> error) {
+		var bldr = record("finish", uuid).add("status", status.name());
+		error.ifPresent(e -> bldr.add("error", e));
+		return bldr.build();
+	}
+
+	private void load() throws IOException {
+		var skipped = 0;
+		for(var line : Files.readAllLines(settings.file, StandardCharsets.UTF_8)) {
+			if(line.isBlank())
+				continue;
+			JsonObject rec;
+			UUID uuid;
+			String op;
+			/* A line torn by a crash may still be valid JSON, but lack what a record needs */
+			try(var rdr = Json.createReader(new StringReader(line))) {
+				rec = rdr.readObject();
+				uuid = UUID.fromString(rec.getString("uuid"));
+				op = rec.getString("op");
+			}
+			catch(RuntimeException re) {
+				skipped++;
+				continue;
+			}
+
+			switch(op) {
+			case "submit":
+				var entry = new Entry();
+				entry.submitted = rec;
+				entries.put(uuid, entry);
+				break;
+			case "checkpoint":
+				var chk = entries.get(uuid);
+				if(chk != null)
+					chk.checkpoint = Optional.of(rec);
+				break;
+			case "finish":
+				var fin = entries.get(uuid);
+				if(fin != null)
+					fin.finished = Optional.of(rec);
+				break;
+			default:
+				skipped++;
+				break;
+			}
+		}
+		if(skipped > 0)
+			Jobs.LOG.warning("Skipped {0} unreadable records in job journal `{1}`.", skipped, settings.file);
+	}
+
+	private void append(JsonObject rec, boolean durable) {
+		if(channel == null)
+			return;
+		try {
+			write(channel, rec);
+			if(settings.sync && durable)
+				channel.force(false);
+		}
+		catch(IOException ioe) {
+			Jobs.LOG.warning("Failed to write to job journal `{0}`.", settings.file, ioe);
+		}
+	}
+
+	private static void write(FileChannel out, JsonObject rec) throws IOException {
+		var buf = ByteBuffer.wrap((rec.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+		while(buf.hasRemaining())
+			out.write(buf);
+	}
+
+	private void closeChannel() {
+		if(channel != null) {
+			try {
+				channel.close();
+			}
+			catch(IOException ioe) {
+			}
+			channel = null;
+		}
+	}
+}
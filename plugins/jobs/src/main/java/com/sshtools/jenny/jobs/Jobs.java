@@ -15,24 +15,40 @@
  */
 package com.sshtools.jenny.jobs;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 import javax.json.Json;
@@ -41,18 +57,23 @@ import com.sshtools.bootlace.api.Logs;
 import com.sshtools.bootlace.api.Logs.Log;
 import com.sshtools.bootlace.api.Plugin;
 import com.sshtools.bootlace.api.PluginContext;
+import com.sshtools.jenny.api.Api;
 import com.sshtools.jenny.bootstrap5.Bootstrap5;
+import com.sshtools.jenny.config.Config;
 import com.sshtools.jenny.io.Io;
 import com.sshtools.jenny.io.Io.Contributor;
 import com.sshtools.jenny.io.Io.IoChannel;
 import com.sshtools.jenny.io.Io.Sender;
 import com.sshtools.jenny.jobs.Job.Handle;
 import com.sshtools.jenny.jobs.Job.Queue;
+import com.sshtools.jenny.jobs.Job.Rejection;
 import com.sshtools.jenny.jobs.Job.StandardQueues;
+import com.sshtools.jenny.web.LoggedExecutorService;
 import com.sshtools.jenny.web.Web;
 import com.sshtools.jenny.web.WebLog;
 import com.sshtools.jenny.web.WebModule;
 import com.sshtools.jenny.web.WebModule.WebModulesRef;
+import com.sshtools.jini.config.INISet;
 import com.sshtools.tinytemplate.Templates.TemplateModel;
 import com.sshtools.uhttpd.UHTTPD.Status;
 import com.sshtools.uhttpd.UHTTPD.Transaction;
@@ -60,8 +81,100 @@ import com.sshtools.uhttpd.UHTTPD.Transaction;
 public class Jobs implements Plugin {
 	final static Log LOG = Logs.of(WebLog.JOBS);
 	
+	public final static String JOURNAL = "journal";
+	public final static String PROGRESS = "progress";
 	
-	public record JobOptions<RESULT>(Queue queue, Optional<ResourceBundle> bundle, Job<RESULT> job, Optional<String> category, boolean exclusive) {}
+	
+	/**
+	 * How a job recorded in the journal finished, or whether it is still
+	 * running.
+	 */
+	public enum JobStatus {
+		/**
+		 * Queued or running.
+		 */
+		RUNNING,
+		/**
+		 * Was running when the server stopped, and may be recovered.
+		 */
+		RECOVERABLE,
+		/**
+		 * Finished normally.
+		 */
+		COMPLETED,
+		/**
+		 * Threw an exception, or could not be queued.
+		 */
+		FAILED,
+		/**
+		 * Was cancelled.
+		 */
+		CANCELLED,
+		/**
+		 * Was running when the server stopped, and cannot be recovered.
+		 */
+		INTERRUPTED
+	}
+	
+	/**
+	 * A job as recorded in the journal, including recently finished jobs.
+	 */
+	public record JobRecord(UUID uuid, String category, Optional<String> title, Optional<String> text, long val, long max, 
+			JobStatus status, Instant submitted, Optional<Instant> finished, int attempt, Optional<String> error) {}
+	
+	/**
+	 * A job that is run each time its {@link Schedule} is due. Each run is an
+	 * ordinary job, so shows its progress and may be cancelled in the same way.
+	 */
+	public interface Recurring {
+		
+		String category();
+		
+		Schedule schedule();
+		
+		/**
+		 * Get when the next run is due to start, including any jitter.
+		 * 
+		 * @return next run, or empty if cancelled or there are no more runs
+		 */
+		Optional<Instant> next();
+		
+		/**
+		 * Get the run that is in progress, if any.
+		 * 
+		 * @return current run
+		 */
+		Optional<Handle<?>> current();
+		
+		/**
+		 * Get how many runs have been started.
+		 * 
+		 * @return runs
+		 */
+		long runs();
+		
+		/**
+		 * Get how many runs started late or were skipped.
+		 * 
+		 * @return misfires
+		 */
+		long misfires();
+		
+		boolean cancelled();
+		
+		/**
+		 * Stop any more runs from starting. A run in progress carries on, and may
+		 * be cancelled using its handle.
+		 */
+		void cancel();
+	}
+	
+	public record JobOptions<RESULT>(Queue queue, Optional<ResourceBundle> bundle, Job<RESULT> job, Optional<String> category, boolean exclusive, List<Handle<?>> dependencies) {
+		
+		public JobOptions(Queue queue, Optional<ResourceBundle> bundle, Job<RESULT> job, Optional<String> category, boolean exclusive) {
+			this(queue, bundle, job, category, exclusive, Collections.emptyList());
+		}
+	}
 	
 	public final static class JobBuilder<RESULT> {
 		private Queue queue = StandardQueues.GENERIC;
@@ -69,6 +182,7 @@ public class Jobs implements Plugin {
 		private final Job<RESULT> job;
 		private Optional<String> category = Optional.empty();
 		private boolean exclusive = true;
+		private final List<Handle<?>> dependencies = new ArrayList<>();
 		
 		public JobBuilder(Job<RESULT> job) {
 			this.job = job;
@@ -112,26 +226,87 @@ public class Jobs implements Plugin {
 			return withBundle(ResourceBundle.getBundle(bundle.getName(), locale, bundle.getClassLoader()));
 		}
 		
+		/**
+		 * Only start the job once all of these jobs have completed. If any of them
+		 * fails or is cancelled, this job is cancelled without running. An 
+		 * exclusive job does not conflict with the jobs it depends on, directly
+		 * or through their own dependencies.
+		 * 
+		 * @param dependencies jobs to wait for
+		 * @return this for chaining
+		 */
+		public JobBuilder<RESULT> withDependencies(Handle<?>... dependencies) {
+			return withDependencies(Arrays.asList(dependencies));
+		}
+		
+		/**
+		 * Only start the job once all of these jobs have completed. If any of them
+		 * fails or is cancelled, this job is cancelled without running. An 
+		 * exclusive job does not conflict with the jobs it depends on, directly
+		 * or through their own dependencies.
+		 * 
+		 * @param dependencies jobs to wait for
+		 * @return this for chaining
+		 */
+		public JobBuilder<RESULT> withDependencies(Collection<Handle<?>> dependencies) {
+			this.dependencies.addAll(dependencies);
+			return this;
+		}
+		
 		public JobOptions<RESULT> build() {
-			return new JobOptions<>(queue, bundle, job, category, exclusive);
+			return new JobOptions<>(queue, bundle, job, category, exclusive, List.copyOf(dependencies));
 		}
 		
 	}
 	
 	private Web web;
 	private Io io;
-	private Map<Queue, ScheduledExecutorService> queues = new HashMap<>();
+	private Api api;
+	private Map<Queue, LoggedExecutorService> queues = new HashMap<>();
+	private List<Closeable> queueMetrics = new ArrayList<>();
 	private Map<String, List<Handle<?>>> jobs = new ConcurrentHashMap<>();
 	private Map<UUID, Handle<?>> jobsByUuid = new ConcurrentHashMap<>();
 	private Map<String, Contributor> ioContributors = new ConcurrentHashMap<>();
-	private Map<String, Sender> ioSenders = new ConcurrentHashMap<>();
 	private WebModule jobModule;
 	private WebModulesRef modulesRef;
+	private INISet configSet;
+	private Optional<JobJournal> journal = Optional.empty();
+	private long shutdownTimeout = 30;
+	private Optional<ScheduledFuture<?>> compactor = Optional.empty();
+	private ProgressPublisher publisher;
+	private final JobGraph graph = new JobGraph(cmd -> queue(StandardQueues.SYSTEM).execute(cmd));
+	private final List<RecurringJob> recurring = new CopyOnWriteArrayList<>();
 	
 	@Override
 	public void afterOpen(PluginContext context) {
 		web = context.plugin(Web.class);
 		io = context.plugin(Io.class);
+		api = context.plugin(Api.class);
+		configSet = context.plugin(Config.class).configBuilder("jobs", Jobs.class, "Jobs.schema.ini").build();
+		
+		var progressSection = configSet.document().sectionOr(PROGRESS);
+		publisher = new ProgressPublisher(new ProgressPublisher.Settings(
+				Math.max(1, progressSection.map(cfg -> cfg.getInt("interval", 100)).orElse(100)), 
+				TimeUnit.MILLISECONDS, 
+				progressSection.map(cfg -> cfg.getInt("min-change", 1)).orElse(1)), 
+			(category, msg) -> io.broadcast("jobs." + category, msg));
+		
+		var journalSection = configSet.document().sectionOr(JOURNAL);
+		if(journalSection.map(cfg -> cfg.getBoolean("enabled", true)).orElse(true)) {
+			var directory = Paths.get(journalSection.flatMap(cfg -> cfg.getOr("directory")).orElseGet(() -> System.getProperty("user.dir") + File.separator + "state"));
+			var jrnl = new JobJournal(new JobJournal.Settings(
+				directory.resolve("jobs.journal"), 
+				Duration.ofHours(journalSection.map(cfg -> cfg.getInt("retention", 72)).orElse(72)), 
+				Math.max(1, journalSection.map(cfg -> cfg.getInt("max-attempts", 3)).orElse(3)), 
+				journalSection.map(cfg -> cfg.getBoolean("sync", true)).orElse(true)));
+			journal = Optional.of(jrnl);
+			shutdownTimeout = Math.max(0, journalSection.map(cfg -> cfg.getInt("shutdown-timeout", 30)).orElse(30));
+			
+			var interval = Math.max(1, journalSection.map(cfg -> cfg.getInt("compact-interval", 60)).orElse(60));
+			compactor = Optional.of(api.globalTimerQueue().scheduleWithFixedDelay(
+				() -> queue(StandardQueues.SYSTEM).execute(jrnl::compact), 
+				interval, interval, TimeUnit.MINUTES));
+		}
 		
 		context.autoClose(
 			modulesRef = web.modules(
@@ -146,6 +321,51 @@ public class Jobs implements Plugin {
 				build());
 	}
 	
+	@Override
+	public void close() {
+		recurring.forEach(RecurringJob::cancel);
+		compactor.ifPresent(c -> c.cancel(false));
+		compactor = Optional.empty();
+		List<LoggedExecutorService> stopping;
+		synchronized(queues) {
+			queueMetrics.forEach(c -> {
+				try {
+					c.close();
+				}
+				catch(IOException ioe) {
+				}
+			});
+			queueMetrics.clear();
+			stopping = new ArrayList<>(queues.values());
+			stopping.forEach(LoggedExecutorService::shutdown);
+			queues.clear();
+		}
+		
+		/* Jobs still running record finishing in the journal, so it must stay open until they do */
+		if(journal.isPresent()) {
+			var until = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeout);
+			try {
+				for(var queue : stopping) {
+					if(!queue.awaitTermination(until - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+						LOG.warning("Jobs still running after {0} seconds, they will be recovered when next started.", shutdownTimeout);
+						break;
+					}
+				}
+			}
+			catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		journal.ifPresent(JobJournal::close);
+		journal = Optional.empty();
+		if(publisher != null) {
+			publisher.close();
+		}
+		if(configSet != null) {
+			configSet.close();
+		}
+	}
+	
 	public WebModule webModule() {
 		return jobModule;
 	}
@@ -175,23 +395,141 @@ public class Jobs implements Plugin {
 		}
 	}
 	
+	/**
+	 * Get all jobs in the journal, including those that finished within the
+	 * retention period, oldest first. 
+	 * 
+	 * @return jobs
+	 */
+	public List<JobRecord> history() {
+		return journal.map(JobJournal::records).orElse(Collections.emptyList());
+	}
+	
+	/**
+	 * Get all jobs of a category in the journal, including those that finished
+	 * within the retention period, oldest first. 
+	 * 
+	 * @param jobCategory category
+	 * @return jobs
+	 */
+	public List<JobRecord> history(String jobCategory) {
+		return history().stream().filter(r -> r.category().equals(jobCategory)).toList();
+	}
+	
+	/**
+	 * Run again any {@link Serializable} jobs of a category that were interrupted
+	 * when the server last stopped. The category class's loader is used to load
+	 * the jobs, so this should be called by the plugin that owns them once it
+	 * is ready for them to run.
+	 * 
+	 * @param jobCategory category and class loader
+	 * @return handles of recovered jobs
+	 */
+	public List<Handle<?>> recover(Class<?> jobCategory) {
+		return recover(jobCategory.getName(), jobCategory.getClassLoader());
+	}
+	
+	/**
+	 * Run again any {@link Serializable} jobs of a category that were interrupted
+	 * when the server last stopped.
+	 * 
+	 * @param jobCategory category
+	 * @param loader class loader to load jobs with
+	 * @return handles of recovered jobs
+	 */
+	public List<Handle<?>> recover(String jobCategory, ClassLoader loader) {
+		return journal.map(j -> j.orphans(jobCategory).stream().<Handle<?>>map(orphan -> {
+			try {
+				return resume(orphan, loader);
+			}
+			catch(Exception e) {
+				LOG.error("Failed to recover job {0}.", orphan.uuid(), e);
+				j.finished(orphan.uuid(), JobStatus.FAILED, Optional.of("Could not be recovered. " + e.getMessage()));
+				return null;
+			}
+		}).filter(Objects::nonNull).toList()).orElse(Collections.emptyList());
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Handle<?> resume(JobJournal.Orphan orphan, ClassLoader loader) throws IOException, ClassNotFoundException {
+		var job = (Job<Object>)JobJournal.deserialize(orphan.job(), loader);
+		var queue = orphan.queue().isPresent() ? (Queue)JobJournal.deserialize(orphan.queue().get(), loader) : StandardQueues.GENERIC;
+		var bundle = orphan.bundle().map(b -> ResourceBundle.getBundle(b, orphan.locale().map(Locale::forLanguageTag).orElseGet(Locale::getDefault), loader));
+		
+		var state = new Job.JobState();
+		state.uuid = orphan.uuid();
+		state.attempt = orphan.attempt() + 1;
+		state.val = orphan.val();
+		state.max = orphan.max();
+		state.text = orphan.text();
+		state.title = orphan.title();
+		if(orphan.checkpoint().isPresent())
+			state.checkpoint = (Serializable)JobJournal.deserialize(orphan.checkpoint().get(), loader);
+		
+		LOG.info("Recovering job {0} in {1}, attempt {2}.", orphan.uuid(), orphan.category(), state.attempt);
+		return run(new JobOptions<>(queue, bundle, job, Optional.of(orphan.category()), orphan.exclusive()), state);
+	}
+	
+	/**
+	 * Run a job each time a schedule is due, until cancelled. Runs are started
+	 * using the {@link StandardQueues#SYSTEM} queue, then run on the job's own
+	 * queue.
+	 * 
+	 * @param options job options
+	 * @param schedule schedule
+	 * @return recurring job
+	 */
+	public Recurring schedule(JobOptions<?> options, Schedule schedule) {
+		var rec = new RecurringJob(
+			options.category.orElse("default"), 
+			schedule, 
+			r -> {
+				var state = new Job.JobState();
+				state.recurring = r;
+				return run(options, state);
+			}, 
+			api.globalTimerQueue(), 
+			cmd -> queue(StandardQueues.SYSTEM).execute(cmd), 
+			() -> recurring.removeIf(r -> r.cancelled()));
+		recurring.add(rec);
+		rec.start();
+		LOG.info("Scheduled recurring job in {0}, {1}.", rec.category(), schedule);
+		return rec;
+	}
+	
+	/**
+	 * Get all recurring jobs that have not been cancelled.
+	 * 
+	 * @return recurring jobs
+	 */
+	public List<Recurring> recurring() {
+		return Collections.unmodifiableList(recurring);
+	}
+	
+	/**
+	 * Get all recurring jobs of a category that have not been cancelled.
+	 * 
+	 * @param jobCategory category
+	 * @return recurring jobs
+	 */
+	public List<Recurring> recurring(String jobCategory) {
+		return recurring.stream().filter(r -> r.category().equals(jobCategory)).<Recurring>map(r -> r).toList();
+	}
+	
 	public <RESULT> Handle<RESULT> run(JobOptions<RESULT> options) {
+		return run(options, new Job.JobState());
+	}
+	
+	private <RESULT> Handle<RESULT> run(JobOptions<RESULT> options, Job.JobState state) {
 		var jobCategory = options.category.orElse("default");
-		var q = options.queue;
 		var job = options.job;
 		
-		if(jobs.containsKey(jobCategory) && options.exclusive)
-			throw new IllegalStateException(MessageFormat.format("Job with ID {0}", jobCategory));
-		ScheduledExecutorService queue;
-		synchronized(queues) {
-			queue = queues.get(q);
-			if(queue == null) {
-				queue = Executors.newScheduledThreadPool(q.threads());
-				queues.put(q, queue);
-			}
-		}
+		var exclusive = options.exclusive && state.parent == null;
+		var upstream = exclusive ? upstream(options.dependencies) : Set.<Handle<?>>of();
+		state.dependencies = options.dependencies;
+		var queue = queue(options.queue);
 		
-		var state = new Job.JobState();
+		state.queue = options.queue;
 		state.category = jobCategory;
 		
 		var ctx = new Job.JobContext() {
@@ -199,26 +537,26 @@ public class Jobs implements Plugin {
 			@Override
 			public void val(long val) {
 				state.val = val;
-				sendUpdate();
+				changed();
 			}
 			
 			@Override
 			public void text(String message, Object... args) {
 				state.text = args.length == 0 ? message : MessageFormat.format(message, args);
-				sendUpdate();
+				changed();
 				
 			}
 			
 			@Override
 			public void max(long max) {
 				state.max = max;
-				sendUpdate();
+				changed();
 			}
 			
 			@Override
 			public void indeterminate() {
 				state.max = state.val = 0;
-				sendUpdate();
+				changed();
 			}
 			
 			@Override
@@ -227,7 +565,7 @@ public class Jobs implements Plugin {
 					state.text = options.bundle.orElseThrow(() -> new IllegalStateException("No bundle.")).getString(key);
 				else 
 					state.text = MessageFormat.format(options.bundle.orElseThrow(() -> new IllegalStateException("No bundle.")).getString(key), args);
-				sendUpdate();
+				changed();
 				
 			}
 			
@@ -239,7 +577,7 @@ public class Jobs implements Plugin {
 			@Override
 			public void title(String message, Object... args) {
 				state.title = args.length == 0 ? message : MessageFormat.format(message, args);
-				sendUpdate();
+				changed();
 			}
 
 			@Override
@@ -248,44 +586,84 @@ public class Jobs implements Plugin {
 					state.title = options.bundle.orElseThrow(() -> new IllegalStateException("No bundle.")).getString(key);
 				else 
 					state.title = MessageFormat.format(options.bundle.orElseThrow(() -> new IllegalStateException("No bundle.")).getString(key), args);
-				sendUpdate();
+				changed();
 			}
 
 			@Override
 			public void result(Object result) {
 				state.result = result;
-				sendUpdate();
+				changed();
 			}
 
-			private void sendUpdate() {
-				var sndr = ioSenders.get(jobCategory);
-				if(sndr == null)
-					LOG.warning("Attempt to send update before sender was ready for {0}", jobCategory);
-				else {
-					try {
-						sndr.send(Json.createObjectBuilder().
-							add("type", "update").
-							add("uuid", state.uuid.toString()).
-							add("val", state.val).
-							add("percent", state.percent()).
-							add("max", state.max).
-							add("text", state.text == null ? "" : state.text).
-							add("title", state.title == null ? "" : state.title).
-							build());
-					}
-					catch(Exception e) {
-						LOG.warning("Failed to send job update.", e);
-					}
-				}
+			private void changed() {
+				/* A parent's progress includes its children's */
+				for(var s = state; s != null; s = s.parent)
+					s.dirty = true;
 			}
 
 			@Override
 			public void onCancel(Function<Job<?>, Boolean> r) {
 				state.onCancel = r;
 			}
+
+			@Override
+			public void checkpoint(Serializable checkpoint) {
+				state.checkpoint = checkpoint;
+				journal.ifPresent(j -> j.checkpoint(state));
+			}
+
+			@SuppressWarnings("unchecked")
+			@Override
+			public <T extends Serializable> Optional<T> checkpoint() {
+				return Optional.ofNullable((T)state.checkpoint);
+			}
+
+			@Override
+			public int attempt() {
+				return state.attempt;
+			}
+
+			@Override
+			public <R> Handle<R> fork(Job<R> child) {
+				return fork(new JobOptions<>(options.queue, options.bundle, child, Optional.of(jobCategory), false));
+			}
+
+			@Override
+			public <R> Handle<R> fork(JobOptions<R> childOptions) {
+				var child = new Job.JobState();
+				child.parent = state;
+				state.children.add(child);
+				try {
+					return run(new JobOptions<>(
+						childOptions.queue, 
+						childOptions.bundle.or(() -> options.bundle), 
+						childOptions.job, 
+						childOptions.category.or(() -> Optional.of(jobCategory)), 
+						false, 
+						childOptions.dependencies), child);
+				}
+				catch(RuntimeException re) {
+					state.children.remove(child);
+					throw re;
+				}
+			}
+
+			@Override
+			public void join() throws InterruptedException, ExecutionException {
+				for(var child : state.children) {
+					/* Does nothing if the child has already been started by its queue */
+					if(child.queued && !child.task.isDone())
+						child.task.run();
+					child.task.get();
+				}
+			}
 		};
 		
-		var rawFuture = queue.submit(() -> {
+		/* Why a job was cancelled before it ran, because a job it depends on did not complete */
+		var blocked = new AtomicReference<String>();
+		
+		/* The job is registered before it is queued, as with several threads it may finish before submit returns */
+		var rawFuture = new FutureTask<Object>(() -> {
 			try {
 				job.apply(ctx);
 				return state.result;
@@ -294,29 +672,37 @@ public class Jobs implements Plugin {
 				LOG.error("Job failure.", e);
 				throw e;
 			}
-			finally {
-				var hndl = jobsByUuid.remove(state.uuid());
-				synchronized(jobs) {
-					var l = jobs.get(jobCategory);
-					l.remove(hndl);
-					if(l.isEmpty())
-						jobs.remove(jobCategory);
+		}) {
+			@Override
+			protected void done() {
+				/* Also called if cancelled before it ever started */
+				if(isCancelled() || state.cancelled) {
+					finished(jobCategory, state, JobStatus.CANCELLED, Optional.ofNullable(blocked.get()));
+				}
+				else {
+					try {
+						get();
+						finished(jobCategory, state, JobStatus.COMPLETED, Optional.empty());
+					}
+					catch(InterruptedException | ExecutionException e) {
+						var cause = e.getCause() == null ? e : e.getCause();
+						finished(jobCategory, state, JobStatus.FAILED, Optional.of(String.valueOf(cause.getMessage())));
+					}
 				}
-				ioContributors.remove(jobCategory).close();
-				
-				var sender = ioSenders.remove(jobCategory);
-				sender.send(Json.createObjectBuilder().
-						add("uuid", state.uuid.toString()).
-						add("type", "complete").
-						build());
 			}
-		});
+		};
+		state.task = rawFuture;
 		
 		var handle = new Handle<RESULT>(new Future<RESULT>() {
 
 			@Override
 			public boolean cancel(boolean mayInterruptIfRunning) {
 				state.cancelled = true;
+				state.children.forEach(child -> {
+					var hndl = jobsByUuid.get(child.uuid);
+					if(hndl != null)
+						hndl.result().cancel(mayInterruptIfRunning);
+				});
 				if(state.onCancel == null || !state.onCancel.apply(job)) {
 					return rawFuture.cancel(mayInterruptIfRunning);
 				}
@@ -348,23 +734,127 @@ public class Jobs implements Plugin {
 			}
 		}, state);
 		
+		/* Checked and registered together, so two exclusive jobs started at once cannot both run */
 		synchronized(jobs) {
 			var l = jobs.get(jobCategory);
+			if(exclusive && l != null && l.stream().anyMatch(h -> !upstream.contains(h)))
+				throw new IllegalStateException(MessageFormat.format("Job with ID {0}", jobCategory));
 			if(l == null) {
 				l = new ArrayList<>();
 				jobs.put(jobCategory, l);
-				ioContributors.put(jobCategory, io.contributor("jobs." + jobCategory, (sndr) -> {
-					ioSenders.put(jobCategory, sndr);
-					return ioJobStatus(handle, sndr); 
-				}));
+				ioContributors.put(jobCategory, io.contributor("jobs." + jobCategory, (sndr) -> ioJobStatus(handle, sndr)));
 			}
 			l.add(handle);
 		}
 		jobsByUuid.put(state.uuid(), handle);
+		journal.ifPresent(j -> j.submitted(state, options));
+		publisher.add(state);
+		
+		if(options.dependencies.isEmpty()) {
+			try {
+				state.queued = true;
+				queue.execute(rawFuture);
+			}
+			catch(RejectedExecutionException ree) {
+				finished(jobCategory, state, JobStatus.FAILED, Optional.of(ree.getMessage()));
+				throw ree;
+			}
+		}
+		else {
+			graph.await(options.dependencies, () -> {
+				try {
+					state.queued = true;
+					queue.execute(rawFuture);
+				}
+				catch(RejectedExecutionException ree) {
+					LOG.error("Job {0} could not be queued once the jobs it depends on completed.", state.uuid, ree);
+					finished(jobCategory, state, JobStatus.FAILED, Optional.of(ree.getMessage()));
+					rawFuture.cancel(false);
+				}
+			}, dependency -> {
+				blocked.set(MessageFormat.format("Job {0} that this job depends on did not complete.", dependency));
+				rawFuture.cancel(false);
+			});
+		}
 		
 		return handle;
 	}
 	
+	/**
+	 * Get the jobs a job will wait for, both directly and through the jobs they
+	 * wait for in turn. Finished jobs forget their dependencies, so this only
+	 * goes as far back as jobs that may still be running.
+	 */
+	private static Set<Handle<?>> upstream(List<Handle<?>> dependencies) {
+		var found = new HashSet<Handle<?>>();
+		var next = new ArrayDeque<Handle<?>>(dependencies);
+		while(!next.isEmpty()) {
+			var dep = next.pop();
+			if(found.add(dep))
+				next.addAll(dep.state().dependencies);
+		}
+		return found;
+	}
+	
+	private void finished(String jobCategory, Job.JobState state, JobStatus status, Optional<String> error) {
+		var hndl = jobsByUuid.remove(state.uuid());
+		if(hndl == null)
+			return;
+		state.dependencies = List.of();
+		
+		journal.ifPresent(j -> j.finished(state.uuid(), status, error));
+		graph.finished(state.uuid(), status == JobStatus.COMPLETED);
+		
+		/* Removed with the category, so a job starting in the same category
+		 * cannot register its own contributor only for it to be closed here */
+		Contributor contributor = null;
+		synchronized(jobs) {
+			var l = jobs.get(jobCategory);
+			l.remove(hndl);
+			if(l.isEmpty()) {
+				jobs.remove(jobCategory);
+				contributor = ioContributors.remove(jobCategory);
+			}
+		}
+		
+		publisher.remove(state, Json.createObjectBuilder().
+				add("uuid", state.uuid.toString()).
+				add("type", "complete").
+				build());
+		
+		if(contributor != null)
+			contributor.close();
+		
+		if(state.recurring != null)
+			state.recurring.finished(state);
+	}
+	
+	private LoggedExecutorService queue(Queue q) {
+		synchronized(queues) {
+			var queue = queues.get(q);
+			if(queue == null) {
+				queue = createQueue(q);
+				queues.put(q, queue);
+				queueMetrics.add(api.metrics().register(queue));
+			}
+			return queue;
+		}
+	}
+	
+	private LoggedExecutorService createQueue(Queue q) {
+		var name = q.toString().toLowerCase();
+		var cfg = configSet.document().sectionOr(name);
+		var threads = cfg.map(c -> c.getInt("threads", 0)).filter(t -> t > 0).orElseGet(q::threads);
+		var maxQueued = Math.max(0, cfg.map(c -> c.getInt("max-queued", q.maxQueued())).orElseGet(q::maxQueued));
+		var virtual = cfg.map(c -> c.getBoolean("virtual-threads", q.virtualThreads())).orElseGet(q::virtualThreads);
+		var rejection = cfg.map(c -> c.getEnum(Rejection.class, "rejection", q.rejection())).orElseGet(q::rejection);
+		
+		LOG.info("Job queue {0} runs up to {1} jobs at once on {2} threads.", name, threads, virtual ? "virtual" : "platform");
+		
+		return new LoggedExecutorService("jobs-" + name, new JobExecutor("jobs-" + name, 
+				Math.max(1, threads), maxQueued, virtual, rejection, api.globalTimerQueue()));
+	}
+	
 	private IoChannel ioJobStatus(Handle<?> jobHandle, Sender sndr) {
 		return IoChannel.of(sndr, (incoming) -> {
 			// nothing incoming yet
@@ -0,0 +1,210 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import static com.sshtools.jenny.jobs.Jobs.LOG;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import com.sshtools.jenny.jobs.Job.JobState;
+
+/**
+ * Publishes job progress to browsers from a single thread, so that jobs that
+ * report progress very often do not pay for building and sending a message
+ * each time.
+ * <p>
+ * A job only writes its {@link JobState} and marks it dirty. Every interval, the
+ * publisher looks at each dirty job, and sends an update holding just the fields
+ * that changed since the last one it sent. Changes to the value alone are held
+ * back until the percentage has moved by at least the minimum change, or no
+ * update has been sent for ten intervals.
+ */
+final class ProgressPublisher implements Closeable {
+
+	/**
+	 * Settings.
+	 *
+	 * @param interval minimum time between updates for a single job
+	 * @param unit unit of interval
+	 * @param minPercent percentage the value must move by to be sent straight away
+	 */
+	record Settings(long interval, TimeUnit unit, int minPercent) {
+	}
+
+	/**
+	 * What was last sent for a job. Only touched while holding its lock.
+	 */
+	private final static class Published {
+		private final String category;
+		private boolean done;
+		private boolean first = true;
+		private long at;
+		private long val;
+		private long max;
+		private int percent;
+		private String text;
+		private String title;
+
+		private Published(String category) {
+			this.category = category;
+		}
+	}
+
+	private final Map<JobState, Published> jobs = new ConcurrentHashMap<>();
+	private final BiConsumer<String, JsonObject> sink;
+	private final long interval;
+	private final long idle;
+	private final int minPercent;
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	ProgressPublisher(Settings settings, BiConsumer<String, JsonObject> sink) {
+		this.sink = sink;
+		this.interval = Math.max(1, settings.unit().toNanos(settings.interval()));
+		this.idle = interval * 10;
+		this.minPercent = Math.max(0, settings.minPercent());
+
+		thread = new Thread(this::run, "JobProgress");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start publishing progress for a job.
+	 *
+	 * @param state state
+	 */
+	void add(JobState state) {
+		jobs.put(state, new Published(state.category()));
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Stop publishing progress for a job. Any progress not yet sent is sent
+	 * straight away, followed by the supplied final message, if any.
+	 *
+	 * @param state state
+	 * @param last final message
+	 */
+	void remove(JobState state, JsonObject last) {
+		var pub = jobs.remove(state);
+		if(pub == null) {
+			if(last != null)
+				sink.accept(state.category(), last);
+		}
+		else {
+			synchronized(pub) {
+				if(state.dirty)
+					publish(state, pub, System.nanoTime(), true);
+				pub.done = true;
+				if(last != null)
+					sink.accept(pub.category, last);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+	}
+
+	private void run() {
+		while(!closed) {
+			if(jobs.isEmpty()) {
+				LockSupport.park(this);
+			}
+			else {
+				var now = System.nanoTime();
+				jobs.forEach((state, pub) -> {
+					if(state.dirty) {
+						synchronized(pub) {
+							if(!pub.done)
+								publish(state, pub, now, false);
+						}
+					}
+				});
+				LockSupport.parkNanos(this, interval);
+			}
+		}
+	}
+
+	private void publish(JobState state, Published pub, long now, boolean force) {
+		var elapsed = now - pub.at;
+		if(!force && !pub.first && elapsed < interval)
+			return;
+
+		/* Clear before reading, so a change made while this runs is picked up next time */
+		state.dirty = false;
+
+		var val = state.val();
+		var max = state.max();
+		var percent = state.percent();
+		var text = state.text == null ? "" : state.text;
+		var title = state.title == null ? "" : state.title;
+
+		var textChanged = pub.first || !text.equals(pub.text);
+		var titleChanged = pub.first || !title.equals(pub.title);
+		var maxChanged = pub.first || max != pub.max;
+		var valChanged = pub.first || val != pub.val;
+
+		if(!force && valChanged && !maxChanged && !textChanged && !titleChanged && 
+				Math.abs(percent - pub.percent) < minPercent && elapsed < idle) {
+			state.dirty = true;
+			return;
+		}
+
+		var bldr = Json.createObjectBuilder().
+			add("type", "update").
+			add("uuid", state.uuid().toString());
+		if(valChanged) 
+			bldr.add("val", val);
+		if(maxChanged) 
+			bldr.add("max", max);
+		if(valChanged || maxChanged) 
+			bldr.add("percent", percent);
+		if(textChanged)
+			bldr.add("text", text);
+		if(titleChanged)
+			bldr.add("title", title);
+
+		pub.first = false;
+		pub.at = now;
+		pub.val = val;
+		pub.max = max;
+		pub.percent = percent;
+		pub.text = text;
+		pub.title = title;
+
+		if(valChanged || maxChanged || textChanged || titleChanged) {
+			try {
+				sink.accept(pub.category, bldr.build());
+			}
+			catch(Exception e) {
+				LOG.warning("Failed to send job update.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import static com.sshtools.jenny.jobs.Jobs.LOG;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.sshtools.jenny.jobs.Job.Handle;
+import com.sshtools.jenny.jobs.Job.JobState;
+import com.sshtools.jenny.jobs.Schedule.Misfire;
+
+/**
+ * Starts a job each time its {@link Schedule} is due. The timer only hands the
+ * work of starting a run to another executor, as it is shared.
+ */
+final class RecurringJob implements Jobs.Recurring {
+
+	private final String category;
+	private final Schedule schedule;
+	private final Function<RecurringJob, Handle<?>> launcher;
+	private final ScheduledExecutorService timer;
+	private final Executor dispatcher;
+	private final Runnable onCancel;
+
+	private Optional<Instant> due = Optional.empty();
+	private Instant planned;
+	private ScheduledFuture<?> task;
+	private Handle<?> current;
+	private boolean pending;
+	private boolean cancelled;
+	private long runs;
+	private long misfires;
+
+	RecurringJob(String category, Schedule schedule, Function<RecurringJob, Handle<?>> launcher, ScheduledExecutorService timer,
+			Executor dispatcher, Runnable onCancel) {
+		this.category = category;
+		this.schedule = schedule;
+		this.launcher = launcher;
+		this.timer = timer;
+		this.dispatcher = dispatcher;
+		this.onCancel = onCancel;
+	}
+
+	@Override
+	public String category() {
+		return category;
+	}
+
+	@Override
+	public Schedule schedule() {
+		return schedule;
+	}
+
+	@Override
+	public synchronized Optional<Instant> next() {
+		return cancelled ? Optional.empty() : Optional.ofNullable(planned);
+	}
+
+	@Override
+	public synchronized Optional<Handle<?>> current() {
+		return Optional.ofNullable(current);
+	}
+
+	@Override
+	public synchronized long runs() {
+		return runs;
+	}
+
+	@Override
+	public synchronized long misfires() {
+		return misfires;
+	}
+
+	@Override
+	public synchronized boolean cancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public void cancel() {
+		synchronized(this) {
+			if(cancelled)
+				return;
+			cancelled = true;
+			pending = false;
+			planned = null;
+			if(task != null)
+				task.cancel(false);
+		}
+		onCancel.run();
+	}
+
+	synchronized void start() {
+		plan(schedule.first(Instant.now()));
+	}
+
+	/**
+	 * A run started by this schedule has finished.
+	 *
+	 * @param state state of run
+	 */
+	synchronized void finished(JobState state) {
+		if(current == null || current.state() != state)
+			return;
+		current = null;
+		if(cancelled)
+			return;
+		if(pending) {
+			pending = false;
+			launch();
+		}
+		else if(schedule.afterEachRun()) {
+			plan(schedule.next(due.get(), Instant.now()));
+		}
+	}
+
+	private void plan(Optional<Instant> next) {
+		due = next;
+		if(next.isEmpty()) {
+			LOG.warning("Recurring job {0} with schedule {1} will never run again.", category, schedule);
+			planned = null;
+			return;
+		}
+		planned = next.get().plus(schedule.randomJitter());
+		var delay = Math.max(0, Duration.between(Instant.now(), planned).toMillis());
+		task = timer.schedule(() -> {
+			try {
+				dispatcher.execute(this::fire);
+			}
+			catch(RuntimeException re) {
+				LOG.error("Failed to start recurring job {0}.", category, re);
+				synchronized(this) {
+					misfires++;
+					if(!cancelled)
+						plan(schedule.next(due.get(), Instant.now()));
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void fire() {
+		if(cancelled)
+			return;
+
+		var now = Instant.now();
+		var wasDue = due.get();
+		var late = now.isAfter(planned.plus(schedule.tolerance()));
+
+		if(current != null && !schedule.overlap()) {
+			misfires++;
+			if(schedule.misfire() == Misfire.RUN_ONCE) {
+				LOG.info("Recurring job {0} is still running, so will run again when it finishes.", category);
+				pending = true;
+			}
+			else
+				LOG.info("Recurring job {0} is still running, so skipping this run.", category);
+		}
+		else if(late && schedule.misfire() == Misfire.SKIP) {
+			misfires++;
+			LOG.info("Recurring job {0} was due at {1} but could not start until {2}, so skipping this run.", category, planned, now);
+		}
+		else {
+			if(late)
+				misfires++;
+			launch();
+			if(schedule.afterEachRun())
+				return;
+		}
+
+		plan(schedule.next(wasDue, now));
+	}
+
+	private void launch() {
+		try {
+			var handle = launcher.apply(this);
+			runs++;
+			current = handle;
+			/* A run that finished before it was returned, for example one run by
+			 * the caller, reported finishing while it was not yet current */
+			if(handle.result().isDone())
+				finished(handle.state());
+		}
+		catch(RuntimeException re) {
+			LOG.warning("Recurring job {0} could not be started.", category, re);
+			misfires++;
+			current = null;
+			if(schedule.afterEachRun() && !cancelled)
+				plan(schedule.next(due.get(), Instant.now()));
+		}
+	}
+}
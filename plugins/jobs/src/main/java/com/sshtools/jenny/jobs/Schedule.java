@@ -0,0 +1,276 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import java.text.MessageFormat;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When a recurring job runs, see {@link Jobs#schedule(Jobs.JobOptions, Schedule)}.
+ * A schedule is either a cron expression, a fixed rate, or a fixed delay
+ * between the end of one run and the start of the next. Schedules are
+ * immutable, each <code>with</code> method returns a new one.
+ */
+public final class Schedule {
+	
+	/**
+	 * What to do when a run is missed, either because it could not start on time,
+	 * or because the previous run was still going and overlapping is not allowed.
+	 */
+	public enum Misfire {
+		/**
+		 * Run once as soon as possible, however many runs were missed.
+		 */
+		RUN_ONCE,
+		/**
+		 * Skip missed runs, and wait for the next scheduled time.
+		 */
+		SKIP
+	}
+	
+	private enum Kind {
+		CRON, FIXED_RATE, FIXED_DELAY
+	}
+	
+	private final Kind kind;
+	private final Optional<Cron> cron;
+	private final ZoneId zone;
+	private final Duration period;
+	private final Duration initialDelay;
+	private final Duration jitter;
+	private final Duration tolerance;
+	private final Misfire misfire;
+	private final boolean overlap;
+	
+	private Schedule(Kind kind, Optional<Cron> cron, ZoneId zone, Duration period, Duration initialDelay, Duration jitter,
+			Duration tolerance, Misfire misfire, boolean overlap) {
+		this.kind = kind;
+		this.cron = cron;
+		this.zone = zone;
+		this.period = period;
+		this.initialDelay = initialDelay;
+		this.jitter = jitter;
+		this.tolerance = tolerance;
+		this.misfire = misfire;
+		this.overlap = overlap;
+	}
+	
+	/**
+	 * Run at the times matched by a cron expression, in the system time zone.
+	 * 
+	 * @param expression cron expression
+	 * @return schedule
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	public static Schedule cron(String expression) {
+		return cron(expression, ZoneId.systemDefault());
+	}
+	
+	/**
+	 * Run at the times matched by a cron expression, in the given time zone.
+	 * 
+	 * @param expression cron expression
+	 * @param zone time zone
+	 * @return schedule
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	public static Schedule cron(String expression, ZoneId zone) {
+		return new Schedule(Kind.CRON, Optional.of(Cron.parse(expression)), zone, Duration.ZERO, Duration.ZERO, 
+				Duration.ZERO, Duration.ofSeconds(5), Misfire.RUN_ONCE, false);
+	}
+	
+	/**
+	 * Start a run every period, measured from when each run was due to start.
+	 * The first run is one period from now.
+	 * 
+	 * @param period period
+	 * @return schedule
+	 */
+	public static Schedule fixedRate(Duration period) {
+		return new Schedule(Kind.FIXED_RATE, Optional.empty(), ZoneId.systemDefault(), positive(period), period, 
+				Duration.ZERO, Duration.ofSeconds(5), Misfire.RUN_ONCE, false);
+	}
+	
+	/**
+	 * Start a run a fixed delay after the previous run finished. Runs never
+	 * overlap. The first run is one delay from now.
+	 * 
+	 * @param delay delay
+	 * @return schedule
+	 */
+	public static Schedule fixedDelay(Duration delay) {
+		return new Schedule(Kind.FIXED_DELAY, Optional.empty(), ZoneId.systemDefault(), positive(delay), delay, 
+				Duration.ZERO, Duration.ofSeconds(5), Misfire.RUN_ONCE, false);
+	}
+	
+	/**
+	 * Delay the first run of a fixed rate or fixed delay schedule by this much
+	 * rather than one period.
+	 * 
+	 * @param initialDelay initial delay
+	 * @return new schedule
+	 */
+	public Schedule withInitialDelay(Duration initialDelay) {
+		return new Schedule(kind, cron, zone, period, notNegative(initialDelay), jitter, tolerance, misfire, overlap);
+	}
+	
+	/**
+	 * Delay each run by a random amount up to this much, so that jobs scheduled
+	 * for the same time do not all start at once.
+	 * 
+	 * @param jitter maximum random delay
+	 * @return new schedule
+	 */
+	public Schedule withJitter(Duration jitter) {
+		return new Schedule(kind, cron, zone, period, initialDelay, notNegative(jitter), tolerance, misfire, overlap);
+	}
+	
+	/**
+	 * How late a run may start before it counts as missed. Defaults to 5 seconds.
+	 * 
+	 * @param tolerance tolerance
+	 * @return new schedule
+	 */
+	public Schedule withTolerance(Duration tolerance) {
+		return new Schedule(kind, cron, zone, period, initialDelay, jitter, notNegative(tolerance), misfire, overlap);
+	}
+	
+	/**
+	 * What to do when runs are missed. Defaults to {@link Misfire#RUN_ONCE}.
+	 * 
+	 * @param misfire misfire policy
+	 * @return new schedule
+	 */
+	public Schedule withMisfire(Misfire misfire) {
+		return new Schedule(kind, cron, zone, period, initialDelay, jitter, tolerance, misfire, overlap);
+	}
+	
+	/**
+	 * Allow a run to start while the previous run is still going. Defaults to 
+	 * <code>false</code>. Overlapping runs of an exclusive job are still refused.
+	 * 
+	 * @param overlap allow overlap
+	 * @return new schedule
+	 */
+	public Schedule withOverlap(boolean overlap) {
+		return new Schedule(kind, cron, zone, period, initialDelay, jitter, tolerance, misfire, overlap);
+	}
+	
+	public Duration jitter() {
+		return jitter;
+	}
+	
+	public Duration tolerance() {
+		return tolerance;
+	}
+	
+	public Misfire misfire() {
+		return misfire;
+	}
+	
+	public boolean overlap() {
+		return overlap;
+	}
+	
+	@Override
+	public String toString() {
+		switch(kind) {
+		case CRON:
+			return MessageFormat.format("cron ''{0}'' in {1}", cron.get(), zone);
+		case FIXED_RATE:
+			return "every " + period;
+		default:
+			return period + " after each run";
+		}
+	}
+	
+	/**
+	 * Get whether the next run is only worked out once the previous run has
+	 * finished.
+	 * 
+	 * @return after each run
+	 */
+	boolean afterEachRun() {
+		return kind == Kind.FIXED_DELAY;
+	}
+	
+	/**
+	 * Get when the first run is due.
+	 * 
+	 * @param now now
+	 * @return first run, or empty if a cron expression never matches
+	 */
+	Optional<Instant> first(Instant now) {
+		if(kind == Kind.CRON) 
+			return after(now);
+		else
+			return Optional.of(now.plus(initialDelay));
+	}
+	
+	/**
+	 * Get when the run after a run that was due at a given time is due. Any
+	 * runs that would have been due by now are skipped.
+	 * 
+	 * @param due when the last run was due
+	 * @param now now
+	 * @return next run, or empty if a cron expression never matches again
+	 */
+	Optional<Instant> next(Instant due, Instant now) {
+		switch(kind) {
+		case CRON:
+			return after(due.isAfter(now) ? due : now);
+		case FIXED_RATE:
+			var next = due.plus(period);
+			if(!next.isAfter(now)) {
+				/* Line up with the original times, rather than drifting from now */
+				var behind = Duration.between(due, now).toNanos() / period.toNanos();
+				next = due.plus(period.multipliedBy(behind + 1));
+			}
+			return Optional.of(next);
+		default:
+			return Optional.of(now.plus(period));
+		}
+	}
+	
+	/**
+	 * Get a random delay to add to a run.
+	 * 
+	 * @return delay
+	 */
+	Duration randomJitter() {
+		return jitter.isZero() ? Duration.ZERO : Duration.ofNanos(ThreadLocalRandom.current().nextLong(jitter.toNanos()));
+	}
+	
+	private Optional<Instant> after(Instant instant) {
+		return cron.get().next(instant.atZone(zone)).map(t -> t.toInstant());
+	}
+	
+	private static Duration positive(Duration duration) {
+		if(duration.isNegative() || duration.isZero())
+			throw new IllegalArgumentException("Period must be positive.");
+		return duration;
+	}
+	
+	private static Duration notNegative(Duration duration) {
+		if(duration.isNegative())
+			throw new IllegalArgumentException("Duration must not be negative.");
+		return duration;
+	}
+}
@@ -6,18 +6,20 @@ io.onReady(function(io)  {
 		const uuid = msg.uuid;
 		const bar = $(cat.find('[data-job-uuid=' + uuid + ']'));
 		if (msg.type === 'update') {
+			/* Updates only carry the fields that changed */
 			var prg = $(bar.find('.progress'));
-			prg.attr('aria-valuemax', msg.max);
-			prg.attr('aria-valuenow', msg.val);
-			prg.attr('aria-label', msg.text);
-			
-			bar.find('.job-title').html(msg.title);
-			
-			var br = $(bar.find('.progress-bar'));
-			br.css('width', msg.percent + '%');
-			
-			var tx = $(bar.find('.progress-text'));
-			tx.html(msg.text);
+			if ('max' in msg)
+				prg.attr('aria-valuemax', msg.max);
+			if ('val' in msg)
+				prg.attr('aria-valuenow', msg.val);
+			if ('percent' in msg)
+				$(bar.find('.progress-bar')).css('width', msg.percent + '%');
+			if ('title' in msg)
+				bar.find('.job-title').html(msg.title);
+			if ('text' in msg) {
+				prg.attr('aria-label', msg.text);
+				$(bar.find('.progress-text')).html(msg.text);
+			}
 		}
 		else if (msg.type === 'complete') {
 			window.location.reload();
@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import org.junit.jupiter.api.Test;
+
+class CronTest {
+
+	private final static ZoneId LONDON = ZoneId.of("Europe/London");
+
+	@Test
+	void testStep() {
+		assertEquals(utc(2026, 10, 18, 10, 15), next("*/15 * * * *", utc(2026, 10, 18, 10, 7)));
+		assertEquals(utc(2026, 10, 18, 11, 0), next("*/15 * * * *", utc(2026, 10, 18, 10, 45)));
+	}
+
+	@Test
+	void testStrictlyAfter() {
+		assertEquals(utc(2026, 10, 19, 0, 0), next("0 0 * * *", utc(2026, 10, 18, 0, 0)));
+	}
+
+	@Test
+	void testDayOfMonthOrDayOfWeek() {
+		/* The 13th or any Friday, so a Friday comes first */
+		assertEquals(utc(2026, 10, 23, 0, 0), next("0 0 13 * 5", utc(2026, 10, 18, 12, 0)));
+		/* The 13th or any Monday, so the 13th comes first, though it is a Friday */
+		assertEquals(utc(2026, 11, 13, 0, 0), next("0 0 13 * 1", utc(2026, 11, 10, 12, 0)));
+	}
+
+	@Test
+	void testDayOfMonthAndAnyDayOfWeek() {
+		assertEquals(utc(2026, 11, 13, 0, 0), next("0 0 13 * *", utc(2026, 10, 18, 12, 0)));
+		assertEquals(utc(2026, 10, 23, 0, 0), next("0 0 * * 5", utc(2026, 10, 18, 12, 0)));
+	}
+
+	@Test
+	void testSundayAsSeven() {
+		assertEquals(utc(2026, 10, 25, 0, 0), next("0 0 * * 7", utc(2026, 10, 19, 12, 0)));
+		assertEquals(utc(2026, 10, 25, 0, 0), next("0 0 * * 0", utc(2026, 10, 19, 12, 0)));
+		assertEquals(utc(2026, 10, 25, 0, 0), next("0 0 * * SUN", utc(2026, 10, 19, 12, 0)));
+		assertEquals(utc(2026, 10, 25, 0, 0), next("0 0 * * 5-7", utc(2026, 10, 24, 0, 0)));
+		assertEquals(utc(2026, 10, 30, 0, 0), next("0 0 * * 5-7", utc(2026, 10, 25, 0, 0)));
+	}
+
+	@Test
+	void testMacros() {
+		assertEquals(utc(2026, 10, 19, 0, 0), next("@daily", utc(2026, 10, 18, 12, 0)));
+		assertEquals(utc(2026, 10, 18, 13, 0), next("@hourly", utc(2026, 10, 18, 12, 0)));
+		assertEquals(utc(2026, 10, 25, 0, 0), next("@weekly", utc(2026, 10, 18, 12, 0)));
+		assertEquals(utc(2026, 11, 1, 0, 0), next("@monthly", utc(2026, 10, 18, 12, 0)));
+		assertEquals(utc(2027, 1, 1, 0, 0), next("@yearly", utc(2026, 10, 18, 12, 0)));
+	}
+
+	@Test
+	void testNames() {
+		assertEquals(utc(2027, 2, 1, 0, 0), next("0 0 1 FEB *", utc(2026, 10, 18, 12, 0)));
+	}
+
+	@Test
+	void testInvalid() {
+		assertThrows(IllegalArgumentException.class, () -> Cron.parse("60 * * * *"));
+		assertThrows(IllegalArgumentException.class, () -> Cron.parse("* * *"));
+		assertThrows(IllegalArgumentException.class, () -> Cron.parse("* * 0 * *"));
+		assertThrows(IllegalArgumentException.class, () -> Cron.parse("5-1 * * * *"));
+		assertThrows(IllegalArgumentException.class, () -> Cron.parse("* * * XYZ *"));
+	}
+
+	@Test
+	void testNever() {
+		assertEquals(null, Cron.parse("0 0 31 2 *").next(utc(2026, 10, 18, 12, 0)).orElse(null));
+	}
+
+	@Test
+	void testDaylightSavingGap() {
+		/* 01:00 to 02:00 does not exist on 29th March 2026, so runs as the gap ends */
+		var gap = next("30 1 * * *", ZonedDateTime.of(2026, 3, 28, 12, 0, 0, 0, LONDON));
+		assertEquals(ZonedDateTime.of(2026, 3, 29, 2, 30, 0, 0, LONDON), gap);
+		assertEquals(ZoneOffset.ofHours(1), gap.getOffset());
+		assertEquals(ZonedDateTime.of(2026, 3, 30, 1, 30, 0, 0, LONDON), next("30 1 * * *", gap));
+	}
+
+	@Test
+	void testDaylightSavingOverlap() {
+		/* 01:00 to 02:00 happens twice on 25th October 2026, but only runs the first time */
+		var first = next("30 1 * * *", ZonedDateTime.of(2026, 10, 24, 12, 0, 0, 0, LONDON));
+		assertEquals(ZonedDateTime.of(2026, 10, 25, 1, 30, 0, 0, LONDON).withEarlierOffsetAtOverlap(), first);
+		assertEquals(ZoneOffset.ofHours(1), first.getOffset());
+		assertEquals(ZonedDateTime.of(2026, 10, 26, 1, 30, 0, 0, LONDON), next("30 1 * * *", first));
+	}
+
+	private static ZonedDateTime next(String expression, ZonedDateTime after) {
+		return Cron.parse(expression).next(after).orElseThrow();
+	}
+
+	private static ZonedDateTime utc(int year, int month, int day, int hour, int minute) {
+		return ZonedDateTime.of(year, month, day, hour, minute, 0, 0, ZoneOffset.UTC);
+	}
+}
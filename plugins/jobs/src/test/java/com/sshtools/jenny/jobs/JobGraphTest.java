@@ -0,0 +1,138 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.jobs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+import com.sshtools.jenny.jobs.Job.Handle;
+import com.sshtools.jenny.jobs.Job.JobState;
+
+class JobGraphTest {
+
+	private final List<Runnable> dispatched = new ArrayList<>();
+	private final List<String> order = new ArrayList<>();
+	private final List<UUID> blocked = new ArrayList<>();
+
+	@Test
+	void testReadyOnceAllComplete() {
+		var graph = new JobGraph(dispatched::add);
+		var a = handle();
+		var b = handle();
+		graph.await(List.of(a, b), () -> order.add("ready"), blocked::add);
+		assertTrue(dispatched.isEmpty());
+
+		complete(graph, a);
+		assertTrue(dispatched.isEmpty());
+
+		complete(graph, b);
+		assertEquals(1, dispatched.size());
+		/* Handed to the dispatcher, not run by whatever finished the last job */
+		assertTrue(order.isEmpty());
+
+		dispatched.get(0).run();
+		assertEquals(List.of("ready"), order);
+		assertTrue(blocked.isEmpty());
+	}
+
+	@Test
+	void testAlreadyComplete() {
+		var graph = new JobGraph(dispatched::add);
+		var a = handle();
+		run(a);
+		graph.await(List.of(a), () -> order.add("ready"), blocked::add);
+		assertEquals(1, dispatched.size());
+	}
+
+	@Test
+	void testBlockedByFailure() {
+		var graph = new JobGraph(dispatched::add);
+		var a = handle();
+		var b = handle();
+		graph.await(List.of(a, b), () -> order.add("ready"), blocked::add);
+
+		a.result().cancel(false);
+		graph.finished(a.state().uuid(), false);
+		complete(graph, b);
+
+		assertEquals(List.of(a.state().uuid()), blocked);
+		assertTrue(dispatched.isEmpty());
+	}
+
+	@Test
+	void testBlockedByAlreadyFailed() {
+		var graph = new JobGraph(dispatched::add);
+		var a = handle();
+		a.result().cancel(false);
+		graph.await(List.of(a), () -> order.add("ready"), blocked::add);
+
+		assertEquals(List.of(a.state().uuid()), blocked);
+		assertTrue(dispatched.isEmpty());
+	}
+
+	@Test
+	void testChainRunsInOrder() {
+		var graph = new JobGraph(Runnable::run);
+		var a = handle();
+		var b = handle();
+		var c = handle();
+		graph.await(List.of(b), () -> {
+			order.add("c");
+			complete(graph, c);
+		}, blocked::add);
+		graph.await(List.of(a), () -> {
+			order.add("b");
+			complete(graph, b);
+		}, blocked::add);
+
+		order.add("a");
+		complete(graph, a);
+
+		assertEquals(List.of("a", "b", "c"), order);
+	}
+
+	@Test
+	void testRejectedDispatchRunsDirectly() {
+		var graph = new JobGraph(r -> {
+			throw new RejectedExecutionException();
+		});
+		var a = handle();
+		graph.await(List.of(a), () -> order.add("ready"), blocked::add);
+		complete(graph, a);
+		assertEquals(List.of("ready"), order);
+	}
+
+	private static Handle<Object> handle() {
+		return new Handle<>(new FutureTask<>(() -> null), new JobState());
+	}
+
+	private static void complete(JobGraph graph, Handle<Object> handle) {
+		run(handle);
+		graph.finished(handle.state().uuid(), true);
+	}
+
+	private static void run(Handle<Object> handle) {
+		((FutureTask<Object>)handle.result()).run();
+	}
+}
@@ -31,6 +31,7 @@ import com.sshtools.jenny.bootstrap5.Alerts.Alert;
 import com.sshtools.jenny.bootstrap5.Bootstrap5;
 import com.sshtools.jenny.io.Io;
 import com.sshtools.jenny.io.Io.IoChannel;
+import com.sshtools.jenny.web.KeyedScheduledExecutorService.Priority;
 import com.sshtools.jenny.web.Web;
 import com.sshtools.jenny.web.WebLog;
 import com.sshtools.jenny.web.WebModule;
@@ -91,7 +92,7 @@ public class Toast implements Plugin {
 			queuedAlerts.add(alert);			
 		}
 		else {
-			web.globalUiQueue().schedule(() -> 
+			web.keyedUiQueue().schedule("toast", Priority.HIGH, () -> 
 				io.broadcast("toast", Json.createObjectBuilder().
 							add("type", "toast").
 							add("subtitle", "").
@@ -0,0 +1,138 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+
+/**
+ * A {@link WebStateBackend} that keeps the state of each session in its own
+ * file in a directory. Files are replaced atomically, so the directory may be
+ * shared between several nodes, for example on a network file system.
+ */
+final class FileWebStateBackend implements WebStateBackend {
+
+	private final static Log LOG = Logs.of(WebLog.WEB);
+
+	private final static Pattern KEY = Pattern.compile("[A-Za-z0-9\\-]+");
+	private final static String SUFFIX = ".state";
+
+	private final Path directory;
+	private final Duration expiry;
+
+	FileWebStateBackend(Path directory, Duration expiry) {
+		this.directory = directory;
+		this.expiry = expiry;
+		Web.privateDirectory(directory);
+		expire();
+	}
+
+	@Override
+	public Optional<Map<String, Object>> load(String key) {
+		var file = file(key);
+		try {
+			return Optional.of(WebStateSerializer.deserialize(Files.readAllBytes(file)));
+		}
+		catch(NoSuchFileException nsfe) {
+			return Optional.empty();
+		}
+		catch(IOException | UncheckedIOException e) {
+			LOG.warning("Discarding unreadable web state `{0}`.", file);
+			delete(file);
+			return Optional.empty();
+		}
+	}
+
+	@Override
+	public void store(String key, Map<String, Object> env) {
+		var file = file(key);
+		try {
+			var tmp = Files.createTempFile(directory, "state", ".tmp");
+			try {
+				Files.write(tmp, WebStateSerializer.serialize(env));
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				Files.deleteIfExists(tmp);
+			}
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+
+	@Override
+	public long lastModified(String key) {
+		try {
+			return Files.getLastModifiedTime(file(key)).toMillis();
+		}
+		catch(IOException ioe) {
+			return 0;
+		}
+	}
+
+	@Override
+	public void expire() {
+		var cutoff = System.currentTimeMillis() - expiry.toMillis();
+		try(var stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for(var file : stream) {
+				try {
+					if(Files.getLastModifiedTime(file).toMillis() < cutoff) {
+						if(LOG.debug())
+							LOG.debug("Expiring web state `{0}`.", file);
+						delete(file);
+					}
+				}
+				catch(NoSuchFileException nsfe) {
+					/* Removed by another node */
+				}
+			}
+		}
+		catch(IOException ioe) {
+			LOG.warning("Failed to expire web state in `{0}`.", directory, ioe);
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+
+	private Path file(String key) {
+		if(!KEY.matcher(key).matches())
+			throw new IllegalArgumentException("Invalid web state key.");
+		return directory.resolve(key + SUFFIX);
+	}
+
+	private void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		}
+		catch(IOException ioe) {
+			LOG.warning("Failed to delete web state `{0}`.", file, ioe);
+		}
+	}
+}
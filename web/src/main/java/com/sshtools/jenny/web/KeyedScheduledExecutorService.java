@@ -0,0 +1,72 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ScheduledExecutorService} that may run tasks concurrently, but
+ * where tasks submitted with the same key are always run one at a time, in
+ * the order they were submitted. Tasks may also be given a {@link Priority},
+ * which decides which waiting task is run next when all workers are busy.
+ * <p>
+ * A key is typically an Io channel or a session. Tasks submitted without a
+ * key, using the standard {@link ScheduledExecutorService} methods, have no
+ * ordering and {@link Priority#NORMAL} priority.
+ */
+public interface KeyedScheduledExecutorService extends ScheduledExecutorService {
+
+	public enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
+	/**
+	 * Execute a task.
+	 *
+	 * @param key key to order by, or <code>null</code> for no ordering
+	 * @param priority priority
+	 * @param command task
+	 */
+	void execute(Object key, Priority priority, Runnable command);
+
+	/**
+	 * Submit a task.
+	 *
+	 * @param <V> type of result
+	 * @param key key to order by, or <code>null</code> for no ordering
+	 * @param priority priority
+	 * @param task task
+	 * @return future
+	 */
+	<V> Future<V> submit(Object key, Priority priority, Callable<V> task);
+
+	/**
+	 * Schedule a task to run after a delay. The task is ordered with other tasks
+	 * of the same key when the delay expires, not when it is scheduled.
+	 *
+	 * @param key key to order by, or <code>null</code> for no ordering
+	 * @param priority priority
+	 * @param command task
+	 * @param delay delay
+	 * @param unit unit of delay
+	 * @return future
+	 */
+	ScheduledFuture<?> schedule(Object key, Priority priority, Runnable command, long delay, TimeUnit unit);
+}
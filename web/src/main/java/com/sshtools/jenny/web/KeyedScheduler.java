@@ -0,0 +1,382 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link KeyedScheduledExecutorService} backed by a fixed pool of worker
+ * threads taking tasks from a priority queue. A single timer thread is used to
+ * hand delayed tasks over to the workers when they are due, it never runs any
+ * task itself.
+ * <p>
+ * Periodic tasks never overlap with themselves. If a run is still waiting or
+ * in progress when the next is due, that firing is skipped, so a slow task
+ * never builds up a backlog of runs.
+ */
+public final class KeyedScheduler extends AbstractExecutorService implements KeyedScheduledExecutorService {
+
+	private final class Entry implements Runnable, Comparable<Entry> {
+		private final Priority priority;
+		private final Runnable task;
+		private final long sequence = sequencer.getAndIncrement();
+
+		private Entry(Priority priority, Runnable task) {
+			this.priority = priority;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			var c = priority.compareTo(o.priority);
+			return c == 0 ? Long.compare(sequence, o.sequence) : c;
+		}
+	}
+
+	private final static class DelayedTask<V> implements ScheduledFuture<V> {
+		private final FutureTask<V> task;
+		private final ScheduledFuture<?> handoff;
+
+		private DelayedTask(FutureTask<V> task, ScheduledFuture<?> handoff) {
+			this.task = task;
+			this.handoff = handoff;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return handoff.getDelay(unit);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			handoff.cancel(false);
+			return task.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return task.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return task.isDone();
+		}
+
+		@Override
+		public V get() throws InterruptedException, ExecutionException {
+			return task.get();
+		}
+
+		@Override
+		public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return task.get(timeout, unit);
+		}
+	}
+
+	private final class PeriodicTask implements ScheduledFuture<Object>, Runnable {
+		private final Runnable command;
+		private final boolean fixedDelay;
+		private final long delay;
+		private final TimeUnit unit;
+		private final FutureTask<Object> result = new FutureTask<>(() -> {}, null);
+		private final AtomicBoolean pending = new AtomicBoolean();
+		private volatile ScheduledFuture<?> next;
+
+		private PeriodicTask(Runnable command, boolean fixedDelay, long delay, TimeUnit unit) {
+			this.command = command;
+			this.fixedDelay = fixedDelay;
+			this.delay = delay;
+			this.unit = unit;
+		}
+
+		@Override
+		public void run() {
+			if(!pending.compareAndSet(false, true))
+				return;
+			try {
+				dispatch(this, Priority.NORMAL, () -> {
+					try {
+						if(result.isDone())
+							return;
+						try {
+							command.run();
+						}
+						catch(RuntimeException | Error e) {
+							result.cancel(false);
+							var n = next;
+							if(n != null)
+								n.cancel(false);
+							throw e;
+						}
+					}
+					finally {
+						pending.set(false);
+					}
+					if(fixedDelay && !result.isDone() && !timer.isShutdown()) {
+						next = timer.schedule(this, delay, unit);
+					}
+				});
+			}
+			catch(RejectedExecutionException ree) {
+				pending.set(false);
+				throw ree;
+			}
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			var n = next;
+			return n == null ? 0 : n.getDelay(unit);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			var n = next;
+			if(n != null)
+				n.cancel(false);
+			return result.cancel(mayInterruptIfRunning);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return result.isCancelled();
+		}
+
+		@Override
+		public boolean isDone() {
+			return result.isDone();
+		}
+
+		@Override
+		public Object get() throws InterruptedException, ExecutionException {
+			return result.get();
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return result.get(timeout, unit);
+		}
+	}
+
+	private final AtomicLong sequencer = new AtomicLong();
+	private final ScheduledThreadPoolExecutor timer;
+	private final ThreadPoolExecutor workers;
+	private final Map<Object, ArrayDeque<Entry>> keys = new HashMap<>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name name used for threads
+	 * @param threads number of worker threads
+	 */
+	public KeyedScheduler(String name, int threads) {
+		timer = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, name + "Timer"));
+		timer.setRemoveOnCancelPolicy(true);
+
+		var counter = new AtomicInteger();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<>(), r -> new Thread(r, name + "-" + counter.incrementAndGet()));
+	}
+
+	/**
+	 * Get the number of tasks that are due to run, but are waiting for a worker
+	 * or for an earlier task with the same key.
+	 *
+	 * @return queued tasks
+	 */
+	public int queued() {
+		synchronized(keys) {
+			return workers.getQueue().size() + keys.values().stream().mapToInt(ArrayDeque::size).sum();
+		}
+	}
+
+	/**
+	 * Get the number of delayed or periodic tasks that are not yet due.
+	 *
+	 * @return scheduled tasks
+	 */
+	public int scheduled() {
+		return timer.getQueue().size();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		dispatch(null, Priority.NORMAL, command);
+	}
+
+	@Override
+	public void execute(Object key, Priority priority, Runnable command) {
+		dispatch(key, priority, command);
+	}
+
+	@Override
+	public <V> Future<V> submit(Object key, Priority priority, Callable<V> task) {
+		var ft = new FutureTask<V>(task);
+		dispatch(key, priority, ft);
+		return ft;
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return schedule(null, Priority.NORMAL, command, delay, unit);
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Object key, Priority priority, Runnable command, long delay, TimeUnit unit) {
+		var ft = new FutureTask<Object>(command, null);
+		return new DelayedTask<>(ft, timer.schedule(() -> dispatch(key, priority, ft), delay, unit));
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		var ft = new FutureTask<V>(callable);
+		return new DelayedTask<>(ft, timer.schedule(() -> dispatch(null, Priority.NORMAL, ft), delay, unit));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		var task = new PeriodicTask(command, false, period, unit);
+		task.next = timer.scheduleAtFixedRate(task, initialDelay, period, unit);
+		return task;
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		var task = new PeriodicTask(command, true, delay, unit);
+		task.next = timer.schedule(task, initialDelay, unit);
+		return task;
+	}
+
+	@Override
+	public void shutdown() {
+		timer.shutdown();
+		workers.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		var l = new ArrayList<Runnable>(timer.shutdownNow());
+		l.addAll(workers.shutdownNow());
+		return l;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return workers.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return timer.isTerminated() && workers.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		var until = System.nanoTime() + unit.toNanos(timeout);
+		return timer.awaitTermination(timeout, unit) &&
+			   workers.awaitTermination(until - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	private void dispatch(Object key, Priority priority, Runnable task) {
+		if(key == null) {
+			workers.execute(new Entry(priority, task));
+			return;
+		}
+
+		synchronized(keys) {
+			var pending = keys.get(key);
+			if(pending != null) {
+				/* Already running something for this key, it will pick this up */
+				pending.add(new Entry(priority, task));
+				return;
+			}
+			keys.put(key, new ArrayDeque<>());
+		}
+		try {
+			workers.execute(new Entry(priority, () -> runKeyed(key, task)));
+		}
+		catch(RejectedExecutionException ree) {
+			/* Otherwise the key would look busy forever, and nothing else for it would run */
+			synchronized(keys) {
+				keys.remove(key);
+			}
+			throw ree;
+		}
+	}
+
+	private void runKeyed(Object key, Runnable task) {
+		try {
+			task.run();
+		}
+		finally {
+			Entry next;
+			synchronized(keys) {
+				next = keys.get(key).poll();
+				if(next == null) {
+					keys.remove(key);
+				}
+			}
+			if(next != null) {
+				var fnext = next;
+				try {
+					workers.execute(new Entry(next.priority, () -> runKeyed(key, fnext.task)));
+				}
+				catch(RejectedExecutionException ree) {
+					/* Shutting down, so drop whatever else is waiting for this key */
+					synchronized(keys) {
+						keys.remove(key);
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,108 +1,69 @@
 package com.sshtools.jenny.web;
 
-import java.util.Collection;
-import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
-public class LoggedExecutorService implements ScheduledExecutorService {
-	
-	private ScheduledExecutorService delegate;
+import com.sshtools.jenny.api.InstrumentedExecutorService;
 
-	public LoggedExecutorService(ScheduledExecutorService delegate) {
-		this.delegate = delegate;
-	}
-
-	@Override
-	public void shutdown() {
-		delegate.shutdown();;
-	}
+/**
+ * An {@link InstrumentedExecutorService} that also logs task failures, and
+ * passes keys and priorities on to a {@link KeyedScheduledExecutorService}
+ * delegate. When the delegate is not keyed, keys and priorities are ignored.
+ */
+public class LoggedExecutorService extends InstrumentedExecutorService implements KeyedScheduledExecutorService {
 
-	@Override
-	public List<Runnable> shutdownNow() {
-		return delegate.shutdownNow();
-	}
-
-	@Override
-	public boolean isShutdown() {
-		return delegate.isShutdown();
-	}
-
-	@Override
-	public boolean isTerminated() {
-		return delegate.isTerminated();
-	}
-
-	@Override
-	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
-		return delegate.awaitTermination(timeout, unit);
-	}
-
-	@Override
-	public <T> Future<T> submit(Callable<T> task) {
-		return delegate.submit(WebLog.logTask(task));
-	}
-
-	@Override
-	public <T> Future<T> submit(Runnable task, T result) {
-		return delegate.submit(WebLog.logTask(task), result);
-	}
-
-	@Override
-	public Future<?> submit(Runnable task) {
-		return delegate.submit(WebLog.logTask(task));
-	}
-
-	@Override
-	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
-		return delegate.invokeAll(tasks.stream().map(WebLog::logTask).toList());
-	}
-
-	@Override
-	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
-			throws InterruptedException {
-		return delegate.invokeAll(tasks.stream().map(WebLog::logTask).toList(), timeout, unit);
+	public LoggedExecutorService(String name, ScheduledExecutorService delegate) {
+		super(name, delegate);
 	}
 
 	@Override
-	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
-		return delegate.invokeAny(tasks.stream().map(WebLog::logTask).toList());
+	public void execute(Object key, Priority priority, Runnable command) {
+		if(delegate() instanceof KeyedScheduledExecutorService keyed)
+			guarded(() -> {
+				keyed.execute(key, priority, wrap(command, 0));
+				return null;
+			});
+		else
+			execute(command);
 	}
 
 	@Override
-	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit)
-			throws InterruptedException, ExecutionException, TimeoutException {
-		return delegate.invokeAny(tasks.stream().map(WebLog::logTask).toList(), timeout, unit);
+	public <V> Future<V> submit(Object key, Priority priority, Callable<V> task) {
+		if(delegate() instanceof KeyedScheduledExecutorService keyed)
+			return guarded(() -> keyed.submit(key, priority, wrap(task, 0)));
+		else
+			return submit(task);
 	}
 
 	@Override
-	public void execute(Runnable command) {
-		delegate.execute(WebLog.logTask(command));
+	public ScheduledFuture<?> schedule(Object key, Priority priority, Runnable command, long delay, TimeUnit unit) {
+		if(delegate() instanceof KeyedScheduledExecutorService keyed)
+			return guarded(() -> keyed.schedule(key, priority, wrap(command, unit.toNanos(delay)), delay, unit));
+		else
+			return schedule(command, delay, unit);
 	}
 
 	@Override
-	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
-		return delegate.schedule(WebLog.logTask(command), delay, unit);
+	protected long queued() {
+		return delegate() instanceof KeyedScheduler ks ? ks.queued() : super.queued();
 	}
 
 	@Override
-	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
-		return delegate.schedule(WebLog.logTask(callable), delay, unit);
+	protected long scheduled() {
+		return delegate() instanceof KeyedScheduler ks ? ks.scheduled() : super.scheduled();
 	}
 
 	@Override
-	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
-		return delegate.scheduleAtFixedRate(WebLog.logTask(command),initialDelay, period, unit);
+	protected Runnable decorate(Runnable task) {
+		return WebLog.logTask(task);
 	}
 
 	@Override
-	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
-		return delegate.scheduleWithFixedDelay(WebLog.logTask(command),initialDelay, delay, unit);
+	protected <T> Callable<T> decorate(Callable<T> task) {
+		return WebLog.logTask(task);
 	}
 
 }
@@ -0,0 +1,241 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+
+/**
+ * A {@link WebStateBackend} that keeps state outside of the heap, in a
+ * single memory mapped file. The file is an append only log of records, with
+ * an index of the latest record for each key kept on the heap and rebuilt
+ * when the file is opened. When the file is full, it is compacted in place
+ * to just the latest record of each key.
+ * <p>
+ * The file is owned by a single process, and survives restarts.
+ */
+final class MappedWebStateBackend implements WebStateBackend {
+
+	private final static Log LOG = Logs.of(WebLog.WEB);
+
+	private final static int MAGIC = 0x4a575331;
+	private final static int HEADER = 4 + 4;
+
+	/* length, op, timestamp and key length */
+	private final static int RECORD_HEADER = 4 + 1 + 8 + 2;
+
+	private final static byte STORE = 0;
+	private final static byte REMOVE = 1;
+
+	private record Entry(int offset, int length, long timestamp) {}
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final Duration expiry;
+	private final Map<String, Entry> index = new HashMap<>();
+	private int end;
+
+	MappedWebStateBackend(Path file, int size, Duration expiry) {
+		this.expiry = expiry;
+		try {
+			var parent = file.toAbsolutePath().getParent();
+			if(parent != null)
+				Web.privateDirectory(parent);
+			var options = Set.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel = Web.posix() 
+				? FileChannel.open(file, options, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+				: FileChannel.open(file, options);
+			buffer = channel.map(MapMode.READ_WRITE, 0, size);
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+
+		if(buffer.getInt(0) == MAGIC) {
+			end = buffer.getInt(4);
+			if(end < HEADER || end > size) {
+				LOG.warning("Web state file `{0}` is damaged, starting again.", file);
+				reset();
+			}
+			else {
+				rebuild();
+				if(LOG.debug())
+					LOG.debug("Restored {0} web states from `{1}`.", index.size(), file);
+			}
+		}
+		else {
+			reset();
+		}
+	}
+
+	@Override
+	public synchronized Optional<Map<String, Object>> load(String key) {
+		var entry = index.get(key);
+		if(entry == null)
+			return Optional.empty();
+		var data = new byte[entry.length];
+		buffer.get(entry.offset, data);
+		return Optional.of(WebStateSerializer.deserialize(data));
+	}
+
+	@Override
+	public synchronized void store(String key, Map<String, Object> env) {
+		var keyData = key.getBytes(StandardCharsets.UTF_8);
+		if(env.isEmpty()) {
+			if(index.remove(key) != null) {
+				append(REMOVE, keyData, new byte[0]);
+			}
+		}
+		else {
+			var data = WebStateSerializer.serialize(env);
+			var offset = append(STORE, keyData, data);
+			if(offset == -1) {
+				LOG.warning("Web state file is full, state for a session will not be stored.");
+				index.remove(key);
+			}
+			else {
+				index.put(key, new Entry(offset, data.length, System.currentTimeMillis()));
+			}
+		}
+	}
+
+	@Override
+	public synchronized long lastModified(String key) {
+		var entry = index.get(key);
+		return entry == null ? 0 : entry.timestamp;
+	}
+
+	@Override
+	public synchronized void expire() {
+		var cutoff = System.currentTimeMillis() - expiry.toMillis();
+		index.values().removeIf(e -> e.timestamp < cutoff);
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			buffer.force();
+		}
+		finally {
+			try {
+				channel.close();
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+	}
+
+	private int append(byte op, byte[] key, byte[] data) {
+		var length = RECORD_HEADER + key.length + data.length;
+		if(end + length > buffer.capacity()) {
+			compact();
+			if(end + length > buffer.capacity()) {
+				return -1;
+			}
+		}
+		var offset = write(end, op, System.currentTimeMillis(), key, data);
+		end += length;
+		buffer.putInt(4, end);
+		return offset;
+	}
+
+	private int write(int position, byte op, long timestamp, byte[] key, byte[] data) {
+		buffer.putInt(position, RECORD_HEADER + key.length + data.length);
+		buffer.put(position + 4, op);
+		buffer.putLong(position + 5, timestamp);
+		buffer.putShort(position + 13, (short)key.length);
+		buffer.put(position + RECORD_HEADER, key);
+		var offset = position + RECORD_HEADER + key.length;
+		buffer.put(offset, data);
+		return offset;
+	}
+
+	private void rebuild() {
+		var cutoff = System.currentTimeMillis() - expiry.toMillis();
+		var position = HEADER;
+		while(position < end) {
+			var length = buffer.getInt(position);
+			if(length < RECORD_HEADER || position + length > end) {
+				LOG.warning("Web state file is truncated, discarding {0} bytes.", end - position);
+				end = position;
+				buffer.putInt(4, end);
+				break;
+			}
+			var op = buffer.get(position + 4);
+			var timestamp = buffer.getLong(position + 5);
+			var keyData = new byte[buffer.getShort(position + 13) & 0xffff];
+			buffer.get(position + RECORD_HEADER, keyData);
+			var key = new String(keyData, StandardCharsets.UTF_8);
+			var offset = position + RECORD_HEADER + keyData.length;
+			if(op == STORE && timestamp >= cutoff) {
+				index.put(key, new Entry(offset, position + length - offset, timestamp));
+			}
+			else {
+				index.remove(key);
+			}
+			position += length;
+		}
+	}
+
+	private void compact() {
+		var live = new HashMap<String, byte[]>();
+		var timestamps = new HashMap<String, Long>();
+		index.forEach((k, v) -> {
+			var data = new byte[v.length];
+			buffer.get(v.offset, data);
+			live.put(k, data);
+			timestamps.put(k, v.timestamp);
+		});
+
+		var was = end;
+		index.clear();
+		end = HEADER;
+		live.forEach((k, data) -> {
+			var keyData = k.getBytes(StandardCharsets.UTF_8);
+			var timestamp = timestamps.get(k);
+			var offset = write(end, STORE, timestamp, keyData, data);
+			end += RECORD_HEADER + keyData.length + data.length;
+			index.put(k, new Entry(offset, data.length, timestamp));
+		});
+		buffer.putInt(4, end);
+
+		if(LOG.debug())
+			LOG.debug("Compacted web state file from {0} to {1} bytes.", was, end);
+	}
+
+	private void reset() {
+		index.clear();
+		end = HEADER;
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, end);
+	}
+}
@@ -182,6 +182,7 @@ public final class NpmWebModule {
 				var bldr = new WebModule.Builder();
 				bldr.withName(toNpm(gav));
 				bldr.withLoader(loader);
+				bldr.withCompression(compression);
 				bldr.withUri("/" + resource);
 				bldr.withRequires(this.requires);
 				bldr.asDirectory();
@@ -0,0 +1,152 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Watches for virtual threads that pin their carrier thread for longer than a
+ * threshold, for example by blocking inside a native call, or inside a
+ * <code>synchronized</code> block on older runtimes, and reports the code
+ * responsible. Each place pinning happens is logged as a warning the first
+ * time it is seen, after which it is just counted.
+ */
+public final class PinningMonitor implements Closeable {
+
+	private final static Log LOG = Logs.of(WebLog.WEB);
+
+	private final static String EVENT = "jdk.VirtualThreadPinned";
+
+	/**
+	 * A place in the code where carrier threads have been pinned.
+	 */
+	public record Pinning(String site, long count, Duration total, Duration longest) {
+	}
+
+	private final static class Site {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong longest = new AtomicLong();
+	}
+
+	private final RecordingStream stream;
+	private final Map<String, Site> sites = new ConcurrentHashMap<>();
+
+	PinningMonitor(Duration threshold) {
+		stream = new RecordingStream();
+		stream.enable(EVENT).withThreshold(threshold).withStackTrace();
+		stream.onEvent(EVENT, this::pinned);
+		stream.startAsync();
+		LOG.info("Reporting virtual threads pinned for more than {0} ms.", threshold.toMillis());
+	}
+
+	/**
+	 * Get all places pinning has happened, most time pinned first.
+	 *
+	 * @return pinnings
+	 */
+	public List<Pinning> pinnings() {
+		return sites.entrySet().stream().
+			map(en -> new Pinning(
+				en.getKey(),
+				en.getValue().count.get(),
+				Duration.ofNanos(en.getValue().total.get()),
+				Duration.ofNanos(en.getValue().longest.get()))).
+			sorted(Comparator.comparing(Pinning::total).reversed()).
+			toList();
+	}
+
+	@Override
+	public void close() {
+		stream.close();
+	}
+
+	private void pinned(RecordedEvent event) {
+		var site = site(event);
+		var nanos = event.getDuration().toNanos();
+		var isNew = new boolean[1];
+		var stats = sites.computeIfAbsent(site, k -> {
+			isNew[0] = true;
+			return new Site();
+		});
+		stats.count.incrementAndGet();
+		stats.total.addAndGet(nanos);
+		stats.longest.accumulateAndGet(nanos, Math::max);
+
+		if(isNew[0]) {
+			LOG.warning("Virtual thread `{0}` pinned its carrier for {1} ms at {2}. Blocking here holds a platform thread, consider moving the call to a dedicated executor.",
+				event.getThread() == null ? "unknown" : event.getThread().getJavaName(),
+				event.getDuration().toMillis(),
+				trace(event));
+		}
+		else if(LOG.debug()) {
+			LOG.debug("Virtual thread pinned its carrier for {0} ms at {1}", event.getDuration().toMillis(), site);
+		}
+	}
+
+	/**
+	 * Get the first frame that is not part of the JDK, which is most likely to
+	 * be the handler responsible.
+	 */
+	private static String site(RecordedEvent event) {
+		var trace = event.getStackTrace();
+		if(trace == null)
+			return "unknown";
+		var frames = trace.getFrames();
+		for(var frame : frames) {
+			if(frame.isJavaFrame() && !jdk(frame)) {
+				return frame(frame);
+			}
+		}
+		return frames.isEmpty() ? "unknown" : frame(frames.get(0));
+	}
+
+	private static String trace(RecordedEvent event) {
+		var trace = event.getStackTrace();
+		if(trace == null)
+			return "unknown";
+		var b = new StringBuilder();
+		trace.getFrames().stream().limit(16).forEach(frame -> {
+			b.append(System.lineSeparator());
+			b.append("\tat ");
+			b.append(frame(frame));
+		});
+		return b.toString();
+	}
+
+	private static boolean jdk(RecordedFrame frame) {
+		var name = frame.getMethod().getType().getName();
+		return name.startsWith("java.") || name.startsWith("jdk.") || name.startsWith("sun.");
+	}
+
+	private static String frame(RecordedFrame frame) {
+		var method = frame.getMethod();
+		return method.getType().getName() + "." + method.getName() + "(" + frame.getLineNumber() + ")";
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+import com.sshtools.uhttpd.UHTTPD.Handler;
+import com.sshtools.uhttpd.UHTTPD.Transaction;
+
+/**
+ * A store of GZip compressed copies of static module resources. Each resource
+ * is compressed once, the first time it is requested by a client that accepts
+ * GZip, and written to a content addressed file in a cache directory. Further
+ * requests are served directly from that file using
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so no compression happens per request.
+ * <p>
+ * As the files are named by a digest of their uncompressed content, the
+ * directory may be kept between restarts and shared between instances. A file
+ * that is already there is only used once it has been checked to decompress
+ * to content with that digest, as anyone able to write to the directory could
+ * otherwise have scripts sent to every browser.
+ */
+final class PrecompressedResources {
+
+	private final static Log LOG = Logs.of(WebLog.WEB);
+
+	private final static Map<String, String> TYPES = Map.of(
+		"js", "text/javascript",
+		"mjs", "text/javascript",
+		"css", "text/css",
+		"json", "application/json",
+		"map", "application/json",
+		"svg", "image/svg+xml",
+		"html", "text/html",
+		"txt", "text/plain"
+	);
+
+	private final Path directory;
+	private final int minSize;
+	private final Map<String, Optional<Path>> files = new ConcurrentHashMap<>();
+
+	PrecompressedResources(Path directory, int minSize) {
+		this.directory = Web.privateDirectory(directory);
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Wrap a module handler, so that resources it serves are sent from the
+	 * compressed store when possible.
+	 *
+	 * @param module module
+	 * @param delegate handler to use when a compressed copy cannot be used
+	 * @return handler
+	 */
+	Handler wrap(WebModule module, Handler delegate) {
+		return tx -> {
+			/* Whichever encoding is sent, caches must know it depends on the request */
+			tx.header("Vary", "Accept-Encoding");
+			if(acceptsGzip(tx)) {
+				var url = module.locate(tx);
+				if(url.isPresent()) {
+					var type = contentType(url.get().getPath());
+					if(type.isPresent()) {
+						Optional<Path> file;
+						try {
+							file = compressed(url.get());
+						}
+						catch(UncheckedIOException uioe) {
+							LOG.warning("Failed to compress `{0}`, sending it uncompressed.", url.get(), uioe);
+							file = Optional.empty();
+						}
+						if(file.isPresent()) {
+							send(tx, module, type.get(), file.get());
+							return;
+						}
+					}
+				}
+			}
+			delegate.get(tx);
+		};
+	}
+
+	private void send(Transaction tx, WebModule module, String type, Path file) throws IOException {
+		module.cacheHeaders(tx, "-gz");
+		tx.header("Content-Encoding", "gzip");
+		tx.responseType(type);
+		try(var in = FileChannel.open(file, StandardOpenOption.READ)) {
+			var size = in.size();
+			tx.responseLength(size);
+			try(var out = tx.responseWriter()) {
+				var pos = 0L;
+				while(pos < size) {
+					pos += in.transferTo(pos, size - pos, out);
+				}
+			}
+		}
+	}
+
+	private Optional<Path> compressed(URL url) {
+		return files.computeIfAbsent(url.toExternalForm(), k -> {
+			try {
+				byte[] data;
+				try(var in = url.openStream()) {
+					data = in.readAllBytes();
+				}
+				if(data.length < minSize) {
+					return Optional.empty();
+				}
+
+				var digest = MessageDigest.getInstance("SHA-256").digest(data);
+				var file = directory.resolve(HexFormat.of().formatHex(digest) + ".gz");
+				if(!Files.exists(file) || !verify(file, digest)) {
+					var bout = new ByteArrayOutputStream();
+					try(var out = new GZIPOutputStream(bout)) {
+						out.write(data);
+					}
+					if(bout.size() >= data.length) {
+						if(LOG.debug())
+							LOG.debug("Not storing compressed `{0}`, it would not be any smaller.", url);
+						return Optional.empty();
+					}
+
+					var tmp = Files.createTempFile(directory, "resource", ".tmp");
+					try {
+						Files.write(tmp, bout.toByteArray());
+						Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					}
+					finally {
+						Files.deleteIfExists(tmp);
+					}
+
+					if(LOG.debug())
+						LOG.debug("Compressed `{0}` from {1} to {2} bytes.", url, data.length, bout.size());
+				}
+				return Optional.of(file);
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			catch(NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException(nsae);
+			}
+		});
+	}
+
+	private static boolean verify(Path file, byte[] digest) {
+		try(InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+			var md = MessageDigest.getInstance("SHA-256");
+			var buf = new byte[8192];
+			int r;
+			while((r = in.read(buf)) != -1) {
+				md.update(buf, 0, r);
+			}
+			if(MessageDigest.isEqual(md.digest(), digest)) {
+				return true;
+			}
+		}
+		catch(IOException | NoSuchAlgorithmException e) {
+		}
+		LOG.warning("Replacing compressed resource `{0}`, its content does not match its name.", file);
+		return false;
+	}
+
+	private static Optional<String> contentType(String path) {
+		var idx = path.lastIndexOf('.');
+		if(idx == -1)
+			return Optional.empty();
+		return Optional.ofNullable(TYPES.get(path.substring(idx + 1).toLowerCase()));
+	}
+
+	private static double quality(String q) {
+		try {
+			return Double.parseDouble(q);
+		}
+		catch(NumberFormatException nfe) {
+			return 0;
+		}
+	}
+
+	private static boolean acceptsGzip(Transaction tx) {
+		return tx.headerOr("Accept-Encoding").map(hdr -> {
+			for(var enc : hdr.split(",")) {
+				var parts = enc.split(";");
+				var name = parts[0].trim();
+				if(name.equalsIgnoreCase("gzip") || name.equals("*")) {
+					for(int i = 1 ; i < parts.length; i++) {
+						var param = parts[i].trim();
+						if(param.startsWith("q=") && quality(param.substring(2)) == 0) {
+							return false;
+						}
+					}
+					return true;
+				}
+			}
+			return false;
+		}).orElse(false);
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.sshtools.jenny.api.Metrics;
+import com.sshtools.jenny.api.Metrics.Metric;
+import com.sshtools.uhttpd.UHTTPD.Handler;
+import com.sshtools.uhttpd.UHTTPD.Transaction;
+
+/**
+ * Serves all {@link Metrics} in the Prometheus text exposition format.
+ */
+final class PrometheusMetrics implements Handler {
+
+	private final static String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final Metrics metrics;
+
+	PrometheusMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void get(Transaction tx) throws Exception {
+		tx.response(CONTENT_TYPE, format(metrics.collect()));
+	}
+
+	static String format(List<Metric> metrics) {
+		var families = new LinkedHashMap<String, List<Metric>>();
+		for(var metric : metrics) {
+			families.computeIfAbsent(metric.family(), k -> new ArrayList<>()).add(metric);
+		}
+
+		var b = new StringBuilder();
+		families.forEach((family, samples) -> {
+			var first = samples.get(0);
+			b.append("# HELP ").append(family).append(' ').append(escape(first.help(), false)).append('\n');
+			b.append("# TYPE ").append(family).append(' ').append(first.type().name().toLowerCase()).append('\n');
+			for(var sample : samples) {
+				b.append(sample.name());
+				if(!sample.labels().isEmpty()) {
+					b.append('{');
+					var sep = "";
+					for(var en : new TreeMap<>(sample.labels()).entrySet()) {
+						b.append(sep).append(en.getKey()).append("=\"").append(escape(en.getValue(), true)).append('"');
+						sep = ",";
+					}
+					b.append('}');
+				}
+				b.append(' ').append(value(sample.value())).append('\n');
+			}
+		});
+		return b.toString();
+	}
+
+	private static String value(double value) {
+		if(Double.isNaN(value))
+			return "NaN";
+		else if(Double.isInfinite(value))
+			return value > 0 ? "+Inf" : "-Inf";
+		else if(value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long)value);
+		else
+			return Double.toString(value);
+	}
+
+	private static String escape(String text, boolean quotes) {
+		var b = new StringBuilder(text.length());
+		for(var c : text.toCharArray()) {
+			if(c == '\\')
+				b.append("\\\\");
+			else if(c == '\n')
+				b.append("\\n");
+			else if(c == '"' && quotes)
+				b.append("\\\"");
+			else
+				b.append(c);
+		}
+		return b.toString();
+	}
+}
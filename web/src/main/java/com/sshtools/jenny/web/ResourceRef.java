@@ -17,6 +17,9 @@ package com.sshtools.jenny.web;
 
 import static com.sshtools.uhttpd.UHTTPD.classpathResource;
 
+import java.net.URL;
+import java.util.Optional;
+
 import com.sshtools.uhttpd.UHTTPD.Handler;
 
 public record ResourceRef(Class<?> base, ClassLoader loader, String path) {
@@ -50,6 +53,20 @@ public record ResourceRef(Class<?> base, ClassLoader loader, String path) {
 	public ResourceRef translate(String uri) {
 		return new ResourceRef(base, loader, uri + "/" + path);
 	}
+	
+	public ResourceRef withPath(String path) {
+		return new ResourceRef(base, loader, path);
+	}
+	
+	public Optional<URL> url() {
+		if (base != null) {
+			return Optional.ofNullable(base.getResource(path));
+		} else if (loader != null) {
+			return Optional.ofNullable(loader.getResource(path));
+		} else {
+			return Optional.empty();
+		}
+	}
 
 	public String fullpath() {
 		var p = new StringBuilder();
@@ -17,12 +17,20 @@ package com.sshtools.jenny.web;
 
 import java.io.FileNotFoundException;
 import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Consumer;
 
 import com.sshtools.bootlace.api.Logs;
 import com.sshtools.bootlace.api.Logs.Log;
 import com.sshtools.uhttpd.UHTTPD.AbstractContext;
 import com.sshtools.uhttpd.UHTTPD.AbstractWebContextBuilder;
+import com.sshtools.uhttpd.UHTTPD.Handler;
+import com.sshtools.uhttpd.UHTTPD.HandlerSelector;
 import com.sshtools.uhttpd.UHTTPD.Transaction;
 
 public final class Route extends AbstractContext {
@@ -33,12 +41,19 @@ public final class Route extends AbstractContext {
 		
 		private final Consumer<Route> onBuild;
 		private final Consumer<Route> onClose;
+		private final List<String> prefixes = new ArrayList<>();
 
 		RouteBuilder(Consumer<Route> onBuild, Consumer<Route> onClose) {
 			this.onBuild = onBuild;
 			this.onClose = onClose;
 		}
 
+		@Override
+		public RouteBuilder handle(String regex, Handler... handler) {
+			prefixes.add(RouteTable.literalPrefix(regex));
+			return super.handle(regex, handler);
+		}
+
 		@Override
 		public Route build() {
 			return new Route(this);
@@ -46,16 +61,35 @@ public final class Route extends AbstractContext {
 	}
 
 	private final Consumer<Route> onClose;
+	private final Map<HandlerSelector, String> prefixes = new HashMap<>();
 
 	private Route(RouteBuilder builder) {
 		super(builder);
-		builder.onBuild.accept(this);
+		
+		/* Only trust the recorded prefixes if every handler was added using a
+		 * regular expression, otherwise we can't know which prefix belongs
+		 * to which selector
+		 */
+		if(builder.prefixes.size() == handlers.size()) {
+			var it = builder.prefixes.iterator();
+			handlers.keySet().forEach(sel -> prefixes.put(sel, it.next()));
+		}
+		else if(LOG.debug()) {
+			LOG.debug("Route has handlers that are not regular expressions, it will not be indexed.");
+		}
+		
 		onClose = builder.onClose;
+		builder.onBuild.accept(this);
 	}
 
 	@Override
 	public void get(Transaction tx) throws Exception {
+		var path = tx.path().toString();
 		for (var c : handlers.entrySet()) {
+			var prefix = prefixes.get(c.getKey());
+			if (prefix != null && !path.startsWith(prefix))
+				continue;
+			
 			if (c.getKey().matches(tx)) {
 				tx.selector(c.getKey());
 				try {
@@ -75,6 +109,18 @@ public final class Route extends AbstractContext {
 		}
 	}
 
+	/**
+	 * Get the literal prefixes any path must start with to be handled by this
+	 * route. Will contain an empty string if any handler may match any path.
+	 * 
+	 * @return prefixes
+	 */
+	Set<String> prefixes() {
+		if(prefixes.size() != handlers.size())
+			return Set.of("");
+		return new HashSet<>(prefixes.values());
+	}
+
 	@Override
 	protected void onClose() {
 		onClose.accept(this);
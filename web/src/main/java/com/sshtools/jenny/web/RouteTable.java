@@ -0,0 +1,176 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable dispatch table compiled from a list of {@link Route}s. Each
+ * route is placed in a character trie at the literal prefix of each of its
+ * patterns, so finding the routes that could possibly match a path only
+ * requires walking the path once. Routes that have any pattern without a
+ * usable prefix sit at the root, and are always candidates.
+ * <p>
+ * Candidates are always returned in the order the routes were registered, and
+ * it is still up to each route to run its own selectors, so the table only
+ * ever prunes routes that could not have matched.
+ */
+final class RouteTable {
+
+	private final static String META = "\\*+?[{.()^$|";
+
+	private final static class Node {
+		private final Map<Character, Node> children = new HashMap<>();
+		private final BitSet routes = new BitSet();
+	}
+
+	final static RouteTable EMPTY = new RouteTable(List.of());
+
+	private final List<Route> routes;
+	private final Node root = new Node();
+
+	RouteTable(List<Route> routes) {
+		this.routes = List.copyOf(routes);
+		for(int i = 0 ; i < this.routes.size(); i++) {
+			for(var prefix : this.routes.get(i).prefixes()) {
+				var node = root;
+				for(var c : prefix.toCharArray()) {
+					node = node.children.computeIfAbsent(c, k -> new Node());
+				}
+				node.routes.set(i);
+			}
+		}
+	}
+
+	/**
+	 * Get all routes, in registration order.
+	 *
+	 * @return routes
+	 */
+	List<Route> routes() {
+		return routes;
+	}
+
+	/**
+	 * Get the routes that may match the given path, in registration order.
+	 *
+	 * @param path path
+	 * @return candidate routes
+	 */
+	List<Route> candidates(String path) {
+		var matched = new BitSet();
+		var node = root;
+		matched.or(node.routes);
+		for(int i = 0 ; i < path.length(); i++) {
+			node = node.children.get(path.charAt(i));
+			if(node == null)
+				break;
+			matched.or(node.routes);
+		}
+
+		var l = new ArrayList<Route>(matched.cardinality());
+		for(int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+			l.add(routes.get(i));
+		}
+		return l;
+	}
+
+	/**
+	 * Get the literal text any path must start with to be fully matched by the
+	 * regular expression. An empty string is returned if no such prefix can be
+	 * determined.
+	 *
+	 * @param regex regular expression
+	 * @return literal prefix
+	 */
+	static String literalPrefix(String regex) {
+		String common = null;
+		for(var alt : alternatives(regex)) {
+			var prefix = simplePrefix(alt);
+			if(common == null) {
+				common = prefix;
+			}
+			else {
+				var len = 0;
+				while(len < common.length() && len < prefix.length() && common.charAt(len) == prefix.charAt(len))
+					len++;
+				common = common.substring(0, len);
+			}
+		}
+		return common == null ? "" : common;
+	}
+
+	private static List<String> alternatives(String regex) {
+		var l = new ArrayList<String>();
+		var depth = 0;
+		var inClass = false;
+		var start = 0;
+		for(int i = 0 ; i < regex.length(); i++) {
+			var c = regex.charAt(i);
+			if(c == '\\') {
+				i++;
+			}
+			else if(inClass) {
+				if(c == ']')
+					inClass = false;
+			}
+			else if(c == '[') {
+				inClass = true;
+			}
+			else if(c == '(') {
+				depth++;
+			}
+			else if(c == ')') {
+				depth--;
+			}
+			else if(c == '|' && depth == 0) {
+				l.add(regex.substring(start, i));
+				start = i + 1;
+			}
+		}
+		l.add(regex.substring(start));
+		return l;
+	}
+
+	private static String simplePrefix(String regex) {
+		var b = new StringBuilder();
+		for(int i = 0 ; i < regex.length(); i++) {
+			var c = regex.charAt(i);
+			if(c == '\\') {
+				if(i + 1 < regex.length() && META.indexOf(regex.charAt(i + 1)) != -1) {
+					c = regex.charAt(++i);
+				}
+				else {
+					break;
+				}
+			}
+			else if(META.indexOf(c) != -1) {
+				break;
+			}
+
+			/* A following quantifier may make this character optional */
+			if(i + 1 < regex.length() && "?*{".indexOf(regex.charAt(i + 1)) != -1) {
+				break;
+			}
+			b.append(c);
+		}
+		return b.toString();
+	}
+}
@@ -15,9 +15,11 @@
  */
 package com.sshtools.jenny.web;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import com.sshtools.jenny.web.Route.RouteBuilder;
@@ -35,7 +37,8 @@ public class Router extends AbstractContext {
 		}
 	}
 
-	private final Set<Route> routes = new LinkedHashSet<>();
+	private final List<Route> routes = new ArrayList<>();
+	private volatile RouteTable table = RouteTable.EMPTY;
 	private final static ThreadLocal<Set<WebModule>> requires = new ThreadLocal<>();
 
 	private Router(RouterBuilder builder) {
@@ -43,7 +46,7 @@ public class Router extends AbstractContext {
 	}
 
 	public RouteBuilder route() {
-		return new RouteBuilder(routes::add, routes::remove);
+		return new RouteBuilder(this::add, this::remove);
 	}
 	
 	public static void requires(WebModule handle) {
@@ -66,7 +69,7 @@ public class Router extends AbstractContext {
 	@Override
 	public void get(Transaction tx) throws Exception {
 		try {
-			handleMultiple(tx, routes);
+			handleMultiple(tx, table.candidates(tx.path().toString()));
 		}
 		finally {
 			requires.remove();
@@ -75,6 +78,23 @@ public class Router extends AbstractContext {
 
 	@Override
 	public Collection<? extends Handler> handlers() {
-		return routes;
+		return table.routes();
+	}
+	
+	private void add(Route route) {
+		synchronized(routes) {
+			if(!routes.contains(route)) {
+				routes.add(route);
+				table = new RouteTable(routes);
+			}
+		}
+	}
+	
+	private void remove(Route route) {
+		synchronized(routes) {
+			if(routes.remove(route)) {
+				table = new RouteTable(routes);
+			}
+		}
 	}
 }
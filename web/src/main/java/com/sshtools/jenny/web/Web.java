@@ -22,20 +22,33 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.HexFormat;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.json.Json;
 import javax.json.JsonObjectBuilder;
@@ -45,6 +58,7 @@ import com.sshtools.bootlace.api.Logs;
 import com.sshtools.bootlace.api.Logs.Log;
 import com.sshtools.bootlace.api.Plugin;
 import com.sshtools.bootlace.api.PluginContext;
+import com.sshtools.jenny.api.Api;
 import com.sshtools.jenny.api.XPoints;
 import com.sshtools.jenny.config.Config;
 import com.sshtools.jenny.web.Router.RouterBuilder;
@@ -53,12 +67,14 @@ import com.sshtools.jenny.web.WebModule.Type;
 import com.sshtools.jenny.web.WebModule.WebModuleResource;
 import com.sshtools.jenny.web.WebModule.WebModulesRef;
 import com.sshtools.jini.INI;
+import com.sshtools.jini.INI.Section;
 import com.sshtools.jini.config.INISet;
 import com.sshtools.tinytemplate.Templates.Logger;
 import com.sshtools.tinytemplate.Templates.TemplateModel;
 import com.sshtools.tinytemplate.Templates.TemplateProcessor;
 import com.sshtools.uhttpd.UHTTPD;
 import com.sshtools.uhttpd.UHTTPD.AllSelector;
+import com.sshtools.uhttpd.UHTTPD.Handler;
 import com.sshtools.uhttpd.UHTTPD.NCSALoggerBuilder;
 import com.sshtools.uhttpd.UHTTPD.RootContext;
 import com.sshtools.uhttpd.UHTTPD.RootContextBuilder;
@@ -77,6 +93,8 @@ public final class Web implements Plugin {
 	public static final String NCSA = "ncsa";
 	public static final String TUNING = "tuning";
 	public static final String HTTP = "http";
+	public static final String SESSIONS = "sessions";
+	public static final String METRICS = "metrics";
 
 	final static Log LOG = Logs.of(WebLog.WEB);
 
@@ -88,30 +106,32 @@ public final class Web implements Plugin {
 	}
 	
 	private final Config config = PluginContext.$().plugin(Config.class);
+	private final Api api = PluginContext.$().plugin(Api.class);
 	
 	private final TemplateProcessor tp;
 	private RootContext httpd;
 	private final XPoints extensions;
 	private final Router router;
-	private final ScheduledExecutorService queue;
-	private final Map<String, WebModule> modules = new ConcurrentHashMap<>();
-	private final List<WebModule> globalModules = new ArrayList<WebModule>();
+	private final LoggedExecutorService queue;
+	private final WebModuleRegistry registry;
+	private final Optional<PrecompressedResources> precompressed;
+	private Optional<ExecutorService> requestExecutor = Optional.empty();
+	private Optional<PinningMonitor> pinningMonitor = Optional.empty();
+	private volatile Map<Set<WebModule>, Map<Placement, String>> fragments = new ConcurrentHashMap<>();
 	private final INISet configSet;
 
 	private com.sshtools.bootlace.api.RootContext rootContext;
+	private ScheduledFuture<?> stateReaper;
+	private ScheduledFuture<?> stateFlusher;
+	private final List<Closeable> metricsSources = new ArrayList<>();
+	private Optional<Route> metricsRoute = Optional.empty();
+	private WebStateBackend stateBackend = WebStateBackend.heap();
 	
 	public Web() {
 		this(new NpmPackageGlobalTemplateDecorator());
 	}
 	
 	public Web(GlobalTemplateDecorator npmDecorator) {
-		queue = new LoggedExecutorService(Executors.newScheduledThreadPool(1, new ThreadFactory() {
-			@Override
-			public Thread newThread(Runnable r) {
-				return new Thread(r, "GlobalUIQueue");
-			}
-		}));
-		
 		/* Template processing */
 		tp = new TemplateProcessor.Builder().
 			withLogger(new Logger() {
@@ -139,20 +159,39 @@ public final class Web implements Plugin {
 		/* Routes */
 		router = new RouterBuilder().
 				build();
+		registry = new WebModuleRegistry(router, this::moduleHandler, this::invalidateFragments);
 		
 			configSet = config.configBuilder("web", Web.class, "Web.schema.ini").
 					build();
+			
+		/* UI queue */
+		var tuning = configSet.document().sectionOr(TUNING);
+		var uiThreads = tuning.map(cfg -> cfg.getInt("ui-threads", 0)).orElse(0);
+		queue = new LoggedExecutorService("ui", new KeyedScheduler("GlobalUIQueue", 
+				uiThreads < 1 ? Math.max(2, Runtime.getRuntime().availableProcessors()) : uiThreads));
+		metricsSources.add(api.metrics().register(queue));
+		metricsSources.add(api.metrics().register(WebState::collect));
+		
+		/* Precompressed static resources */
+		if(tuning.map(cfg -> cfg.getBoolean("precompress", true)).orElse(true)) {
+			precompressed = Optional.of(new PrecompressedResources(
+				tuning.flatMap(cfg -> cfg.getOr("precompress-directory")).map(Paths::get).orElseGet(() -> stateDirectory(configSet.document().sectionOr(SESSIONS)).resolve("precompressed")),
+				tuning.map(cfg -> cfg.getInt("precompress-min-size", 1024)).orElse(1024)));
+		}
+		else {
+			precompressed = Optional.empty();
+		}
 	}
 	
 	public Closeable global(WebModule... modules) {
 		var l = Arrays.asList(modules);
-		globalModules.addAll(l);
 		var c = modules(modules);
+		registry.addGlobals(l);
 		return new Closeable() {
 			@Override
 			public void close() throws IOException {
-				c.close();;
-				globalModules.removeAll(l);
+				registry.removeGlobals(l);
+				c.close();
 			}
 		};
 	}
@@ -212,6 +251,31 @@ public final class Web implements Plugin {
 			});
 			httpd.httpPort().ifPresent(p -> LOG.info("Listening on {0} for HTTP", p));
 			httpd.httpsPort().ifPresent(p -> LOG.info("Listening on {0} for HTTPS", p));
+			
+			var sessionsSection = webConfig.sectionOr(SESSIONS);
+			WebState.configure(
+				Duration.ofMinutes(sessionsSection.map(cfg -> cfg.getInt("idle-timeout", 30)).orElse(30)),
+				sessionsSection.map(cfg -> cfg.getInt("max-states", 10000)).orElse(10000));
+			stateBackend = createStateBackend(sessionsSection);
+			if(stateBackend.persistent()) {
+				WebState.secret(stateSecret(sessionsSection));
+			}
+			WebState.backend(stateBackend);
+			if(stateBackend.persistent()) {
+				var flushInterval = sessionsSection.map(cfg -> cfg.getInt("flush-interval", 5)).orElse(5);
+				stateFlusher = api.globalTimerQueue().scheduleWithFixedDelay(WebState::flush, flushInterval, flushInterval, TimeUnit.SECONDS);
+			}
+			stateReaper = api.globalTimerQueue().scheduleWithFixedDelay(WebState::evictIdle, 1, 1, TimeUnit.MINUTES);
+			
+			webConfig.sectionOr(METRICS).ifPresent(cfg -> {
+				if(cfg.getBoolean("enabled", false)) {
+					var path = cfg.get("path", "/metrics");
+					LOG.info("Serving metrics at {0}", path);
+					metricsRoute = Optional.of(router.route().
+						handle(path, new PrometheusMetrics(api.metrics())).
+						build());
+				}
+			});
 		}
 		catch(IOException e) {
 			throw new UncheckedIOException(e);
@@ -221,12 +285,127 @@ public final class Web implements Plugin {
 
 	@Override
 	public void close() {
+		if(stateReaper != null) {
+			stateReaper.cancel(false);
+		}
+		if(stateFlusher != null) {
+			stateFlusher.cancel(false);
+		}
 		httpd.close();
+		metricsRoute.ifPresent(Route::close);
+		metricsSources.forEach(c -> {
+			try {
+				c.close();
+			}
+			catch(IOException ioe) {
+			}
+		});
+		queue.shutdown();
+		requestExecutor.ifPresent(ExecutorService::shutdown);
+		pinningMonitor.ifPresent(PinningMonitor::close);
+		WebState.backend(WebStateBackend.heap());
+		stateBackend.close();
 		if(configSet != null) {
 			configSet.close();
 		}
 	}
 	
+	private WebStateBackend createStateBackend(Optional<Section> sessionsSection) {
+		var type = sessionsSection.map(cfg -> cfg.getEnum(WebStateBackend.Type.class, "backend", WebStateBackend.Type.HEAP)).orElse(WebStateBackend.Type.HEAP);
+		var directory = stateDirectory(sessionsSection);
+		var expiry = Duration.ofHours(sessionsSection.map(cfg -> cfg.getInt("expiry", 24)).orElse(24));
+		LOG.info("Using {0} web state backend.", type);
+		switch(type) {
+		case MAPPED:
+			return new MappedWebStateBackend(
+				directory.resolve("web-state.dat"), 
+				sessionsSection.map(cfg -> cfg.getInt("mapped-size", 64)).orElse(64) * 1024 * 1024,
+				expiry);
+		case FILE:
+			return new FileWebStateBackend(directory, expiry);
+		default:
+			return WebStateBackend.heap();
+		}
+	}
+	
+	private static Path stateDirectory(Optional<Section> sessionsSection) {
+		return Paths.get(sessionsSection.flatMap(cfg -> cfg.getOr("directory")).orElseGet(() -> System.getProperty("user.dir") + File.separator + "state"));
+	}
+	
+	/**
+	 * Get the secret that keys for stored web state are derived from. Unless 
+	 * configured, one is generated and kept in the state directory, readable by
+	 * this user only, so all nodes sharing the directory use the same one.
+	 */
+	private static byte[] stateSecret(Optional<Section> sessionsSection) {
+		var configured = sessionsSection.flatMap(cfg -> cfg.getOr("secret")).filter(s -> !s.isBlank());
+		if(configured.isPresent()) {
+			return configured.get().getBytes(StandardCharsets.UTF_8);
+		}
+		
+		var file = privateDirectory(stateDirectory(sessionsSection)).resolve("web-state.key");
+		try {
+			if(!Files.exists(file)) {
+				var secret = new byte[32];
+				new SecureRandom().nextBytes(secret);
+				var tmp = posix() 
+					? Files.createTempFile(file.getParent(), "web-state", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+					: Files.createTempFile(file.getParent(), "web-state", ".tmp");
+				try {
+					Files.writeString(tmp, HexFormat.of().formatHex(secret));
+					Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+					LOG.info("Generated new web state secret in `{0}`.", file);
+					return secret;
+				}
+				catch(FileAlreadyExistsException faee) {
+					/* Another node got there first */
+				}
+				finally {
+					Files.deleteIfExists(tmp);
+				}
+			}
+			return HexFormat.of().parseHex(Files.readString(file).trim());
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+	
+	/**
+	 * Create a directory, if it does not exist, that only this user may access.
+	 * 
+	 * @param directory directory
+	 * @return directory
+	 */
+	static Path privateDirectory(Path directory) {
+		try {
+			if(!Files.exists(directory)) {
+				if(posix())
+					Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+				else
+					Files.createDirectories(directory);
+			}
+			return directory;
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+	}
+	
+	static boolean posix() {
+		return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	}
+	
+	/**
+	 * Get the monitor reporting handlers that pin carrier threads, if requests
+	 * are being handled on virtual threads.
+	 * 
+	 * @return pinning monitor
+	 */
+	public Optional<PinningMonitor> pinningMonitor() {
+		return pinningMonitor;
+	}
+	
 	public XPoints extensions() {
 		return extensions;
 	}
@@ -238,16 +417,28 @@ public final class Web implements Plugin {
 	public ScheduledExecutorService globalUiQueue() {
 		return queue;
 	}
+
+	/**
+	 * Get the queue used for pushing updates to the UI, as returned by
+	 * {@link #globalUiQueue()}, but accepting keys and priorities. Tasks that
+	 * must be delivered in order, for example to the same channel, should be
+	 * submitted using the same key.
+	 * 
+	 * @return UI queue
+	 */
+	public KeyedScheduledExecutorService keyedUiQueue() {
+		return queue;
+	}
 	
 	public WebModulesRef modules(WebModule... modules) {
-		var l = new ArrayList<Route>();
-		var m = new HashSet<String>();
-		addModules(l, m, modules);
+		var acquired = registry.acquire(modules);
+		var closed = new AtomicBoolean();
 		return new WebModulesRef() {
 			@Override
 			public void close() throws IOException {
-				l.forEach(Route::close);
-				m.forEach(k -> Web.this.modules.remove(k));
+				if(closed.compareAndSet(false, true)) {
+					registry.release(acquired);
+				}
 			}
 
 			@Override
@@ -299,29 +490,11 @@ public final class Web implements Plugin {
 		return tp;
 	}
 
-	private void addModules(ArrayList<Route> l, HashSet<String> m, WebModule... modules) {
-		/* TODO this needs a rewrite. If an extension is removed, that removes the
-		 * routes that are being shared by another extension also using the module,
-		 * the 2nd etension will stop working correctly.  Need to maintain a counter
-		 * of how many uses of a module there are, and only remove them when there are
-		 * zero usages
-		 */
-		for(var module : modules) {
-			if(!this.modules.containsKey(module.name())) {
-				if(module.hasHandler()) {
-					var hndl = router().route().
-						handle(module.pattern(), module.handler()).
-						build();
-					
-					l.add(hndl);
-				}
-				this.modules.put(module.name(), module);
-				m.add(module.name());
-			}
-			addModules(l, m, module.requires().toArray(new WebModule[0]));
-		}
+	private Handler moduleHandler(WebModule module) {
+		return precompressed.
+				map(p -> p.wrap(module, module.handler())).
+				orElseGet(module::handler);
 	}
-	
 
 	private void configureServer(RootContextBuilder bldr) {
 		var ini = getWebConfig();
@@ -350,6 +523,22 @@ public final class Web implements Plugin {
 			if(!cfg.getBoolean("compression", true)) {
 				bldr.withoutCompression();
 			}
+			if(cfg.getBoolean("virtual-threads", false)) {
+				LOG.info("Handling requests on virtual threads.");
+				var executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("jenny-request-", 0).factory());
+				requestExecutor = Optional.of(executor);
+				bldr.withExecutor(executor);
+				
+				var threshold = cfg.getInt("pinning-threshold", 20);
+				if(threshold > 0) {
+					try {
+						pinningMonitor = Optional.of(new PinningMonitor(Duration.ofMillis(threshold)));
+					}
+					catch(RuntimeException | LinkageError e) {
+						LOG.warning("Could not start monitoring for pinned virtual threads.", e);
+					}
+				}
+			}
 		});
 		
 		/* TODO Arggh... The "view source" in firefox bug when compression is on really needs fixing */
@@ -371,11 +560,11 @@ public final class Web implements Plugin {
 		return configSet.document();
 	}
 	
-	private List<TemplateModel> cssModules(Transaction tx, String content, Placement placement) {
-		var l = sortModules(Arrays.asList(Type.CSS), placement);
+	private List<TemplateModel> cssModules(List<WebModule> sorted, String content, Placement placement) {
+		var l = resources(sorted, Arrays.asList(Type.CSS), placement);
 		return l.stream().
 			map(mod -> TemplateModel.ofContent(content).
-				variable("href", mod.uri()
+				variable("href", mod.fingerprintedUri()
 			)
 		).toList();
 	}
@@ -407,22 +596,17 @@ public final class Web implements Plugin {
 	
 	private TemplateModel fragBodyHead(Transaction tx) {
 		return decorate(tx, TemplateModel.ofResource(Web.class, "bodyhead.frag.html").
-				list("script", (content) -> 
-					scriptModules(tx, content, Placement.BODYHEAD)));
-		}
+				variable("web.modules", () -> moduleMarkup(Placement.BODYHEAD)));
+	}
 
 	private TemplateModel fragBodyTail(Transaction tx) {
 		return decorate(tx, TemplateModel.ofResource(Web.class, "bodytail.frag.html").
-				list("script", (content) -> 
-					scriptModules(tx, content, Placement.BODYTAIL)));
+				variable("web.modules", () -> moduleMarkup(Placement.BODYTAIL)));
 	}
 
 	private TemplateModel fragHead(Transaction tx) {
 		var templ = TemplateModel.ofResource(Web.class, "head.frag.html").
-				list("css", (content) -> 
-					cssModules(tx, content, Placement.HEAD)).
-				list("script", (content) -> 
-					scriptModules(tx, content, Placement.HEAD));
+				variable("web.modules", () -> moduleMarkup(Placement.HEAD));
 		
 		Optional<String> baseHref = tx.attrOr(TX_BASE_HREF);
 		Optional<String> baseTarget = tx.attrOr(TX_BASE_TARGET);
@@ -436,10 +620,44 @@ public final class Web implements Plugin {
 		
 		return decorate(tx, templ);
 	}
+	
+	private void invalidateFragments() {
+		/* Swap rather than clear, so a render that is in progress while modules
+		 * change cannot put a stale entry into the new cache
+		 */
+		fragments = new ConcurrentHashMap<>();
+	}
+	
+	private String moduleMarkup(Placement placement) {
+		var key = new LinkedHashSet<WebModule>(registry.snapshot().globals());
+		key.addAll(Router.requires());
+		/* The copy is only the cache key, rendering keeps the order modules were added in */
+		return fragments.computeIfAbsent(Set.copyOf(key), k -> renderModules(key)).get(placement);
+	}
+	
+	private Map<Placement, String> renderModules(Set<WebModule> modules) {
+		if(LOG.debug()) {
+			LOG.debug("Rendering module fragments for {0} modules", modules.size());
+		}
+		
+		var sorted = sortModules(modules);
+		var markup = new EnumMap<Placement, String>(Placement.class);
+		for(var placement : Placement.values()) {
+			var templ = TemplateModel.ofResource(Web.class, "modules.frag.html").
+				list("script", (content) -> 
+					scriptModules(sorted, content, placement));
+			if(placement == Placement.HEAD) {
+				templ.list("css", (content) -> 
+					cssModules(sorted, content, placement));
+			}
+			markup.put(placement, tp.process(templ));
+		}
+		return markup;
+	}
 
-	private List<TemplateModel> scriptModules(Transaction tx, String content, Placement placement) {
+	private List<TemplateModel> scriptModules(List<WebModule> sorted, String content, Placement placement) {
 		
-		var l = sortModules(Arrays.asList(Type.IMPORT_MAP, Type.IMPORTED, Type.JS, Type.MODULE), placement);
+		var l = resources(sorted, Arrays.asList(Type.IMPORT_MAP, Type.IMPORTED, Type.JS, Type.MODULE), placement);
 		
 		return l.stream().
 			map(mod -> { 
@@ -450,7 +668,7 @@ public final class Web implements Plugin {
 					mdl.variable("content", mod.content());
 				}
 				else {
-					mdl.variable("src", mod.uri());
+					mdl.variable("src", mod.fingerprintedUri());
 				}
 				
 				return mdl;
@@ -458,20 +676,20 @@ public final class Web implements Plugin {
 		).toList();
 	}
 
-	private Collection<WebModuleResource> sortModules(Collection<Type> types, Placement placement) {
+	private List<WebModule> sortModules(Collection<WebModule> modules) {
 		/* The complete list */
-		List<WebModule> l = new ArrayList<>();
-		l.addAll(globalModules);
-		l.addAll(Router.requires());
+		List<WebModule> l = new ArrayList<>(modules);
 		l.addAll(l.stream().flatMap(r -> r.requires().stream()).toList());
 		
 		/* Topological DAG sort */
 		l =  new DependencyGraph<>(l).getTopologicallySorted();
 		
 		/* Build IMPORT_MAP if there are IMPORTED modules */
-		l = buildImportMap(l);
-		
-		return new LinkedHashSet<>(l.
+		return buildImportMap(l);
+	}
+
+	private Collection<WebModuleResource> resources(List<WebModule> sorted, Collection<Type> types, Placement placement) {
+		return new LinkedHashSet<>(sorted.
 				stream().
 				flatMap(a -> a.resources().stream()).
 				filter(m -> m.type() != Type.IMPORTED && m.placement().equals(placement) && types.contains(m.type())).
@@ -489,7 +707,7 @@ public final class Web implements Plugin {
 					if(imports == null) {
 						imports = Json.createObjectBuilder();
 					}
-					imports.add(wm.name(), res.uri());
+					imports.add(wm.name(), res.fingerprintedUri());
 				}
 			}
 		}
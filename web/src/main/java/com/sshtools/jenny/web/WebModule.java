@@ -16,33 +16,36 @@
 package com.sshtools.jenny.web;
 
 import java.io.Closeable;
+import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HexFormat;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import com.sshtools.bootlace.api.DependencyGraph.Dependency;
 import com.sshtools.bootlace.api.NodeModel;
+import com.sshtools.jenny.web.NpmWebModule.Compression;
 import com.sshtools.uhttpd.UHTTPD;
 import com.sshtools.uhttpd.UHTTPD.Handler;
 import com.sshtools.uhttpd.UHTTPD.Transaction;
 
-/**
- * TODO: Detect .min resources and automatically use them (when not specified as 'main' or 'style' or 'module'),
- * also the reverse.
- */
 public final class WebModule implements NodeModel<WebModule> {
 	
 	public enum Mount {
@@ -238,14 +241,15 @@ public final class WebModule implements NodeModel<WebModule> {
 		private final Optional<Handler> handler;
 		private final Optional<String> content;
 		private WebModule module;
+		private volatile Optional<String> fingerprint;
 
-		private WebModuleResource(WebModuleResource res, String uri) {
+		private WebModuleResource(WebModuleResource res, ResourceRef ref) {
 			this.placement = res.placement;
 			this.type = res.type;
 			this.handler = res.handler;
 			this.content = res.content;
 			this.module = res.module;
-			this.ref = res.ref.translate(uri);
+			this.ref = ref;
 		}
 		
 		private WebModuleResource(Builder builder) {
@@ -281,6 +285,35 @@ public final class WebModule implements NodeModel<WebModule> {
 			return module.uri(this);
 		}
 
+		/**
+		 * Get a fingerprint of the content of this resource, if it can be
+		 * determined. This will be read and calculated on first use.
+		 * 
+		 * @return fingerprint
+		 */
+		public Optional<String> fingerprint() {
+			var fp = fingerprint;
+			if(fp == null) {
+				if(module ==null)
+					throw new IllegalStateException("Not attached to module.");
+				fingerprint = fp = module.fingerprint(this);
+			}
+			return fp;
+		}
+
+		/**
+		 * Get the URI of this resource, including its fingerprint if it has
+		 * one. Such URIs are served with headers that allow browsers to cache
+		 * them indefinitely.
+		 * 
+		 * @return fingerprinted URI
+		 */
+		public String fingerprintedUri() {
+			return fingerprint().
+					map(fp -> uri() + "?" + VERSION_PARAMETER + "=" + fp).
+					orElseGet(this::uri);
+		}
+
 		public Type type() {
 			return type.orElseGet(() -> {
 				if (ref == null) {
@@ -317,7 +350,11 @@ public final class WebModule implements NodeModel<WebModule> {
 		}
 
 		public WebModuleResource translate(String uri) {
-			return new WebModuleResource(this, uri);
+			return withRef(ref.translate(uri));
+		}
+
+		WebModuleResource withRef(ResourceRef ref) {
+			return new WebModuleResource(this, ref);
 		}
 	}
 		
@@ -329,6 +366,19 @@ public final class WebModule implements NodeModel<WebModule> {
 		private Optional<Mount> mount = Optional.empty();
 		private Optional<ClassLoader> loader = Optional.empty();
 		private Optional<ResourceRef> prefix = Optional.empty();
+		private Optional<Compression> compression = Optional.empty();
+		
+		/**
+		 * Serve the minified or unminified variant of each script and stylesheet.
+		 * When not set, resources are served exactly as given.
+		 * 
+		 * @param compression compression
+		 * @return this for chaining
+		 */
+		public  Builder withCompression(Compression compression) {
+			this.compression = Optional.of(compression);
+			return this;
+		}
 		
 		public  Builder withName(String name) {
 			this.name = Optional.of(name);
@@ -438,6 +488,13 @@ public final class WebModule implements NodeModel<WebModule> {
 		
 	}
 	
+	/**
+	 * Query parameter appended to resource URIs carrying the fingerprint of the
+	 * resource content. A request that carries a current fingerprint may be
+	 * cached by the browser forever.
+	 */
+	public final static String VERSION_PARAMETER = "v";
+	
 	private final static char[] ESC_CHARS = { '\\', '*', '+', '?', '[', '{', '.', '(', ')', '^', '$', '|' };
 	
 	private static String escapeLiteral(String path) {
@@ -455,23 +512,16 @@ public final class WebModule implements NodeModel<WebModule> {
 	private final Mount mount;
 	private final String uri;
 	private final Optional<ResourceRef> prefix;
+	private final Optional<Compression> compression;
+	private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
 	private Optional<ClassLoader> loader;
 	
 	private WebModule(Builder builder) {
 		this.prefix = builder.prefix;
 		this.loader = builder.loader;
-		this.resources = Collections.unmodifiableList(new ArrayList<>(builder.resources).stream().peek(f-> {
-			if( f.ref.loader() != null && loader.isPresent()) 
-				throw new IllegalArgumentException("Loader is set on the " +WebModuleResource.class.getName() + " , so should not be set on any " + ResourceRef.class.getName() + ".");
-		}).toList());
-		this.resources.forEach(r -> r.module = this);
-		
+		this.compression = builder.compression;
 		this.mount = builder.mount.orElseGet(() -> builder.uri == null ? Mount.CONTENT : builder.uri.endsWith("/") ? Mount.DIRECTORY : Mount.FILE);
 		
-		if(mount == Mount.FILE && resources.size() != 1) {
-			throw new IllegalStateException(MessageFormat.format("Mount `{0}` must specify exactly on resource to map to, there are {1}", Mount.FILE, resources.size()));
-		}
-		
 		var uri = builder.uri;
 		if(uri != null && !uri.startsWith("/") ) {
 			if(mount == Mount.URL && !uri.startsWith("http://") && !uri.startsWith("https://"))  {
@@ -487,9 +537,16 @@ public final class WebModule implements NodeModel<WebModule> {
 				uri += "/";
 			}
 		}
-		else {
-			/* TODO map to .min.js/.min.css or .js/.css depending on compression setting */
-			//	var firstRes = resources.get(0);
+		this.uri = uri;
+		
+		this.resources = Collections.unmodifiableList(new ArrayList<>(builder.resources).stream().peek(f-> {
+			if(loader.isPresent() && f.ref != null && f.ref.loader() != null) 
+				throw new IllegalArgumentException("Loader is set on the " +WebModuleResource.class.getName() + " , so should not be set on any " + ResourceRef.class.getName() + ".");
+		}).map(this::compress).toList());
+		this.resources.forEach(r -> r.module = this);
+		
+		if(mount == Mount.FILE && resources.size() != 1) {
+			throw new IllegalStateException(MessageFormat.format("Mount `{0}` must specify exactly on resource to map to, there are {1}", Mount.FILE, resources.size()));
 		}
 		
 		var pattern = uri == null ? null : escapeLiteral(Objects.requireNonNull(uri));
@@ -498,10 +555,10 @@ public final class WebModule implements NodeModel<WebModule> {
 		}
 		
 		this.pattern = pattern;
-		this.uri = uri;
 		this.name = builder.name.orElse(this.pattern);
 		this.requires = Collections.unmodifiableSet(new LinkedHashSet<>(builder.requires));
 		
+		Optional<Handler> hndlr;
 		if(mount == Mount.DIRECTORY) {
 			/* TODO is this really the right condition? prefix.isPresent() maybe better */
 			if(this.loader.isPresent()) {
@@ -510,7 +567,7 @@ public final class WebModule implements NodeModel<WebModule> {
 				 * under the URI
 				 */
 				var loader = this.loader.get();
-				handler = Optional.of(new Handler() {
+				hndlr = Optional.of(new Handler() {
 					
 					@Override
 					public void get(Transaction req) throws Exception {
@@ -531,7 +588,7 @@ public final class WebModule implements NodeModel<WebModule> {
 				 * URI and uses the path of each resource to identify the
 				 * resource
 				 */
-				handler = Optional.of(new Handler() {
+				hndlr = Optional.of(new Handler() {
 					@Override
 					public void get(Transaction req) throws Exception {
 						var rel = req.match(0);
@@ -554,10 +611,10 @@ public final class WebModule implements NodeModel<WebModule> {
 			}
 		}
 		else if(mount == Mount.CONTENT) {
-			this.handler = Optional.of((c) -> {});
+			hndlr = Optional.of((c) -> {});
 		}
 		else if(mount == Mount.URL) {
-			this.handler = Optional.empty();
+			hndlr = Optional.empty();
 		}
 		else {
 			/**
@@ -565,12 +622,14 @@ public final class WebModule implements NodeModel<WebModule> {
 			 */
 			var res = resources.get(0);
 			if(res.handler.isPresent()) {
-				this.handler = Optional.of(res.handler.get());
+				hndlr = Optional.of(res.handler.get());
 			}
 			else {
-				this.handler = Optional.of(res.ref.handler());
+				hndlr = Optional.of(res.ref.handler());
 			}
 		}
+		
+		this.handler = hndlr.map(this::cacheable);
 	}
 	
 	private String uri(WebModuleResource webModuleResource) {
@@ -592,6 +651,140 @@ public final class WebModule implements NodeModel<WebModule> {
 		}
 	}
 	
+	private Handler cacheable(Handler delegate) {
+		return tx -> {
+			cacheHeaders(tx);
+			delegate.get(tx);
+		};
+	}
+	
+	void cacheHeaders(Transaction tx) {
+		cacheHeaders(tx, "");
+	}
+	
+	/**
+	 * Add caching headers for a fingerprinted resource. Each encoding of the
+	 * same resource must be given a different entity tag.
+	 * 
+	 * @param tx transaction
+	 * @param etagSuffix suffix identifying the encoding
+	 */
+	void cacheHeaders(Transaction tx, String etagSuffix) {
+		tx.parameterOr(VERSION_PARAMETER).map(p -> p.asString()).ifPresent(v -> {
+			/* Only the current fingerprint of the resource actually requested may be cached */
+			if(v.equals(fingerprints.get(mount == Mount.FILE ? "" : tx.match(0)))) {
+				tx.header("Cache-Control", "public, max-age=31536000, immutable");
+				tx.header("ETag", "\"" + v + etagSuffix + "\"");
+			}
+		});
+	}
+	
+	/**
+	 * Locate the static resource a request to this module's handler would be
+	 * served, if it is a static resource.
+	 * 
+	 * @param tx transaction
+	 * @return location of resource
+	 */
+	Optional<URL> locate(Transaction tx) {
+		if(mount == Mount.FILE) {
+			var res = resources.get(0);
+			return res.handler.isPresent() ? Optional.empty() : locate(res.ref);
+		}
+		else if(mount == Mount.DIRECTORY) {
+			var rel = tx.match(0);
+			if(loader.isPresent()) {
+				return locate(new ResourceRef(rel));
+			}
+			else {
+				return resources.stream().
+						filter(res -> res.ref != null && res.handler.isEmpty() && rel.equals(res.ref.path())).
+						findFirst().
+						flatMap(res -> locate(res.ref));
+			}
+		}
+		else {
+			return Optional.empty();
+		}
+	}
+	
+	private WebModuleResource compress(WebModuleResource res) {
+		if(compression.isEmpty() || res.handler.isPresent() || res.ref == null || mount == Mount.URL) {
+			return res;
+		}
+		
+		var path = res.ref.path();
+		var lpath = path.toLowerCase();
+		String ext;
+		if(lpath.endsWith(".js"))
+			ext = "js";
+		else if(lpath.endsWith(".css"))
+			ext = "css";
+		else
+			return res;
+		
+		var base = path.substring(0, path.length() - ext.length() - 1);
+		if(base.toLowerCase().endsWith(".min")) {
+			base = base.substring(0, base.length() - 4);
+		}
+		
+		switch(compression.get()) {
+		case NONE:
+			return variant(res, base + "." + ext).orElse(res);
+		case MINIFY:
+			return variant(res, base + ".min." + ext).orElseThrow(() -> new IllegalArgumentException(MessageFormat.format("Resource with path `{0}` does not exist with compressed extension ''.min.{1}''.", path, ext)));
+		default:
+			return variant(res, base + ".min." + ext).orElse(res);
+		}
+	}
+	
+	private Optional<WebModuleResource> variant(WebModuleResource res, String path) {
+		if(path.equals(res.ref.path()))
+			return Optional.of(res);
+		var ref = res.ref.withPath(path);
+		return locate(ref).map(url -> res.withRef(ref));
+	}
+	
+	private Optional<String> fingerprint(WebModuleResource res) {
+		if(res.handler.isPresent() || res.ref == null || mount == Mount.URL) {
+			return Optional.empty();
+		}
+		return locate(res.ref).map(url -> {
+			try(var in = url.openStream()) {
+				var dgst = MessageDigest.getInstance("SHA-256");
+				var buf = new byte[8192];
+				int r;
+				while( ( r = in.read(buf) ) != -1) {
+					dgst.update(buf, 0, r);
+				}
+				var fp = HexFormat.of().formatHex(dgst.digest(), 0, 8);
+				fingerprints.put(mount == Mount.FILE ? "" : res.ref.path(), fp);
+				return fp;
+			}
+			catch(IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			catch(NoSuchAlgorithmException nsae) {
+				throw new IllegalStateException(nsae);
+			}
+		});
+	}
+	
+	private Optional<URL> locate(ResourceRef ref) {
+		if(ref.base() != null || ref.loader() != null) {
+			return ref.url();
+		}
+		else if(mount == Mount.DIRECTORY && loader.isPresent()) {
+			var dir = prefix.map(ResourceRef::fullpath).orElseGet(() -> uri.substring(1));
+			if(dir.endsWith("/"))
+				dir = dir.substring(0, dir.length() - 1);
+			return Optional.ofNullable(loader.get().getResource(dir + "/" + ref.path()));
+		}
+		else {
+			return Optional.empty();
+		}
+	}
+	
 	public Optional<ResourceRef> prefix() {
 		return prefix;
 	}
@@ -0,0 +1,150 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+import com.sshtools.uhttpd.UHTTPD.Handler;
+
+/**
+ * Keeps track of every registered {@link WebModule}, along with how many
+ * extensions are currently using it. The route serving a module is only added
+ * on first use, and only removed when the last user releases it.
+ * <p>
+ * Writers are serialised, and each change publishes a new immutable
+ * {@link Snapshot}. Request threads only ever read the current snapshot, so
+ * never lock and never see a partially updated set of modules.
+ */
+final class WebModuleRegistry {
+
+	private final static Log LOG = Logs.of(WebLog.WEB);
+
+	/**
+	 * An immutable view of the registry at a point in time.
+	 */
+	public record Snapshot(List<WebModule> globals) {
+	}
+
+	private final static class Registration {
+		private final Optional<Route> route;
+		private int count;
+
+		private Registration(Optional<Route> route) {
+			this.route = route;
+		}
+	}
+
+	private final Router router;
+	private final Function<WebModule, Handler> handlers;
+	private final Runnable onChange;
+	private final Map<String, Registration> registrations = new HashMap<>();
+	private final List<WebModule> globals = new ArrayList<>();
+	private volatile Snapshot snapshot = new Snapshot(List.of());
+
+	WebModuleRegistry(Router router, Function<WebModule, Handler> handlers, Runnable onChange) {
+		this.router = router;
+		this.handlers = handlers;
+		this.onChange = onChange;
+	}
+
+	/**
+	 * Get the current snapshot. Never blocks.
+	 *
+	 * @return snapshot
+	 */
+	Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Take a reference to each of the modules and everything they require. The
+	 * returned list must be passed to {@link #release(Collection)} exactly once
+	 * when the caller no longer needs them.
+	 *
+	 * @param modules modules
+	 * @return every module a reference was taken to
+	 */
+	synchronized List<WebModule> acquire(WebModule... modules) {
+		var acquired = new ArrayList<WebModule>();
+		doAcquire(acquired, modules);
+		publish();
+		return acquired;
+	}
+
+	/**
+	 * Release references previously taken with {@link #acquire(WebModule...)}.
+	 * Any module that is no longer used by anything has its route removed.
+	 *
+	 * @param acquired modules to release
+	 */
+	synchronized void release(Collection<WebModule> acquired) {
+		for(var module : acquired) {
+			var reg = registrations.get(module.name());
+			if(reg == null) {
+				LOG.warning("Attempt to release module `{0}` that is not registered.", module.name());
+			}
+			else if(--reg.count == 0) {
+				if(LOG.debug())
+					LOG.debug("Removing module `{0}`, it is no longer in use.", module.name());
+				registrations.remove(module.name());
+				reg.route.ifPresent(Route::close);
+			}
+		}
+		publish();
+	}
+
+	synchronized void addGlobals(Collection<WebModule> modules) {
+		globals.addAll(modules);
+		publish();
+	}
+
+	synchronized void removeGlobals(Collection<WebModule> modules) {
+		modules.forEach(globals::remove);
+		publish();
+	}
+
+	private void doAcquire(List<WebModule> acquired, WebModule... modules) {
+		for(var module : modules) {
+			var reg = registrations.get(module.name());
+			if(reg == null) {
+				Optional<Route> route = Optional.empty();
+				if(module.hasHandler()) {
+					route = Optional.of(router.route().
+						handle(module.pattern(), handlers.apply(module)).
+						build());
+				}
+				reg = new Registration(route);
+				registrations.put(module.name(), reg);
+			}
+			reg.count++;
+			acquired.add(module);
+			doAcquire(acquired, module.requires().toArray(new WebModule[0]));
+		}
+	}
+
+	private void publish() {
+		snapshot = new Snapshot(List.copyOf(globals));
+		onChange.run();
+	}
+}
@@ -15,24 +15,61 @@
  */
 package com.sshtools.jenny.web;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.Principal;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+import com.sshtools.jenny.api.Metrics.Metric;
+import com.sshtools.uhttpd.UHTTPD.Cookie;
+import com.sshtools.uhttpd.UHTTPD.CookieBuilder;
+import com.sshtools.uhttpd.UHTTPD.SameSite;
 import com.sshtools.uhttpd.UHTTPD.Session;
+import com.sshtools.uhttpd.UHTTPD.Transaction;
 
 public final class WebState  {
 	
+	/**
+	 * Statistics about the store of all {@link WebState}.
+	 */
+	public record Stats(int size, int maximum, Duration idleTimeout, long idleEvictions, long capacityEvictions) {}
+	
+	private final static Log LOG = Logs.of(WebLog.WEB);
+	
 	private final static String USER = "webstate.user";
 	private final static String LOCALE = "webstate.locale";
+	private final static String STATE_COOKIE = "JENNYSTATE";
 	
 	private final static Map<Session, WebState> map = new ConcurrentHashMap<>();
+	private final static AtomicLong idleEvictions = new AtomicLong();
+	private final static AtomicLong capacityEvictions = new AtomicLong();
+	
+	private static volatile Duration idleTimeout = Duration.ofMinutes(30);
+	private static volatile int maximum = 10000;
+	private static volatile WebStateBackend backend = WebStateBackend.heap();
+	private static volatile SecretKeySpec secret;
 	
 	private final Session session;
-	private final Map<String, Object> env = new ConcurrentHashMap<String, Object>();
+	private volatile Optional<String> key;
+	private volatile Map<String, Object> env = new ConcurrentHashMap<String, Object>();
+	private volatile long lastAccessed = System.currentTimeMillis();
+	private volatile long synced;
+	private volatile boolean dirty;
 	
 	public static WebState get() {
 		return get(Session.get());
@@ -45,14 +82,279 @@ public final class WebState  {
 	public static WebState get(Session session) {
 		var state = map.get(session);
 		if(state == null) {
-			state = new WebState(session);
-			map.put(session, state);
+			state = map.computeIfAbsent(session, WebState::create);
+			if(map.size() > maximum) {
+				evictLeastRecentlyUsed(state);
+			}
 		}
+		else {
+			state.refresh();
+		}
+		state.lastAccessed = System.currentTimeMillis();
 		return state;
 	}
 	
-	WebState(Session session) {
+	/**
+	 * Get statistics about all state currently held.
+	 * 
+	 * @return stats
+	 */
+	public static Stats stats() {
+		return new Stats(map.size(), maximum, idleTimeout, idleEvictions.get(), capacityEvictions.get());
+	}
+	
+	/**
+	 * Provide metrics about all state currently held.
+	 * 
+	 * @param metrics sink for metrics
+	 */
+	static void collect(Consumer<Metric> metrics) {
+		var stats = stats();
+		metrics.accept(Metric.gauge("jenny_web_states", "Sessions with state held in memory.", Map.of(), stats.size()));
+		metrics.accept(Metric.counter("jenny_web_state_evictions_total", "State evicted from memory.", Map.of("reason", "idle"), stats.idleEvictions()));
+		metrics.accept(Metric.counter("jenny_web_state_evictions_total", "State evicted from memory.", Map.of("reason", "capacity"), stats.capacityEvictions()));
+	}
+	
+	/**
+	 * Configure how long state may be idle for, and the maximum number of
+	 * sessions that will have state held at any one time.
+	 * 
+	 * @param idleTimeout idle timeout
+	 * @param maximum maximum number of states
+	 */
+	static void configure(Duration idleTimeout, int maximum) {
+		WebState.idleTimeout = idleTimeout;
+		WebState.maximum = maximum;
+	}
+	
+	/**
+	 * Set the server secret that the keys state is stored under are derived from.
+	 * Nodes sharing a backend must use the same secret.
+	 * 
+	 * @param secret secret
+	 */
+	static void secret(byte[] secret) {
+		WebState.secret = new SecretKeySpec(secret, "HmacSHA256");
+	}
+	
+	/**
+	 * Allow values of a type, that is neither a standard Java type nor a 
+	 * {@link Principal}, to be restored from a persistent backend. The type's
+	 * class loader is also used to find the classes it refers to, so plugins
+	 * should register their types, including any principals, when they open.
+	 * 
+	 * @param type type
+	 */
+	public static void registerType(Class<?> type) {
+		WebStateSerializer.register(type);
+	}
+	
+	/**
+	 * Set the backend that state is stored in when not in use. Any state held
+	 * on the heap is first written to the previous backend.
+	 * 
+	 * @param backend backend
+	 * @return previous backend
+	 */
+	static WebStateBackend backend(WebStateBackend backend) {
+		flush();
+		map.clear();
+		var was = WebState.backend;
+		WebState.backend = backend;
+		return was;
+	}
+	
+	/**
+	 * Write all state that has changed since it was last written to the backend.
+	 */
+	static void flush() {
+		map.values().forEach(state -> {
+			if(state.dirty) {
+				state.store();
+			}
+		});
+	}
+	
+	/**
+	 * Evict all state that has not been accessed within the idle timeout. 
+	 */
+	static void evictIdle() {
+		var cutoff = System.currentTimeMillis() - idleTimeout.toMillis();
+		map.values().forEach(state -> {
+			if(state.lastAccessed < cutoff && evict(state)) {
+				idleEvictions.incrementAndGet();
+			}
+		});
+		backend.expire();
+		if(LOG.debug()) {
+			LOG.debug("Web state now {0}", stats());
+		}
+	}
+	
+	private static void evictLeastRecentlyUsed(WebState keep) {
+		synchronized(map) {
+			/* Evict down to 90% of the maximum in one go, so we don't need to
+			 * sort on every new session once at capacity. Anonymous state goes
+			 * first, so a flood of new sessions does not log out real users.
+			 * The state about to be returned is never evicted, as anything
+			 * done to it would be lost.
+			 */
+			var excess = map.size() - ( maximum - ( maximum / 10 ) );
+			if(excess > 0) {
+				map.values().stream().
+					filter(state -> state != keep).
+					sorted(Comparator.<WebState>comparingInt(s -> s.authenticated() ? 1 : 0).thenComparingLong(s -> s.lastAccessed)).
+					limit(excess).
+					toList().
+					forEach(state -> {
+						if(evict(state)) {
+							capacityEvictions.incrementAndGet();
+						}
+					});
+				if(LOG.debug())
+					LOG.debug("Maximum of {0} web states reached, evicted {1} least recently used.", maximum, excess);
+			}
+		}
+	}
+	
+	private static boolean evict(WebState state) {
+		if(map.remove(state.session, state)) {
+			/* The env is left alone, a request may still be using this state */
+			if(state.dirty) {
+				state.store();
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private static WebState create(Session session) {
+		var backend = WebState.backend;
+		if(backend.persistent()) {
+			var state = new WebState(session, Optional.of(storageKey(stateKey())));
+			state.load(backend);
+			return state;
+		}
+		else {
+			return new WebState(session, Optional.empty());
+		}
+	}
+	
+	/**
+	 * Get the key given to the browser that state is stored under. This must
+	 * outlive the session itself, which is lost on restart and is not known to 
+	 * other nodes, so is kept in a cookie of its own.
+	 */
+	private static String stateKey() {
+		try {
+			var key = Transaction.get().cookieOr(STATE_COOKIE).map(Cookie::value).filter(WebState::validKey);
+			if(key.isPresent()) {
+				return key.get();
+			}
+		}
+		catch(IllegalStateException ise) {
+			/* Not in a request, state cannot be restored later */
+			return UUID.randomUUID().toString();
+		}
+		return issueKey();
+	}
+	
+	/**
+	 * Create a new key and give it to the browser, if there is a request.
+	 */
+	private static String issueKey() {
+		var newKey = UUID.randomUUID().toString();
+		try {
+			Transaction.get().cookie(new CookieBuilder().
+					withName(STATE_COOKIE).
+					withValue(newKey).
+					withPath("/").
+					withHttpOnly().
+					withSecure().
+					withSameSite(SameSite.LAX).
+					build());
+		}
+		catch(IllegalStateException ise) {
+			/* Not in a request, state cannot be restored later */
+		}
+		return newKey;
+	}
+	
+	/**
+	 * Get the key state is actually stored under, which is derived from the 
+	 * key the browser has using the server secret. Knowing what is in the backend 
+	 * is then no help in making up a key, and a key that the browser chooses 
+	 * itself only ever finds empty state.
+	 */
+	private static String storageKey(String key) {
+		var sec = secret;
+		if(sec == null)
+			throw new IllegalStateException("No web state secret.");
+		try {
+			var mac = Mac.getInstance(sec.getAlgorithm());
+			mac.init(sec);
+			return HexFormat.of().formatHex(mac.doFinal(key.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch(GeneralSecurityException gse) {
+			throw new IllegalStateException("Failed to derive web state key.", gse);
+		}
+	}
+	
+	private static boolean validKey(String key) {
+		try {
+			UUID.fromString(key);
+			return true;
+		}
+		catch(IllegalArgumentException iae) {
+			return false;
+		}
+	}
+	
+	WebState(Session session, Optional<String> key) {
 		this.session = session;
+		this.key = key;
+	}
+	
+	private void load(WebStateBackend backend) {
+		key.ifPresent(k -> {
+			try {
+				synced = System.currentTimeMillis();
+				backend.load(k).ifPresent(loaded -> {
+					/* Swapped in whole, so readers never see it part loaded */
+					env = new ConcurrentHashMap<>(loaded);
+				});
+			}
+			catch(RuntimeException re) {
+				LOG.warning("Failed to load web state.", re);
+			}
+		});
+	}
+	
+	private void refresh() {
+		key.ifPresent(k -> {
+			if(!dirty && backend.lastModified(k) > synced) {
+				synchronized(this) {
+					if(LOG.debug())
+						LOG.debug("Web state has been changed elsewhere, reloading.");
+					load(backend);
+				}
+			}
+		});
+	}
+	
+	private void store() {
+		key.ifPresent(k -> {
+			synchronized(this) {
+				dirty = false;
+				try {
+					backend.store(k, env);
+					synced = System.currentTimeMillis();
+				}
+				catch(RuntimeException re) {
+					LOG.warning("Failed to store web state.", re);
+				}
+			}
+		});
 	}
 	
 	public Optional<Principal> user() {
@@ -85,14 +387,18 @@ public final class WebState  {
 	
 	@SuppressWarnings("unchecked")
 	public <V> V set(String key, V val) {
+		dirty = true;
 		return (V)env.put(key, val);
 	}
 	
 	public Map<String, Object> env() {
+		/* Changes may be made directly to the map */
+		dirty = true;
 		return env;
 	}
 	
 	public WebState locale(Locale locale) {
+		dirty = true;
 		env.put(LOCALE, locale);
 		return this;
 	}
@@ -100,7 +406,12 @@ public final class WebState  {
 	public void authenticate(Principal user) {
 		user().ifPresentOrElse(u -> {
 			throw new IllegalStateException("Already authenticated.");
-		}, () -> set(USER, user));
+		}, () -> {
+			/* A new key, so one known before logging in is no use afterwards */
+			rotate();
+			WebStateSerializer.register(user.getClass());
+			set(USER, user);
+		});
 	}
 	
 	public Session session() {
@@ -108,8 +419,24 @@ public final class WebState  {
 	}
 
 	public void invalidate() {
-		env.clear();
-		map.remove(session);
+		env = new ConcurrentHashMap<>();
+		rotate();
+	}
+	
+	private void rotate() {
+		var was = key;
+		if(was.isPresent()) {
+			synchronized(this) {
+				key = Optional.of(storageKey(issueKey()));
+				dirty = true;
+			}
+			try {
+				backend.store(was.get(), Map.of());
+			}
+			catch(RuntimeException re) {
+				LOG.warning("Failed to remove old web state.", re);
+			}
+		}
 	}
 
 	public boolean authenticated() {
@@ -0,0 +1,125 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Where the environment of a {@link WebState} is kept when it is not in use.
+ * Active state is always held on the heap, a backend is given a copy when it
+ * changes and asked for it again when a session returns after its state was
+ * evicted from memory, or after a restart.
+ * <p>
+ * Only values that are {@link java.io.Serializable} can be stored by a
+ * persistent backend, anything else only lives as long as the heap copy.
+ * Invalidated state is stored as an empty environment, so that any other
+ * nodes sharing the same backend see the change.
+ */
+public interface WebStateBackend extends Closeable {
+
+	public enum Type {
+		/**
+		 * State is only kept on the heap, and is lost when evicted or on restart.
+		 */
+		HEAP,
+		/**
+		 * State is kept in a memory mapped file outside of the heap.
+		 */
+		MAPPED,
+		/**
+		 * State is kept in one file per session in a directory.
+		 */
+		FILE
+	}
+
+	/**
+	 * Backend that stores nothing.
+	 *
+	 * @return heap backend
+	 */
+	static WebStateBackend heap() {
+		return new WebStateBackend() {
+			@Override
+			public Optional<Map<String, Object>> load(String key) {
+				return Optional.empty();
+			}
+
+			@Override
+			public void store(String key, Map<String, Object> env) {
+			}
+
+			@Override
+			public boolean persistent() {
+				return false;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Load the environment previously stored for a key.
+	 *
+	 * @param key key
+	 * @return environment
+	 */
+	Optional<Map<String, Object>> load(String key);
+
+	/**
+	 * Store the environment for a key, replacing anything already stored.
+	 *
+	 * @param key key
+	 * @param env environment
+	 */
+	void store(String key, Map<String, Object> env);
+
+	/**
+	 * Get when the environment for a key was last stored, as milliseconds since
+	 * the epoch, or zero if nothing is stored. State held on the heap is
+	 * reloaded when the stored copy is newer, for example when it was changed by
+	 * another node.
+	 *
+	 * @param key key
+	 * @return last modified time
+	 */
+	default long lastModified(String key) {
+		return 0;
+	}
+
+	/**
+	 * Discard anything stored that has not been changed within the backends
+	 * expiry time.
+	 */
+	default void expire() {
+	}
+
+	/**
+	 * Get whether this backend actually keeps anything. When <code>false</code>,
+	 * state is never offered to the backend.
+	 *
+	 * @return persistent
+	 */
+	default boolean persistent() {
+		return true;
+	}
+
+	@Override
+	void close();
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright © 2023 JAdaptive Limited (support@jadaptive.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.jenny.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sshtools.bootlace.api.Logs;
+import com.sshtools.bootlace.api.Logs.Log;
+
+/**
+ * Compact binary encoding of a {@link WebState} environment. Common simple
+ * types are written directly, anything else that is {@link Serializable} is
+ * written using Java serialization. Any other values are skipped, so a session
+ * whose user principal is not serializable must log in again after a restart.
+ * <p>
+ * Serialized values are only restored if every class in them is a standard
+ * Java type, a {@link Principal}, or has been registered, as the backend may be
+ * a shared directory that others can write to. Classes are found using the
+ * loaders of registered types, so a plugin should register its types when it
+ * opens, before any state is restored.
+ */
+final class WebStateSerializer {
+
+	private final static Log LOG = Logs.of(WebLog.WEB);
+
+	private final static int STRING = 0;
+	private final static int BOOLEAN = 1;
+	private final static int INTEGER = 2;
+	private final static int LONG = 3;
+	private final static int DOUBLE = 4;
+	private final static int LOCALE = 5;
+	private final static int SERIALIZED = 6;
+
+	private final static int MAX_DEPTH = 20;
+	private final static int MAX_REFERENCES = 10000;
+	private final static int MAX_ARRAY = 100000;
+	private final static int MAX_BYTES = 1024 * 1024;
+
+	private final static Map<String, Class<?>> types = new ConcurrentHashMap<>();
+	private final static Set<ClassLoader> loaders = ConcurrentHashMap.newKeySet();
+	private final static Set<Class<?>> unserializable = ConcurrentHashMap.newKeySet();
+
+	private final static ObjectInputFilter FILTER = info -> {
+		if(info.depth() > MAX_DEPTH || info.references() > MAX_REFERENCES || info.streamBytes() > MAX_BYTES ||
+				info.arrayLength() > MAX_ARRAY)
+			return ObjectInputFilter.Status.REJECTED;
+		var clazz = info.serialClass();
+		if(clazz == null)
+			return ObjectInputFilter.Status.UNDECIDED;
+		while(clazz.isArray())
+			clazz = clazz.getComponentType();
+		if(clazz.isPrimitive() || clazz.getName().startsWith("java.") || Principal.class.isAssignableFrom(clazz) || 
+				types.get(clazz.getName()) == clazz)
+			return ObjectInputFilter.Status.ALLOWED;
+		LOG.warning("Refusing to restore web state containing `{0}`.", clazz.getName());
+		return ObjectInputFilter.Status.REJECTED;
+	};
+
+	/**
+	 * Reads objects using the loaders of registered types, so classes from
+	 * other plugins may be found.
+	 */
+	private final static class FilteredObjectInputStream extends ObjectInputStream {
+
+		private FilteredObjectInputStream(InputStream in) throws IOException {
+			super(in);
+			setObjectInputFilter(FILTER);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			var type = types.get(desc.getName());
+			if(type != null)
+				return type;
+			for(var loader : loaders) {
+				try {
+					return Class.forName(desc.getName(), false, loader);
+				}
+				catch(ClassNotFoundException cnfe) {
+				}
+			}
+			return super.resolveClass(desc);
+		}
+	}
+
+	private WebStateSerializer() {
+	}
+
+	static void register(Class<?> type) {
+		if(!Serializable.class.isAssignableFrom(type) && unserializable.add(type))
+			LOG.warning("Web state of type `{0}` is not serializable, so will not survive a restart.", type.getName());
+		types.put(type.getName(), type);
+		if(type.getClassLoader() != null)
+			loaders.add(type.getClassLoader());
+	}
+
+	static byte[] serialize(Map<String, Object> env) {
+		var bout = new ByteArrayOutputStream();
+		try(var out = new DataOutputStream(bout)) {
+			for(var en : env.entrySet()) {
+				var val = en.getValue();
+				if(val instanceof String str) {
+					out.writeUTF(en.getKey());
+					out.writeByte(STRING);
+					out.writeUTF(str);
+				}
+				else if(val instanceof Boolean bool) {
+					out.writeUTF(en.getKey());
+					out.writeByte(BOOLEAN);
+					out.writeBoolean(bool);
+				}
+				else if(val instanceof Integer i) {
+					out.writeUTF(en.getKey());
+					out.writeByte(INTEGER);
+					out.writeInt(i);
+				}
+				else if(val instanceof Long l) {
+					out.writeUTF(en.getKey());
+					out.writeByte(LONG);
+					out.writeLong(l);
+				}
+				else if(val instanceof Double d) {
+					out.writeUTF(en.getKey());
+					out.writeByte(DOUBLE);
+					out.writeDouble(d);
+				}
+				else if(val instanceof Locale locale) {
+					out.writeUTF(en.getKey());
+					out.writeByte(LOCALE);
+					out.writeUTF(locale.toLanguageTag());
+				}
+				else if(val instanceof Serializable) {
+					byte[] data;
+					try {
+						var sout = new ByteArrayOutputStream();
+						try(var oout = new ObjectOutputStream(sout)) {
+							oout.writeObject(val);
+						}
+						data = sout.toByteArray();
+					}
+					catch(IOException ioe) {
+						if(LOG.debug())
+							LOG.debug("Could not serialize web state value `{0}`, it will not be stored.", en.getKey());
+						continue;
+					}
+					out.writeUTF(en.getKey());
+					out.writeByte(SERIALIZED);
+					out.writeInt(data.length);
+					out.write(data);
+				}
+				else if(LOG.debug()) {
+					LOG.debug("Web state value `{0}` of type `{1}` is not serializable, it will not be stored.", en.getKey(), val == null ? "null" : val.getClass().getName());
+				}
+			}
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return bout.toByteArray();
+	}
+
+	static Map<String, Object> deserialize(byte[] data) {
+		var env = new HashMap<String, Object>();
+		try(var in = new DataInputStream(new ByteArrayInputStream(data))) {
+			while(in.available() > 0) {
+				var key = in.readUTF();
+				var type = in.readByte();
+				switch(type) {
+				case STRING:
+					env.put(key, in.readUTF());
+					break;
+				case BOOLEAN:
+					env.put(key, in.readBoolean());
+					break;
+				case INTEGER:
+					env.put(key, in.readInt());
+					break;
+				case LONG:
+					env.put(key, in.readLong());
+					break;
+				case DOUBLE:
+					env.put(key, in.readDouble());
+					break;
+				case LOCALE:
+					env.put(key, Locale.forLanguageTag(in.readUTF()));
+					break;
+				case SERIALIZED:
+					var len = in.readInt();
+					if(len < 0 || len > MAX_BYTES)
+						throw new IOException("Web state value too large.");
+					var buf = new byte[len];
+					in.readFully(buf);
+					try(var oin = new FilteredObjectInputStream(new ByteArrayInputStream(buf))) {
+						env.put(key, oin.readObject());
+					}
+					catch(ClassNotFoundException | IOException e) {
+						if(LOG.debug())
+							LOG.debug("Could not restore web state value `{0}`, skipping.", key);
+					}
+					break;
+				default:
+					throw new IOException("Unknown web state value type " + type);
+				}
+			}
+		}
+		catch(IOException ioe) {
+			throw new UncheckedIOException(ioe);
+		}
+		return env;
+	}
+}
@@ -28,6 +28,7 @@ module com.sshtools.jenny.web {
 	requires transitive com.sshtools.tinytemplate;
 	requires transitive com.sshtools.uhttpd;
 	requires static java.scripting;
+	requires static jdk.jfr;
 	requires transitive java.json;
 	
 	uses HandlerFactory;